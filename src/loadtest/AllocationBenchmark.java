@@ -0,0 +1,92 @@
+package loadtest;
+
+import main.FooAction;
+import simplehttp.SimpleHttpServer;
+
+import java.lang.management.ManagementFactory;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Compares the bytes allocated per request by the server's worker threads
+ * with and without object recycling, using {@link FooAction}. Only the
+ * workers are measured, so allocations by the client and the native
+ * server's dispatcher thread are left out.
+ *
+ * Arguments, all optional: port (8090) and number of measured requests per
+ * mode (20000).
+ */
+public class AllocationBenchmark {
+
+    private static final int WARMUP_REQUESTS = 2000;
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8090;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 20000;
+
+        long plain = measure(port, requests, false);
+        long recycled = measure(port + 1, requests, true);
+        System.out.printf("without recycling: %d bytes/request%n", plain);
+        System.out.printf("with recycling:    %d bytes/request%n", recycled);
+        System.out.printf("reduction:         %.1f%%%n",
+                100.0 * (plain - recycled) / plain);
+    }
+
+    // Returns the mean bytes allocated by the worker threads per request.
+    private static long measure(int port, int requests, boolean recycle)
+            throws Exception {
+        List<Thread> workers = new CopyOnWriteArrayList<>();
+        ExecutorService executor = Executors.newFixedThreadPool(2, runnable -> {
+            Thread thread = new Thread(runnable, "benchmark-worker");
+            workers.add(thread);
+            return thread;
+        });
+        SimpleHttpServer server = new SimpleHttpServer.Builder()
+                .setHostname("localhost")
+                .setPort(port)
+                .setBacklog(0)
+                .setExecutor(executor)
+                .setActions(Set.of(new FooAction()))
+                .setObjectRecycling(recycle)
+                .build();
+        server.start();
+        try {
+            HttpClient client = HttpClient.newHttpClient();
+            HttpRequest request = HttpRequest.newBuilder(URI.create(
+                    "http://localhost:" + port
+                            + "/action/foo?name=bar&age=3&gender=male"))
+                    .build();
+            send(client, request, WARMUP_REQUESTS);
+            long before = allocatedBytes(workers);
+            send(client, request, requests);
+            return (allocatedBytes(workers) - before) / requests;
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+
+    private static void send(HttpClient client, HttpRequest request,
+                             int count) throws Exception {
+        for (int i = 0; i < count; i++) {
+            client.send(request, HttpResponse.BodyHandlers.discarding());
+        }
+    }
+
+    private static long allocatedBytes(List<Thread> threads) {
+        com.sun.management.ThreadMXBean bean =
+                (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long total = 0;
+        for (Thread thread : threads) {
+            total += bean.getThreadAllocatedBytes(thread.getId());
+        }
+        return total;
+    }
+}
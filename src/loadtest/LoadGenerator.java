@@ -0,0 +1,347 @@
+package loadtest;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An open-loop load generator for a server running on the local machine. The
+ * generator can be created and configured using the {@link Builder} class.
+ *
+ * Requests are scheduled at a constant rate regardless of how quickly the
+ * server responds, and each latency is measured from the time its request was
+ * scheduled. A closed-loop generator, which waits for a response before
+ * sending the next request, sends less traffic exactly when the server is
+ * slow and so under-reports tail latency; this generator does not. When the
+ * maximum number of requests is already in flight, a request is sent late
+ * rather than skipped, and its latency still counts from its scheduled time.
+ *
+ * Each request is chosen from the configured {@link RequestProfile}s in
+ * proportion to their weights. Requests scheduled during the warmup period
+ * are sent but not measured.
+ */
+public class LoadGenerator {
+
+    // One request per nanosecond, beyond which the schedule cannot be kept.
+    private static final double MAX_RATE = 1e9;
+
+    private final URI baseUri;
+    private final double rate;
+    private final Duration duration;
+    private final Duration warmup;
+    private final List<RequestProfile> profiles;
+    private final int maxInFlight;
+    private final Duration requestTimeout;
+    private final HttpClient client;
+    private final long seed;
+
+    private LoadGenerator(Builder builder) {
+        this.baseUri = builder.baseUri;
+        this.rate = builder.rate;
+        this.duration = builder.duration;
+        this.warmup = builder.warmup;
+        this.profiles = List.copyOf(builder.profiles);
+        this.maxInFlight = builder.maxInFlight;
+        this.requestTimeout = builder.requestTimeout;
+        this.client = builder.client != null
+                ? builder.client
+                : HttpClient.newBuilder()
+                        .version(HttpClient.Version.HTTP_1_1)
+                        .connectTimeout(builder.requestTimeout)
+                        .build();
+        this.seed = builder.seed;
+    }
+
+    /**
+     * Runs the load on the calling thread, returning once every request has
+     * completed or timed out.
+     */
+    public LoadReport run() {
+        List<ProfileStats> stats = new ArrayList<>();
+        for (RequestProfile profile : profiles) {
+            stats.add(new ProfileStats(profile));
+        }
+        ProfileStats[] schedule = weightedSchedule(stats);
+        SplittableRandom random = new SplittableRandom(seed);
+        Semaphore inFlight = new Semaphore(maxInFlight);
+
+        // Kept fractional, so high rates neither round to a zero interval
+        // nor drift from the target.
+        double intervalNanos = 1e9 / rate;
+        long timeoutNanos = requestTimeout.toNanos();
+        long start = System.nanoTime();
+        long measureFrom = start + warmup.toNanos();
+        long end = measureFrom + duration.toNanos();
+        for (long i = 0; ; i++) {
+            long intended = start + (long) (i * intervalNanos);
+            if (intended >= end) {
+                break;
+            }
+            waitUntil(intended);
+            int slot = random.nextInt(schedule.length);
+            ProfileStats profileStats = schedule[slot];
+            boolean measured = intended >= measureFrom;
+            if (!acquireBy(inFlight, intended + timeoutNanos)) {
+                // Recorded as if it timed out, so the time spent waiting on
+                // a saturated server shows in the latencies.
+                if (measured) {
+                    profileStats.histogram.record(
+                            (System.nanoTime() - intended) / 1000);
+                    profileStats.dropped.incrementAndGet();
+                }
+                continue;
+            }
+            send(profileStats.profile.createRequest(baseUri), intended, measured,
+                    profileStats, inFlight);
+        }
+        awaitCompletion(inFlight);
+
+        LatencyHistogram overall = new LatencyHistogram();
+        long errors = 0;
+        long dropped = 0;
+        Map<String, LoadReport.Stats> byProfile = new LinkedHashMap<>();
+        for (ProfileStats profileStats : stats) {
+            String name = profileStats.profile.getName();
+            overall.add(profileStats.histogram);
+            errors += profileStats.errors.get();
+            dropped += profileStats.dropped.get();
+            byProfile.put(name, new LoadReport.Stats(name,
+                    profileStats.histogram, profileStats.errors.get(),
+                    profileStats.dropped.get()));
+        }
+        return new LoadReport(duration, rate,
+                new LoadReport.Stats("all", overall, errors, dropped),
+                byProfile);
+    }
+
+    private void send(HttpRequest request, long intended, boolean measured,
+                      ProfileStats stats, Semaphore inFlight) {
+        HttpRequest timed = HttpRequest.newBuilder(request, (name, value) -> true)
+                .timeout(requestTimeout)
+                .build();
+        client.sendAsync(timed, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, error) -> {
+                    long micros = (System.nanoTime() - intended) / 1000;
+                    if (measured) {
+                        stats.histogram.record(micros);
+                        if (error != null || response.statusCode() >= 500) {
+                            stats.errors.incrementAndGet();
+                        }
+                    }
+                    inFlight.release();
+                });
+    }
+
+    // Waits for a request to be allowed in flight until the given time, so
+    // a request that cannot be sent on schedule is sent late instead.
+    private static boolean acquireBy(Semaphore inFlight, long deadline) {
+        if (inFlight.tryAcquire()) {
+            return true;
+        }
+        try {
+            return inFlight.tryAcquire(deadline - System.nanoTime(),
+                    TimeUnit.NANOSECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Waits for all in-flight requests, which are bounded by the request
+    // timeout, by taking back every permit.
+    private void awaitCompletion(Semaphore inFlight) {
+        try {
+            long timeoutMillis = requestTimeout.toMillis() * 2 + 1000;
+            if (!inFlight.tryAcquire(maxInFlight, timeoutMillis,
+                    TimeUnit.MILLISECONDS)) {
+                String msg = "Requests still in flight after " + timeoutMillis
+                        + "ms.";
+                throw new IllegalStateException(msg);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Spins for the last stretch, since parking overshoots by tens of
+    // microseconds and would skew the schedule at high rates.
+    private static void waitUntil(long nanoTime) {
+        long remaining;
+        while ((remaining = nanoTime - System.nanoTime()) > 0) {
+            if (remaining > 100_000) {
+                LockSupport.parkNanos(remaining - 50_000);
+            } else {
+                Thread.onSpinWait();
+            }
+        }
+    }
+
+    // Builds a table where each profile appears as many times as its weight,
+    // so a uniform pick from the table follows the weights.
+    private static ProfileStats[] weightedSchedule(List<ProfileStats> stats) {
+        int total = stats.stream().mapToInt(s -> s.profile.getWeight()).sum();
+        ProfileStats[] schedule = new ProfileStats[total];
+        int index = 0;
+        for (ProfileStats profileStats : stats) {
+            for (int j = 0; j < profileStats.profile.getWeight(); j++) {
+                schedule[index++] = profileStats;
+            }
+        }
+        return schedule;
+    }
+
+    private static class ProfileStats {
+        private final RequestProfile profile;
+        private final LatencyHistogram histogram = new LatencyHistogram();
+        private final AtomicLong errors = new AtomicLong();
+        private final AtomicLong dropped = new AtomicLong();
+
+        private ProfileStats(RequestProfile profile) {
+            this.profile = profile;
+        }
+    }
+
+    /**
+     * Builder for creating a new {@link LoadGenerator}.
+     */
+    public static class Builder {
+
+        private URI baseUri;
+        private double rate;
+        private Duration duration;
+        private Duration warmup = Duration.ZERO;
+        private final List<RequestProfile> profiles = new ArrayList<>();
+        private int maxInFlight = 1024;
+        private Duration requestTimeout = Duration.ofSeconds(10);
+        private HttpClient client;
+        private long seed = 42;
+
+        /**
+         * Sets the URI that profile paths are resolved against, for example
+         * "http://localhost:8000/".
+         */
+        public Builder setBaseUri(URI baseUri) {
+            this.baseUri = baseUri;
+            return this;
+        }
+
+        /**
+         * Sets the constant rate, in requests per second, that requests are
+         * scheduled at. Must be at most one request per nanosecond.
+         */
+        public Builder setRate(double rate) {
+            this.rate = rate;
+            return this;
+        }
+
+        /**
+         * Sets how long requests are scheduled for after the warmup.
+         */
+        public Builder setDuration(Duration duration) {
+            this.duration = duration;
+            return this;
+        }
+
+        /**
+         * Sets how long requests are sent before any are measured. Defaults
+         * to no warmup.
+         */
+        public Builder setWarmup(Duration warmup) {
+            this.warmup = warmup;
+            return this;
+        }
+
+        /**
+         * Adds a profile to choose requests from.
+         */
+        public Builder addProfile(RequestProfile profile) {
+            profiles.add(profile);
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of requests waiting for a response. When
+         * reached, scheduled requests are sent late, once a response frees
+         * a slot, with their latency measured from when they were
+         * scheduled. A request that cannot be sent within the request
+         * timeout is dropped, recorded with the latency it waited, and
+         * counted as a failure. Defaults to 1024.
+         */
+        public Builder setMaxInFlight(int maxInFlight) {
+            this.maxInFlight = maxInFlight;
+            return this;
+        }
+
+        /**
+         * Sets the time after which a request is failed. Defaults to 10
+         * seconds.
+         */
+        public Builder setRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the client used to send requests. Defaults to an HTTP/1.1
+         * client.
+         */
+        public Builder setHttpClient(HttpClient client) {
+            this.client = client;
+            return this;
+        }
+
+        /**
+         * Sets the seed used to pick profiles, so runs are repeatable.
+         */
+        public Builder setSeed(long seed) {
+            this.seed = seed;
+            return this;
+        }
+
+        /**
+         * Creates a new {@link LoadGenerator} from this builder.
+         */
+        public LoadGenerator build() {
+            ensureNonNull(baseUri, "baseUri");
+            ensureNonNull(duration, "duration");
+            ensureNonNull(warmup, "warmup");
+            ensureNonNull(requestTimeout, "requestTimeout");
+            if (!(rate > 0)) {
+                String msg = "The rate field must be positive";
+                throw new IllegalStateException(msg);
+            }
+            if (rate > MAX_RATE) {
+                String msg = "The rate field must be at most " + MAX_RATE;
+                throw new IllegalStateException(msg);
+            }
+            if (profiles.isEmpty()) {
+                String msg = "At least one profile must be added";
+                throw new IllegalStateException(msg);
+            }
+            if (maxInFlight < 1) {
+                String msg = "The maxInFlight field must be at least 1";
+                throw new IllegalStateException(msg);
+            }
+            return new LoadGenerator(this);
+        }
+
+        private static void ensureNonNull(Object object, String fieldName) {
+            if (object == null) {
+                String msg = "The " + fieldName + " field must be non-null";
+                throw new IllegalStateException(msg);
+            }
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package loadtest;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The results of a {@link LoadGenerator} run. Latencies are measured from
+ * the time each request was scheduled to be sent, not from when it was
+ * actually sent, so delays caused by a slow server are included rather than
+ * hidden.
+ *
+ * The assert methods throw an {@link AssertionError} when a budget is
+ * missed, so a run can be used directly as a regression check from a test.
+ */
+public class LoadReport {
+
+    private final Duration elapsed;
+    private final double targetRate;
+    private final Stats overall;
+    private final Map<String, Stats> profiles;
+
+    LoadReport(Duration elapsed, double targetRate, Stats overall,
+               Map<String, Stats> profiles) {
+        this.elapsed = elapsed;
+        this.targetRate = targetRate;
+        this.overall = overall;
+        this.profiles = Collections.unmodifiableMap(new LinkedHashMap<>(profiles));
+    }
+
+    /**
+     * Returns the length of the measured part of the run.
+     */
+    public Duration getElapsed() {
+        return elapsed;
+    }
+
+    /**
+     * Returns the rate, in requests per second, that the run was scheduled
+     * to send at.
+     */
+    public double getTargetRate() {
+        return targetRate;
+    }
+
+    /**
+     * Returns the rate, in requests per second, of successful responses.
+     */
+    public double getThroughput() {
+        double seconds = elapsed.toNanos() / 1e9;
+        return seconds == 0 ? 0 : overall.getSuccesses() / seconds;
+    }
+
+    /**
+     * Returns the statistics across all profiles.
+     */
+    public Stats getOverall() {
+        return overall;
+    }
+
+    /**
+     * Returns the statistics for the profile with the given name.
+     * @throws IllegalArgumentException if there is no such profile.
+     */
+    public Stats getProfile(String name) {
+        Stats stats = profiles.get(name);
+        if (stats == null) {
+            throw new IllegalArgumentException("No profile named " + name);
+        }
+        return stats;
+    }
+
+    /**
+     * Asserts that the overall 99th percentile latency is within the budget.
+     */
+    public LoadReport assertP99AtMost(Duration budget) {
+        return assertP99AtMost(overall, budget);
+    }
+
+    /**
+     * Asserts that the 99th percentile latency of the given profile is within
+     * the budget.
+     */
+    public LoadReport assertP99AtMost(String profile, Duration budget) {
+        return assertP99AtMost(getProfile(profile), budget);
+    }
+
+    /**
+     * Asserts that successful responses were received at no less than the
+     * given rate, in requests per second.
+     */
+    public LoadReport assertThroughputAtLeast(double requestsPerSecond) {
+        if (getThroughput() < requestsPerSecond) {
+            String msg = String.format("Throughput %.1f req/s is below the "
+                    + "budget of %.1f req/s%n%s", getThroughput(),
+                    requestsPerSecond, this);
+            throw new AssertionError(msg);
+        }
+        return this;
+    }
+
+    /**
+     * Asserts that no more than the given fraction of requests failed, where
+     * a failure is a connection error, a timeout, a 5xx response, or a
+     * request dropped by the generator.
+     */
+    public LoadReport assertErrorRateAtMost(double fraction) {
+        if (overall.getErrorRate() > fraction) {
+            String msg = String.format("Error rate %.4f is above the budget "
+                    + "of %.4f%n%s", overall.getErrorRate(), fraction, this);
+            throw new AssertionError(msg);
+        }
+        return this;
+    }
+
+    private LoadReport assertP99AtMost(Stats stats, Duration budget) {
+        if (stats.getP99().compareTo(budget) > 0) {
+            String msg = String.format("p99 of %s is %s, over the budget of "
+                    + "%s%n%s", stats.getName(), format(stats.getP99()),
+                    format(budget), this);
+            throw new AssertionError(msg);
+        }
+        return this;
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%.1fs at %.1f req/s target, %.1f req/s "
+                        + "achieved%n", elapsed.toMillis() / 1000.0,
+                targetRate, getThroughput()));
+        sb.append(String.format("%-16s %8s %7s %7s %9s %9s %9s %9s %9s%n",
+                "profile", "count", "errors", "dropped", "mean", "p50", "p90", "p99",
+                "max"));
+        for (Stats stats : profiles.values()) {
+            sb.append(stats.toRow()).append(System.lineSeparator());
+        }
+        if (profiles.size() > 1) {
+            sb.append(overall.toRow()).append(System.lineSeparator());
+        }
+        return sb.toString();
+    }
+
+    private static String format(Duration duration) {
+        long micros = duration.toNanos() / 1000;
+        return micros < 10_000
+                ? micros + "us"
+                : String.format("%.1fms", micros / 1000.0);
+    }
+
+    /**
+     * The latency and error statistics of a single profile, or of the whole
+     * run.
+     */
+    public static class Stats {
+
+        private final String name;
+        private final LatencyHistogram histogram;
+        private final long errors;
+        private final long dropped;
+
+        Stats(String name, LatencyHistogram histogram, long errors,
+              long dropped) {
+            this.name = name;
+            this.histogram = histogram;
+            this.errors = errors;
+            this.dropped = dropped;
+        }
+
+        /**
+         * Returns the name of the profile, or "all" for the whole run.
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Returns the number of recorded requests, including failures and
+         * dropped requests.
+         */
+        public long getCount() {
+            return histogram.getCount();
+        }
+
+        /**
+         * Returns the number of failed requests.
+         */
+        public long getErrors() {
+            return errors;
+        }
+
+        /**
+         * Returns the number of requests that were never sent because the
+         * generator had the maximum number of requests in flight until their
+         * timeout. These are recorded at the latency they waited and counted
+         * as failures.
+         */
+        public long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * Returns the number of successful requests.
+         */
+        public long getSuccesses() {
+            return getCount() - errors - dropped;
+        }
+
+        /**
+         * Returns the fraction of scheduled requests that failed or were
+         * dropped.
+         */
+        public double getErrorRate() {
+            long scheduled = getCount();
+            return scheduled == 0 ? 0 : (double) (errors + dropped) / scheduled;
+        }
+
+        /**
+         * Returns the latency at the given percentile, between 0 and 100.
+         */
+        public Duration getPercentile(double percentile) {
+            return Duration.ofNanos(histogram.getPercentile(percentile) * 1000);
+        }
+
+        public Duration getP50() {
+            return getPercentile(50);
+        }
+
+        public Duration getP90() {
+            return getPercentile(90);
+        }
+
+        public Duration getP99() {
+            return getPercentile(99);
+        }
+
+        public Duration getP999() {
+            return getPercentile(99.9);
+        }
+
+        public Duration getMax() {
+            return Duration.ofNanos(histogram.getMax() * 1000);
+        }
+
+        private String toRow() {
+            return String.format("%-16s %8d %7d %7d %9s %9s %9s %9s %9s",
+                    name, getCount(), errors, dropped,
+                    format(Duration.ofNanos((long) (histogram.getMean() * 1000))),
+                    format(getP50()), format(getP90()), format(getP99()),
+                    format(getMax()));
+        }
+    }
+}
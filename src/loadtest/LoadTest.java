@@ -0,0 +1,63 @@
+package loadtest;
+
+import main.FooAction;
+import main.FooStreamAction;
+import simplehttp.SimpleHttpServer;
+
+import java.net.URI;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Runs a mixed load of {@link FooAction} and {@link FooStreamAction}
+ * requests against a server on loopback and prints the latency report.
+ *
+ * Arguments, all optional: port (8089), rate in requests per second (500),
+ * duration in seconds (10), p99 budget in milliseconds and minimum
+ * throughput in requests per second. When budgets are given, a missed budget
+ * fails the run with an {@link AssertionError}.
+ */
+public class LoadTest {
+
+    public static void main(String[] args) {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8089;
+        double rate = args.length > 1 ? Double.parseDouble(args[1]) : 500;
+        int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+
+        ExecutorService executor = Executors.newFixedThreadPool(32);
+        SimpleHttpServer server = new SimpleHttpServer.Builder()
+                .setHostname("localhost")
+                .setPort(port)
+                .setActions(Set.of(new FooAction(), new FooStreamAction()))
+                .setBacklog(0)
+                .setExecutor(executor)
+                .build();
+        server.start();
+        try {
+            LoadReport report = new LoadGenerator.Builder()
+                    .setBaseUri(URI.create("http://localhost:" + port + "/"))
+                    .setRate(rate)
+                    .setWarmup(Duration.ofSeconds(2))
+                    .setDuration(Duration.ofSeconds(seconds))
+                    .addProfile(RequestProfile.get("foo", 9,
+                            "/action/foo?name=bar&age=3&gender=male"))
+                    .addProfile(RequestProfile.get("foostream", 1,
+                            "/action/foostream?times=5&delay=2"))
+                    .build()
+                    .run();
+            System.out.println(report);
+            if (args.length > 3) {
+                report.assertP99AtMost(Duration.ofMillis(Long.parseLong(args[3])));
+            }
+            if (args.length > 4) {
+                report.assertThroughputAtLeast(Double.parseDouble(args[4]));
+            }
+            report.assertErrorRateAtMost(0);
+        } finally {
+            server.stop(0);
+            executor.shutdown();
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package loadtest;
+
+import java.net.URI;
+import java.net.http.HttpRequest;
+import java.util.function.Function;
+
+/**
+ * A kind of request sent by a {@link LoadGenerator}, such as a GET to a
+ * single route. Each profile is given a weight, and requests are spread
+ * between profiles in proportion to their weights. Latencies are reported
+ * per profile as well as overall.
+ */
+public class RequestProfile {
+
+    private final String name;
+    private final int weight;
+    private final Function<URI, HttpRequest> requestFactory;
+
+    private RequestProfile(String name, int weight,
+                           Function<URI, HttpRequest> requestFactory) {
+        if (weight < 1) {
+            String msg = "The weight of profile " + name + " must be at least 1";
+            throw new IllegalArgumentException(msg);
+        }
+        this.name = name;
+        this.weight = weight;
+        this.requestFactory = requestFactory;
+    }
+
+    /**
+     * Creates a profile that sends GET requests to the given path and query,
+     * resolved against the generator's base URI.
+     * @param pathAndQuery for example "/action/foo?name=bar".
+     */
+    public static RequestProfile get(String name, int weight,
+                                     String pathAndQuery) {
+        return new RequestProfile(name, weight, base -> HttpRequest
+                .newBuilder(base.resolve(pathAndQuery))
+                .GET()
+                .build());
+    }
+
+    /**
+     * Creates a profile whose requests are built by the given function,
+     * which is called with the generator's base URI for every request.
+     */
+    public static RequestProfile of(String name, int weight,
+                                    Function<URI, HttpRequest> requestFactory) {
+        return new RequestProfile(name, weight, requestFactory);
+    }
+
+    /**
+     * Returns the name of the profile, as used in reports.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the relative weight of the profile.
+     */
+    public int getWeight() {
+        return weight;
+    }
+
+    HttpRequest createRequest(URI base) {
+        return requestFactory.apply(base);
+    }
+}
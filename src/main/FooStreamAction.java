@@ -23,7 +23,9 @@ public class FooStreamAction extends SimpleAction {
             try {
                 Thread.sleep(delay);
             } catch (InterruptedException e) {
-                e.printStackTrace();
+                // The request deadline has passed, stop streaming.
+                Thread.currentThread().interrupt();
+                return;
             }
         }
         sender.endChunkEncoding();
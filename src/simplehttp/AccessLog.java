@@ -0,0 +1,448 @@
+package simplehttp;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * An asynchronous access log that records one entry per handled request. The
+ * log can be created using the {@link Builder} class and attached to a server
+ * with {@link SimpleHttpServer.Builder#setAccessLog}.
+ *
+ * Request threads hand records to a background writer through a preallocated
+ * ring buffer, so recording an entry never blocks and never allocates. If the
+ * writer falls behind and the buffer is full, the entry is dropped and counted
+ * instead (see {@link #getDroppedCount()}). The writer drains the buffer in
+ * batches and rotates the log file once it exceeds the configured size.
+ *
+ * If the log file cannot be written, the writer reports the error, keeps
+ * draining the buffer and counts the entries it could not write (see
+ * {@link #getFailedCount()}), and reopens the file after a short backoff.
+ */
+public class AccessLog {
+
+    private static final DateTimeFormatter COMMON_TIME_FORMAT =
+            DateTimeFormatter.ofPattern("dd/MMM/yyyy:HH:mm:ss Z", Locale.US)
+                    .withZone(ZoneId.systemDefault());
+    private static final int MAX_BATCH_SIZE = 512;
+    private static final long IDLE_PARK_NANOS = 1_000_000;
+    private static final long REOPEN_BACKOFF_NANOS = 1_000_000_000;
+
+    private final Path file;
+    private final Format format;
+    private final long maxFileSize;
+    private final int maxFiles;
+
+    // The ring buffer: each slot is spread across these parallel arrays, and
+    // a slot is readable once its published sequence matches the reader's.
+    private final int capacity;
+    private final int mask;
+    private final String[] methods;
+    private final String[] paths;
+    private final String[] protocols;
+    private final int[] statusCodes;
+    private final long[] bytesSent;
+    private final long[] latencies;
+    private final long[] timestamps;
+    private final AtomicLongArray published;
+    private final AtomicLong claimed = new AtomicLong();
+    private volatile long consumed;
+
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    private final StringBuilder batch = new StringBuilder();
+    private OutputStream out;
+    private long fileSize;
+    private long reopenAtNanos;
+    private Thread writerThread;
+    private volatile boolean running;
+
+    private AccessLog(Path file, Format format, int capacity, long maxFileSize,
+                      int maxFiles) {
+        this.file = file;
+        this.format = format;
+        this.maxFileSize = maxFileSize;
+        this.maxFiles = maxFiles;
+        this.capacity = capacity;
+        this.mask = capacity - 1;
+        this.methods = new String[capacity];
+        this.paths = new String[capacity];
+        this.protocols = new String[capacity];
+        this.statusCodes = new int[capacity];
+        this.bytesSent = new long[capacity];
+        this.latencies = new long[capacity];
+        this.timestamps = new long[capacity];
+        this.published = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++) {
+            published.set(i, -1);
+        }
+    }
+
+    /**
+     * Returns the number of entries dropped because the buffer was full.
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * Returns the number of entries written to the log file.
+     */
+    public long getWrittenCount() {
+        return written.get();
+    }
+
+    /**
+     * Returns the number of entries lost because the log file could not be
+     * written.
+     */
+    public long getFailedCount() {
+        return failed.get();
+    }
+
+    // Records a single request. Called on the request thread, so this must
+    // never block or allocate.
+    void record(String method, String path, String protocol, int statusCode,
+                long bytes, long latencyNanos) {
+        long sequence;
+        do {
+            sequence = claimed.get();
+            if (sequence - consumed >= capacity) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!claimed.compareAndSet(sequence, sequence + 1));
+
+        int slot = (int) (sequence & mask);
+        methods[slot] = method;
+        paths[slot] = path;
+        protocols[slot] = protocol;
+        statusCodes[slot] = statusCode;
+        bytesSent[slot] = bytes;
+        latencies[slot] = latencyNanos;
+        timestamps[slot] = System.currentTimeMillis();
+        published.lazySet(slot, sequence);
+    }
+
+    // Opens the log file and starts the background writer.
+    synchronized void start() {
+        if (running) {
+            return;
+        }
+        try {
+            openFile();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        running = true;
+        writerThread = new Thread(this::runWriter, "simplehttp-access-log");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    // Stops the background writer after it has drained any pending entries.
+    synchronized void close() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void runWriter() {
+        while (running) {
+            if (drain() == 0) {
+                LockSupport.parkNanos(this, IDLE_PARK_NANOS);
+            }
+        }
+        while (drain() > 0) {
+            // Flush whatever was recorded before the log was closed.
+        }
+        closeFile();
+    }
+
+    // Formats and writes the next batch of published entries, returning the
+    // number of entries taken from the buffer, whether or not they could be
+    // written.
+    private int drain() {
+        long next = consumed;
+        int count = 0;
+        batch.setLength(0);
+        while (count < MAX_BATCH_SIZE) {
+            int slot = (int) (next & mask);
+            if (published.get(slot) != next) {
+                break;
+            }
+            appendEntry(slot);
+            methods[slot] = null;
+            paths[slot] = null;
+            protocols[slot] = null;
+            next++;
+            count++;
+        }
+        if (count == 0) {
+            return 0;
+        }
+        // Release the slots before doing any IO so producers are not held up
+        // by the file system.
+        consumed = next;
+
+        if (out == null && !reopen()) {
+            failed.addAndGet(count);
+            return count;
+        }
+        byte[] bytes = batch.toString().getBytes(StandardCharsets.UTF_8);
+        try {
+            out.write(bytes);
+            out.flush();
+        } catch (IOException e) {
+            failed.addAndGet(count);
+            fail(e);
+            return count;
+        }
+        fileSize += bytes.length;
+        written.addAndGet(count);
+        if (maxFileSize > 0 && fileSize >= maxFileSize) {
+            try {
+                rotate();
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+        return count;
+    }
+
+    // Reports that the log file can no longer be written and closes it, to
+    // be reopened once the backoff has passed.
+    private void fail(IOException e) {
+        e.printStackTrace();
+        closeFile();
+        reopenAtNanos = System.nanoTime() + REOPEN_BACKOFF_NANOS;
+    }
+
+    // Reopens the log file after a failure, returning false if the backoff
+    // has not passed yet or the file still cannot be opened.
+    private boolean reopen() {
+        if (System.nanoTime() - reopenAtNanos < 0) {
+            return false;
+        }
+        try {
+            openFile();
+            return true;
+        } catch (IOException e) {
+            // Already reported when the file failed, so just try later.
+            closeFile();
+            reopenAtNanos = System.nanoTime() + REOPEN_BACKOFF_NANOS;
+            return false;
+        }
+    }
+
+    private void closeFile() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.close();
+        } catch (IOException e) {
+            // The file is abandoned either way, there is nothing to retry.
+        }
+        out = null;
+    }
+
+    private void appendEntry(int slot) {
+        switch (format) {
+            case COMMON -> appendCommonEntry(slot);
+            case JSON -> appendJsonEntry(slot);
+        }
+        batch.append('\n');
+    }
+
+    // Common log format, with the latency in microseconds appended.
+    private void appendCommonEntry(int slot) {
+        batch.append("- - - [")
+                .append(COMMON_TIME_FORMAT.format(
+                        Instant.ofEpochMilli(timestamps[slot])))
+                .append("] \"")
+                .append(methods[slot]).append(' ')
+                .append(paths[slot]).append(' ')
+                .append(protocols[slot])
+                .append("\" ")
+                .append(statusCodes[slot]).append(' ')
+                .append(bytesSent[slot]).append(' ')
+                .append(latencies[slot] / 1000);
+    }
+
+    private void appendJsonEntry(int slot) {
+        batch.append("{\"time\":\"")
+                .append(Instant.ofEpochMilli(timestamps[slot]))
+                .append("\",\"method\":");
+        appendJsonString(methods[slot]);
+        batch.append(",\"path\":");
+        appendJsonString(paths[slot]);
+        batch.append(",\"protocol\":");
+        appendJsonString(protocols[slot]);
+        batch.append(",\"status\":").append(statusCodes[slot])
+                .append(",\"bytes\":").append(bytesSent[slot])
+                .append(",\"latencyMicros\":").append(latencies[slot] / 1000)
+                .append('}');
+    }
+
+    private void appendJsonString(String value) {
+        batch.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            switch (c) {
+                case '"' -> batch.append("\\\"");
+                case '\\' -> batch.append("\\\\");
+                default -> {
+                    if (c < 0x20) {
+                        batch.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        batch.append(c);
+                    }
+                }
+            }
+        }
+        batch.append('"');
+    }
+
+    private void openFile() throws IOException {
+        Path parent = file.toAbsolutePath().getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        out = Files.newOutputStream(file, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        fileSize = Files.size(file);
+    }
+
+    // Shifts log.1 -> log.2 and so on, discarding the oldest file, then moves
+    // the current log to log.1 and starts a fresh one.
+    private void rotate() throws IOException {
+        out.close();
+        if (maxFiles > 0) {
+            Files.deleteIfExists(rotatedFile(maxFiles));
+            for (int i = maxFiles - 1; i >= 1; i--) {
+                Path source = rotatedFile(i);
+                if (Files.exists(source)) {
+                    Files.move(source, rotatedFile(i + 1),
+                            StandardCopyOption.REPLACE_EXISTING);
+                }
+            }
+            Files.move(file, rotatedFile(1),
+                    StandardCopyOption.REPLACE_EXISTING);
+        } else {
+            Files.delete(file);
+        }
+        openFile();
+    }
+
+    private Path rotatedFile(int index) {
+        return file.resolveSibling(file.getFileName() + "." + index);
+    }
+
+    /**
+     * The output format of each log entry.
+     */
+    public enum Format {
+        /**
+         * The common log format, with the latency in microseconds appended.
+         */
+        COMMON,
+        /**
+         * One JSON object per line.
+         */
+        JSON,
+    }
+
+    /**
+     * Builder for creating a new {@link AccessLog}.
+     */
+    public static class Builder {
+
+        private Path file;
+        private Format format = Format.COMMON;
+        private int capacity = 8192;
+        private long maxFileSize = 64L * 1024 * 1024;
+        private int maxFiles = 5;
+
+        /**
+         * Sets the file that the log is written to.
+         */
+        public Builder setFile(Path file) {
+            this.file = file;
+            return this;
+        }
+
+        /**
+         * Sets the format of each log entry. Defaults to
+         * {@link Format#COMMON}.
+         */
+        public Builder setFormat(Format format) {
+            this.format = format;
+            return this;
+        }
+
+        /**
+         * Sets how many entries can be waiting to be written before new
+         * entries are dropped. Must be a power of two.
+         */
+        public Builder setCapacity(int capacity) {
+            this.capacity = capacity;
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes after which the log file is rotated. A
+         * 0-value disables rotation.
+         */
+        public Builder setMaxFileSize(long maxFileSize) {
+            this.maxFileSize = maxFileSize;
+            return this;
+        }
+
+        /**
+         * Sets how many rotated files are kept, in addition to the current
+         * log file.
+         */
+        public Builder setMaxFiles(int maxFiles) {
+            this.maxFiles = maxFiles;
+            return this;
+        }
+
+        /**
+         * Builds a new {@link AccessLog} from this builder.
+         */
+        public AccessLog build() {
+            if (file == null || format == null) {
+                String msg = "The file and format fields must be non-null";
+                throw new IllegalStateException(msg);
+            }
+            if (capacity <= 0 || Integer.bitCount(capacity) != 1) {
+                String msg = "Capacity must be a power of two but was "
+                        + capacity + ".";
+                throw new IllegalStateException(msg);
+            }
+            return new AccessLog(file, format, capacity, maxFileSize, maxFiles);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package simplehttp;
+
+import com.sun.net.httpserver.Filter;
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Caps the number of requests from a single client address that can be
+ * handled at once. A request over the cap is answered with a 429 Too Many
+ * Requests before it reaches its action, and its connection is closed, so
+ * one client cannot tie up every executor thread.
+ *
+ * As a filter, this only runs once the native implementation has read a
+ * request's headers. Open connections, idle or still sending headers, are
+ * not counted, so this is no defence against clients that hold connections
+ * open by sending their headers slowly.
+ */
+final class AddressLimiter extends Filter {
+
+    private final int maxPerAddress;
+    private final ProtectionStats stats;
+    private final ConcurrentHashMap<InetAddress, Integer> active =
+            new ConcurrentHashMap<>();
+
+    AddressLimiter(int maxPerAddress, ProtectionStats stats) {
+        this.maxPerAddress = maxPerAddress;
+        this.stats = stats;
+    }
+
+    @Override
+    public void doFilter(HttpExchange exchange, Chain chain) throws IOException {
+        InetAddress address = exchange.getRemoteAddress().getAddress();
+        if (!tryAcquire(address)) {
+            stats.recordAddressLimitRejection();
+            exchange.getResponseHeaders().set(HttpHeader.CONNECTION, "close");
+            exchange.sendResponseHeaders(HttpStatus.TOO_MANY_REQUESTS.code(), -1);
+            exchange.close();
+            return;
+        }
+        try {
+            chain.doFilter(exchange);
+        } finally {
+            release(address);
+        }
+    }
+
+    @Override
+    public String description() {
+        return "Caps the requests in progress per client address";
+    }
+
+    // Counts are only changed inside compute, which is atomic per address,
+    // so an entry cannot be removed while another thread is adding to it.
+    private boolean tryAcquire(InetAddress address) {
+        boolean[] acquired = new boolean[1];
+        active.compute(address, (key, count) -> {
+            int current = count == null ? 0 : count;
+            if (current >= maxPerAddress) {
+                return count;
+            }
+            acquired[0] = true;
+            return current + 1;
+        });
+        return acquired[0];
+    }
+
+    // Removes the entry once the address has nothing in progress, so the
+    // map only holds addresses with requests in progress.
+    private void release(InetAddress address) {
+        active.computeIfPresent(address,
+                (key, count) -> count == 1 ? null : count - 1);
+    }
+}
@@ -0,0 +1,252 @@
+package simplehttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.stream.Stream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * An immutable, preloaded set of static assets, such as a front-end bundle,
+ * served by an {@link AssetBundleAction}. Everything needed to answer a
+ * request is prepared when the bundle is created: each asset's content,
+ * Content-Type, ETag and, for compressible types, a gzip variant. Serving a
+ * request is then a single map lookup with no file system calls.
+ *
+ * Files from a directory are memory-mapped, so their content lives in the
+ * page cache rather than on the heap, except for files smaller than a page,
+ * which are cheaper to hold on the heap. Assets from a jar are compressed
+ * inside the jar and are always read onto the heap.
+ *
+ * Files are expected not to change while the bundle is in use; a changed
+ * file must be picked up by creating a new bundle.
+ */
+public final class AssetBundle {
+
+    private static final int MAP_THRESHOLD = 4096;
+    private static final int MIN_GZIP_SIZE = 256;
+    private static final String DEFAULT_CONTENT_TYPE = "application/octet-stream";
+    private static final Map<String, String> CONTENT_TYPES = Map.ofEntries(
+            Map.entry("html", "text/html; charset=utf-8"),
+            Map.entry("htm", "text/html; charset=utf-8"),
+            Map.entry("css", "text/css; charset=utf-8"),
+            Map.entry("js", "text/javascript; charset=utf-8"),
+            Map.entry("mjs", "text/javascript; charset=utf-8"),
+            Map.entry("json", "application/json"),
+            Map.entry("map", "application/json"),
+            Map.entry("txt", "text/plain; charset=utf-8"),
+            Map.entry("xml", "application/xml"),
+            Map.entry("svg", "image/svg+xml"),
+            Map.entry("png", "image/png"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("jpeg", "image/jpeg"),
+            Map.entry("gif", "image/gif"),
+            Map.entry("webp", "image/webp"),
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("woff", "font/woff"),
+            Map.entry("woff2", "font/woff2"),
+            Map.entry("ttf", "font/ttf"),
+            Map.entry("wasm", "application/wasm"),
+            Map.entry("pdf", "application/pdf"));
+    // Types that are already compressed gain nothing from gzip.
+    private static final List<String> COMPRESSIBLE_PREFIXES = List.of(
+            "text/", "application/json", "application/xml",
+            "application/wasm", "image/svg+xml", "image/x-icon", "font/ttf");
+
+    private final Map<String, Asset> assets;
+    private final long totalSize;
+
+    private AssetBundle(Map<String, Asset> assets) {
+        this.assets = Map.copyOf(assets);
+        this.totalSize = assets.values().stream()
+                .mapToLong(asset -> asset.content.remaining())
+                .sum();
+    }
+
+    /**
+     * Creates a bundle of every regular file under the given directory,
+     * keyed by its path relative to the directory, for example
+     * "js/app.js".
+     * @throws UncheckedIOException if the directory cannot be read.
+     */
+    public static AssetBundle fromDirectory(Path directory) {
+        Map<String, Asset> assets = new HashMap<>();
+        try (Stream<Path> files = Files.walk(directory)) {
+            for (Path file : (Iterable<Path>) files::iterator) {
+                if (!Files.isRegularFile(file)) {
+                    continue;
+                }
+                String name = directory.relativize(file).toString()
+                        .replace(file.getFileSystem().getSeparator(), "/");
+                assets.put(name, createAsset(name, readOrMap(file)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new AssetBundle(assets);
+    }
+
+    /**
+     * Creates a bundle of every entry in the given jar under the given
+     * prefix, such as "static/", keyed by its path relative to the prefix.
+     * @throws UncheckedIOException if the jar cannot be read.
+     */
+    public static AssetBundle fromJar(Path jar, String prefix) {
+        Map<String, Asset> assets = new HashMap<>();
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory() || !entry.getName().startsWith(prefix)) {
+                    continue;
+                }
+                String name = entry.getName().substring(prefix.length());
+                byte[] content = jarFile.getInputStream(entry).readAllBytes();
+                assets.put(name, createAsset(name, ByteBuffer.wrap(content)));
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return new AssetBundle(assets);
+    }
+
+    /**
+     * Returns the number of assets in the bundle.
+     */
+    public int size() {
+        return assets.size();
+    }
+
+    /**
+     * Returns the total size in bytes of the uncompressed assets.
+     */
+    public long getTotalSize() {
+        return totalSize;
+    }
+
+    /**
+     * Returns true if the bundle has an asset with the given relative path.
+     */
+    public boolean contains(String path) {
+        return assets.containsKey(path);
+    }
+
+    // Returns all assets, keyed by their relative paths.
+    Map<String, Asset> getAssets() {
+        return assets;
+    }
+
+    private static ByteBuffer readOrMap(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file,
+                StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size < MAP_THRESHOLD) {
+                return ByteBuffer.wrap(Files.readAllBytes(file));
+            }
+            if (size > Integer.MAX_VALUE) {
+                String msg = "Asset " + file + " is larger than 2GB.";
+                throw new IllegalArgumentException(msg);
+            }
+            // The mapping stays valid after the channel is closed.
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+    }
+
+    private static Asset createAsset(String name, ByteBuffer content) {
+        String contentType = contentTypeFor(name);
+        String digest = digest(content);
+        ByteBuffer gzipped = isCompressible(contentType)
+                && content.remaining() >= MIN_GZIP_SIZE
+                ? gzip(content)
+                : null;
+        // Only worth sending if it saves at least a tenth of the size.
+        if (gzipped != null
+                && gzipped.remaining() > content.remaining() * 9L / 10) {
+            gzipped = null;
+        }
+        // The buffers never leave the package and are only ever read
+        // through duplicates, so heap content keeps its backing array and
+        // is written straight from it rather than copied through a window.
+        return new Asset(content, contentType, "\"" + digest + "\"",
+                gzipped,
+                gzipped == null ? null : "\"" + digest + "-gz\"");
+    }
+
+    private static String contentTypeFor(String name) {
+        int dot = name.lastIndexOf('.');
+        if (dot < 0 || dot < name.lastIndexOf('/')) {
+            return DEFAULT_CONTENT_TYPE;
+        }
+        String extension = name.substring(dot + 1).toLowerCase(Locale.ROOT);
+        return CONTENT_TYPES.getOrDefault(extension, DEFAULT_CONTENT_TYPE);
+    }
+
+    private static boolean isCompressible(String contentType) {
+        return COMPRESSIBLE_PREFIXES.stream().anyMatch(contentType::startsWith);
+    }
+
+    private static String digest(ByteBuffer content) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(content.duplicate());
+            byte[] hash = sha256.digest();
+            // 128 bits is plenty to tell versions of one asset apart.
+            return HexFormat.of().formatHex(hash, 0, 16);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteBuffer gzip(ByteBuffer content) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                content.remaining() / 2);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(bytes)) {
+            ByteBuffer source = content.duplicate();
+            byte[] window = new byte[8192];
+            while (source.hasRemaining()) {
+                int n = Math.min(window.length, source.remaining());
+                source.get(window, 0, n);
+                gzip.write(window, 0, n);
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /**
+     * A single asset and its precomputed variants and headers.
+     */
+    static final class Asset {
+
+        final ByteBuffer content;
+        final String contentType;
+        final String etag;
+        final ByteBuffer gzipContent;
+        final String gzipEtag;
+
+        private Asset(ByteBuffer content, String contentType, String etag,
+                      ByteBuffer gzipContent, String gzipEtag) {
+            this.content = content;
+            this.contentType = contentType;
+            this.etag = etag;
+            this.gzipContent = gzipContent;
+            this.gzipEtag = gzipEtag;
+        }
+    }
+}
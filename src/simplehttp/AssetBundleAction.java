@@ -0,0 +1,198 @@
+package simplehttp;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An action that serves the static assets of an {@link AssetBundle} below
+ * its resource path. For example, with a resource path of "/static", a GET
+ * for "/static/js/app.js" is answered with the bundle's "js/app.js" asset.
+ * A path ending in "/" is answered with that directory's "index.html".
+ *
+ * All response headers are built when the action is created, so a request
+ * costs a map lookup and a write of the asset's content, with no file system
+ * calls. Clients that accept gzip are sent the precompressed variant, where
+ * the bundle has one, and a request whose If-None-Match header matches the
+ * asset's ETag is answered with a 304 Not Modified and no body.
+ *
+ * The action is bound to its path like any other action:
+ * <pre>
+ * &#64;ForResource(path = "/static")
+ * public class StaticAssets extends AssetBundleAction {
+ *     public StaticAssets() {
+ *         super(AssetBundle.fromDirectory(Path.of("web")), "max-age=3600");
+ *     }
+ * }
+ * </pre>
+ */
+public abstract class AssetBundleAction extends SimpleAction {
+
+    private static final String INDEX = "index.html";
+    private static final String GZIP = "gzip";
+
+    private final String resourcePath;
+    private final Map<String, PreparedAsset> assets;
+    private final SimpleResponse notFound;
+
+    /**
+     * Creates an action serving the given bundle without a Cache-Control
+     * header, leaving clients to revalidate using the ETag.
+     */
+    protected AssetBundleAction(AssetBundle bundle) {
+        this(bundle, null);
+    }
+
+    /**
+     * Creates an action serving the given bundle, sending the given
+     * Cache-Control value with every asset.
+     */
+    protected AssetBundleAction(AssetBundle bundle, String cacheControl) {
+        String path = getResourcePath();
+        this.resourcePath = path.endsWith("/") ? path : path + "/";
+        Map<String, PreparedAsset> prepared = new HashMap<>();
+        bundle.getAssets().forEach((name, asset) ->
+                prepared.put(name, new PreparedAsset(asset, cacheControl)));
+        this.assets = Map.copyOf(prepared);
+        this.notFound = new SimpleResponse.Builder()
+                .setStatusCode(HttpStatus.NOT_FOUND)
+                .build();
+    }
+
+    @Override
+    public void handleGet(SimpleRequest request, ResponseSender responseSender) {
+        PreparedAsset asset = assets.get(assetName(request.getUri().getPath()));
+        if (asset == null) {
+            responseSender.send(notFound);
+            return;
+        }
+        SimpleHeaders requestHeaders = request.getHeaders();
+        Variant variant = asset.gzip != null && acceptsGzip(
+                requestHeaders.getFirstIgnoreCase(HttpHeader.ACCEPT_ENCODING))
+                ? asset.gzip
+                : asset.identity;
+        if (matches(requestHeaders.getFirstIgnoreCase(HttpHeader.IF_NONE_MATCH),
+                variant.etag)) {
+            responseSender.send(variant.notModified);
+            return;
+        }
+        responseSender.sendBuffer(HttpStatus.OK, variant.headers, variant.body);
+    }
+
+    // Maps a request path to the asset's name in the bundle.
+    private String assetName(String path) {
+        if (path == null) {
+            return INDEX;
+        }
+        String name = path.startsWith(resourcePath)
+                ? path.substring(resourcePath.length())
+                : "";
+        return name.isEmpty() || name.endsWith("/") ? name + INDEX : name;
+    }
+
+    // Returns true if the Accept-Encoding header lists gzip without
+    // refusing it with a zero quality. A quality that is not a number is
+    // ignored, as if gzip were listed without one.
+    private static boolean acceptsGzip(String acceptEncoding) {
+        if (acceptEncoding == null) {
+            return false;
+        }
+        for (String coding : acceptEncoding.split(",")) {
+            String[] parts = coding.split(";");
+            if (parts[0].trim().equalsIgnoreCase(GZIP)) {
+                for (int i = 1; i < parts.length; i++) {
+                    String parameter = parts[i].trim();
+                    if (parameter.startsWith("q=")
+                            && isZeroQuality(parameter.substring(2))) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isZeroQuality(String quality) {
+        try {
+            return Double.parseDouble(quality.trim()) == 0;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    // Compares the If-None-Match header to the ETag, using the weak
+    // comparison required for conditional GETs.
+    private static boolean matches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null) {
+            return false;
+        }
+        for (String tag : ifNoneMatch.split(",")) {
+            String trimmed = tag.trim();
+            if (trimmed.startsWith("W/")) {
+                trimmed = trimmed.substring(2);
+            }
+            if (trimmed.equals("*") || trimmed.equals(etag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // An asset with the headers of each of its variants built up front.
+    private static class PreparedAsset {
+
+        private final Variant identity;
+        private final Variant gzip;
+
+        private PreparedAsset(AssetBundle.Asset asset, String cacheControl) {
+            boolean hasGzip = asset.gzipContent != null;
+            this.identity = new Variant(asset.content, asset.contentType,
+                    asset.etag, null, hasGzip, cacheControl);
+            this.gzip = hasGzip
+                    ? new Variant(asset.gzipContent, asset.contentType,
+                            asset.gzipEtag, GZIP, true, cacheControl)
+                    : null;
+        }
+    }
+
+    private static class Variant {
+
+        private final ByteBuffer body;
+        private final String etag;
+        private final SimpleHeaders headers;
+        private final SimpleResponse notModified;
+
+        private Variant(ByteBuffer body, String contentType, String etag,
+                        String contentEncoding, boolean vary,
+                        String cacheControl) {
+            this.body = body;
+            this.etag = etag;
+            this.notModified = new SimpleResponse.Builder()
+                    .setStatusCode(HttpStatus.NOT_MODIFIED)
+                    .setHeaders(validators(etag, vary, cacheControl).build())
+                    .build();
+            SimpleHeaders.Builder headers = validators(etag, vary, cacheControl)
+                    .set(HttpHeader.CONTENT_TYPE, contentType);
+            if (contentEncoding != null) {
+                headers.set(HttpHeader.CONTENT_ENCODING, contentEncoding);
+            }
+            this.headers = headers.build();
+        }
+
+        // The headers sent with both full and 304 responses.
+        private static SimpleHeaders.Builder validators(String etag,
+                                                        boolean vary,
+                                                        String cacheControl) {
+            SimpleHeaders.Builder headers = new SimpleHeaders.Builder()
+                    .set(HttpHeader.ETAG, etag);
+            if (vary) {
+                headers.set(HttpHeader.VARY, HttpHeader.ACCEPT_ENCODING);
+            }
+            if (cacheControl != null) {
+                headers.set(HttpHeader.CACHE_CONTROL, cacheControl);
+            }
+            return headers;
+        }
+    }
+}
@@ -0,0 +1,342 @@
+package simplehttp;
+
+import com.sun.management.HotSpotDiagnosticMXBean;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decides where request bodies are kept while their requests are handled,
+ * so that large uploads do not fill the heap. Small bodies are read into a
+ * byte array as usual. Larger ones are read into chunks of direct memory
+ * outside the heap, and those too large for direct memory, or arriving
+ * while the shared direct memory budget is used up, are spilled to a
+ * temporary file that is mapped into memory when read as a buffer. The body
+ * buffers can be created using the {@link Builder} class and set on the
+ * server with {@link SimpleHttpServer.Builder#setBodyBuffers}.
+ *
+ * Whichever way a body is kept, handlers can read it without copying it to
+ * the heap through {@link SimpleRequest#getBodyChannel()}. A body that fits
+ * in a single chunk, or was spilled, can also be read in place through
+ * {@link SimpleRequest#getBodyBuffer()}; a body spread over several chunks
+ * is copied to the heap the first time it is read that way.
+ *
+ * The direct memory budget is shared by every request of every server the
+ * body buffers are set on. Chunks are allocated only while the budget
+ * allows, and are pooled and lent to the next request once the request
+ * holding them has been handled, rather than left for the garbage collector
+ * to free. So no more direct memory than the budget is ever allocated for
+ * bodies, and uploads cause no garbage collections of their own. Should
+ * the JVM's own direct memory limit be reached first, for example because
+ * other direct buffers use it up, bodies are spilled as if the budget were.
+ */
+public final class BodyBuffers {
+
+    private final int maxHeapBodySize;
+    private final int maxDirectBodySize;
+    private final int directChunkSize;
+    private final long directMemoryBudget;
+    private final long maxBodySize;
+    private final Path spillDirectory;
+
+    private final BufferPool chunkPool;
+    private final AtomicLong directBytesReserved = new AtomicLong();
+    private final LongAdder heapBodies = new LongAdder();
+    private final LongAdder directBodies = new LongAdder();
+    private final LongAdder spilledBodies = new LongAdder();
+    private final LongAdder budgetExhaustions = new LongAdder();
+
+    private BodyBuffers(Builder builder) {
+        this.maxHeapBodySize = builder.maxHeapBodySize;
+        this.maxDirectBodySize = builder.maxDirectBodySize;
+        this.directChunkSize = builder.directChunkSize;
+        this.directMemoryBudget = builder.directMemoryBudget;
+        this.maxBodySize = builder.maxBodySize;
+        this.spillDirectory = builder.spillDirectory;
+        // Every chunk in use is within the budget, and chunks are only
+        // allocated when none is idle, so the pool never holds more.
+        this.chunkPool = new BufferPool(directChunkSize,
+                (int) Math.min(Integer.MAX_VALUE,
+                        directMemoryBudget / directChunkSize));
+    }
+
+    /**
+     * Returns body buffers using the default sizes and budget.
+     */
+    public static BodyBuffers createDefault() {
+        return new Builder().build();
+    }
+
+    /**
+     * Returns the size in bytes up to which a body is kept on the heap.
+     */
+    public int getMaxHeapBodySize() {
+        return maxHeapBodySize;
+    }
+
+    /**
+     * Returns the size in bytes up to which a body is kept in direct
+     * memory, budget permitting.
+     */
+    public int getMaxDirectBodySize() {
+        return maxDirectBodySize;
+    }
+
+    /**
+     * Returns the size in bytes of the chunks of direct memory that bodies
+     * are read into.
+     */
+    public int getDirectChunkSize() {
+        return directChunkSize;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory that all bodies together
+     * may hold at any time.
+     */
+    public long getDirectMemoryBudget() {
+        return directMemoryBudget;
+    }
+
+    /**
+     * Returns the maximum size in bytes of a request body. Larger bodies
+     * end the request with a 413 Payload Too Large.
+     */
+    public long getMaxBodySize() {
+        return maxBodySize;
+    }
+
+    /**
+     * Returns the directory that large bodies are spilled to, or null to
+     * use the system's temporary directory.
+     */
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Returns the number of bytes of direct memory currently held by
+     * bodies, in whole chunks.
+     */
+    public long getDirectBytesInUse() {
+        return directBytesReserved.get();
+    }
+
+    /**
+     * Returns the number of bodies kept on the heap.
+     */
+    public long getHeapBodyCount() {
+        return heapBodies.sum();
+    }
+
+    /**
+     * Returns the number of bodies kept in direct memory.
+     */
+    public long getDirectBodyCount() {
+        return directBodies.sum();
+    }
+
+    /**
+     * Returns the number of bodies spilled to a temporary file.
+     */
+    public long getSpilledBodyCount() {
+        return spilledBodies.sum();
+    }
+
+    /**
+     * Returns the number of times a body was spilled to a file, although
+     * small enough for direct memory, because the budget or the JVM's direct
+     * memory was used up.
+     */
+    public long getBudgetExhaustionCount() {
+        return budgetExhaustions.sum();
+    }
+
+    // Takes a cleared chunk from the pool, or returns null if the budget
+    // has no room for another.
+    ByteBuffer acquireChunk() {
+        long reserved;
+        do {
+            reserved = directBytesReserved.get();
+            if (reserved + directChunkSize > directMemoryBudget) {
+                budgetExhaustions.increment();
+                return null;
+            }
+        } while (!directBytesReserved.compareAndSet(reserved,
+                reserved + directChunkSize));
+        try {
+            return chunkPool.acquire();
+        } catch (OutOfMemoryError e) {
+            // The JVM's direct memory limit was reached within the budget.
+            directBytesReserved.addAndGet(-directChunkSize);
+            budgetExhaustions.increment();
+            return null;
+        }
+    }
+
+    // Gives a chunk taken with acquireChunk back to the pool and budget.
+    void releaseChunk(ByteBuffer chunk) {
+        chunkPool.release(chunk);
+        directBytesReserved.addAndGet(-directChunkSize);
+    }
+
+    // Creates a temporary file to spill a body to, which is deleted when
+    // the returned channel is closed.
+    FileChannel createSpillFile() throws IOException {
+        Path file = spillDirectory == null
+                ? Files.createTempFile("simplehttp-", ".body")
+                : Files.createTempFile(spillDirectory, "simplehttp-", ".body");
+        try {
+            return FileChannel.open(file, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE,
+                    StandardOpenOption.DELETE_ON_CLOSE);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+    }
+
+    // Counts a body by where it ended up being kept.
+    void recordHeapBody() {
+        heapBodies.increment();
+    }
+
+    void recordDirectBody() {
+        directBodies.increment();
+    }
+
+    void recordSpilledBody() {
+        spilledBodies.increment();
+    }
+
+    /**
+     * Builder for creating new {@link BodyBuffers}.
+     */
+    public static class Builder {
+
+        private int maxHeapBodySize = 64 * 1024;
+        private int maxDirectBodySize = 16 * 1024 * 1024;
+        private int directChunkSize = 1024 * 1024;
+        private long directMemoryBudget = Math.min(256L * 1024 * 1024,
+                maxDirectMemory() / 2);
+        private long maxBodySize = Long.MAX_VALUE;
+        private Path spillDirectory;
+
+        /**
+         * Sets the size in bytes up to which a body is kept on the heap.
+         * Defaults to 64 KB.
+         */
+        public Builder setMaxHeapBodySize(int maxHeapBodySize) {
+            this.maxHeapBodySize = maxHeapBodySize;
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes up to which a body is kept in direct
+         * memory, budget permitting, before it is spilled to a file.
+         * Defaults to 16 MB.
+         */
+        public Builder setMaxDirectBodySize(int maxDirectBodySize) {
+            this.maxDirectBodySize = maxDirectBodySize;
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes of the chunks of direct memory that bodies
+         * are read into. A body that fits in one chunk can be read as a
+         * single buffer in place. Defaults to 1 MB.
+         */
+        public Builder setDirectChunkSize(int directChunkSize) {
+            this.directChunkSize = directChunkSize;
+            return this;
+        }
+
+        /**
+         * Sets the number of bytes of direct memory that all bodies
+         * together may hold at any time. Bodies that do not fit in what is
+         * left are spilled to a file. Defaults to 256 MB, or half the JVM's
+         * direct memory limit if that is less, leaving the rest to other
+         * direct buffers.
+         */
+        public Builder setDirectMemoryBudget(long directMemoryBudget) {
+            this.directMemoryBudget = directMemoryBudget;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size in bytes of a request body. Larger bodies
+         * end the request with a 413 Payload Too Large. Unlimited by
+         * default.
+         */
+        public Builder setMaxBodySize(long maxBodySize) {
+            this.maxBodySize = maxBodySize;
+            return this;
+        }
+
+        /**
+         * Sets the directory that large bodies are spilled to. A null
+         * directory, the default, uses the system's temporary directory.
+         */
+        public Builder setSpillDirectory(Path spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        /**
+         * Builds new {@link BodyBuffers} from this builder.
+         */
+        public BodyBuffers build() {
+            if (maxHeapBodySize < 0) {
+                String msg = "The maxHeapBodySize field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            if (maxDirectBodySize < maxHeapBodySize) {
+                String msg = "The maxDirectBodySize field must be at least "
+                        + "the maxHeapBodySize";
+                throw new IllegalStateException(msg);
+            }
+
+            if (directChunkSize <= 0) {
+                String msg = "The directChunkSize field must be positive";
+                throw new IllegalStateException(msg);
+            }
+
+            if (directMemoryBudget < 0) {
+                String msg = "The directMemoryBudget field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            if (maxBodySize < 0) {
+                String msg = "The maxBodySize field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            return new BodyBuffers(this);
+        }
+
+        // Returns the JVM's direct memory limit, which is the maximum heap
+        // size unless set with -XX:MaxDirectMemorySize.
+        private static long maxDirectMemory() {
+            try {
+                String value = ManagementFactory
+                        .getPlatformMXBean(HotSpotDiagnosticMXBean.class)
+                        .getVMOption("MaxDirectMemorySize").getValue();
+                long limit = Long.parseLong(value);
+                if (limit > 0) {
+                    return limit;
+                }
+            } catch (RuntimeException e) {
+                // Not a HotSpot JVM, fall back to its default.
+            }
+            return Runtime.getRuntime().maxMemory();
+        }
+    }
+}
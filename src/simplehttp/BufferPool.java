@@ -0,0 +1,52 @@
+package simplehttp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A pool of equally sized direct buffers. Direct buffers are costly to
+ * allocate and are only freed once collected, so buffers needed for a short
+ * time are borrowed from the pool and given back rather than allocated
+ * each time. At most a fixed number of idle buffers are kept.
+ */
+final class BufferPool {
+
+    private final int bufferSize;
+    private final int maxIdle;
+    private final ConcurrentLinkedQueue<ByteBuffer> idle =
+            new ConcurrentLinkedQueue<>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+
+    BufferPool(int bufferSize, int maxIdle) {
+        this.bufferSize = bufferSize;
+        this.maxIdle = maxIdle;
+    }
+
+    int getBufferSize() {
+        return bufferSize;
+    }
+
+    // Returns a cleared buffer, from the pool if one is idle.
+    ByteBuffer acquire() {
+        ByteBuffer buffer = idle.poll();
+        if (buffer == null) {
+            return ByteBuffer.allocateDirect(bufferSize);
+        }
+        idleCount.decrementAndGet();
+        return buffer.clear();
+    }
+
+    // Gives a buffer back to the pool. Buffers that did not come from the
+    // pool are ignored, as are any beyond the idle limit.
+    void release(ByteBuffer buffer) {
+        if (!buffer.isDirect() || buffer.capacity() != bufferSize) {
+            return;
+        }
+        if (idleCount.incrementAndGet() > maxIdle) {
+            idleCount.decrementAndGet();
+            return;
+        }
+        idle.offer(buffer);
+    }
+}
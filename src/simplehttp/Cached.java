@@ -0,0 +1,31 @@
+package simplehttp;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables caching of an action's GET responses in the server's
+ * {@link ResponseCache}, which is shared with other servers when it has a
+ * {@link RemoteCache}. HEAD requests are answered from the same entries. The
+ * cache must be set with {@link SimpleHttpServer.Builder#setResponseCache};
+ * without one, this annotation has no effect.
+ *
+ * The key is made of the request path, the raw query string, and the values
+ * of the headers listed in {@code varyHeaders}. Any header that changes the
+ * response, such as Authorization or Accept-Language, must be listed.
+ *
+ * Only 200 OK responses sent with {@link ResponseSender#send} are stored,
+ * and only if they have no Set-Cookie header and their Cache-Control does
+ * not forbid storing them. Stored responses are served for
+ * {@code ttlMillis}, or until their path is invalidated with
+ * {@link ResponseCache#invalidate(String)}.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface Cached {
+    long ttlMillis() default 60_000;
+
+    String[] varyHeaders() default {};
+}
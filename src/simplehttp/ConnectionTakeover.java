@@ -0,0 +1,144 @@
+package simplehttp;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpsExchange;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Set;
+
+/**
+ * Takes a connection away from the native server after its request, so it
+ * can be used for another protocol such as WebSocket. The native server
+ * offers no way to do this: it treats a 101 Switching Protocols like any
+ * other response and goes on to read the next request from the connection.
+ * Instead, the switching response is written straight to the socket and the
+ * connection is removed from the server's bookkeeping, so it is neither
+ * timed out nor read from again.
+ *
+ * Like {@link ListenerFactory}, this reaches into the native implementation
+ * and requires the JVM to be started with:
+ * <pre>
+ * --add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED
+ * </pre>
+ * Connections of an HTTPS server cannot be taken over, as their TLS state
+ * belongs to the native server.
+ */
+final class ConnectionTakeover {
+
+    private static final String ADD_OPENS_HINT = "Start the JVM with "
+            + "--add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED "
+            + "to upgrade connections.";
+
+    private ConnectionTakeover() { /* Utility class not meant to be instantiated */ }
+
+    // Returns false for HTTPS exchanges, whose connections are wrapped in
+    // the native server's TLS layer and cannot be handed over.
+    static boolean canTakeOver(HttpExchange exchange) {
+        return !(exchange instanceof HttpsExchange);
+    }
+
+    // Writes the given switching response to the exchange's connection and
+    // takes the connection over. The returned connection's channel is in
+    // non-blocking mode. The native server still closes it when stopped.
+    // Callers must check canTakeOver first.
+    static TakenConnection takeOver(HttpExchange exchange, byte[] response)
+            throws IOException {
+        if (!canTakeOver(exchange)) {
+            String msg = "Connections of an HTTPS server cannot be upgraded.";
+            throw new IllegalStateException(msg);
+        }
+        Object impl = read(exchange, "impl");
+        Object connection = read(impl, "connection");
+        Object server = read(impl, "server");
+        SocketChannel channel = (SocketChannel) read(connection, "chan");
+        InputStream rawIn = (InputStream) read(impl, "ris");
+        Set<?> requests = (Set<?>) read(server, "reqConnections");
+        Set<?> responses = (Set<?>) read(server, "rspConnections");
+        Set<?> all = (Set<?>) read(server, "allConnections");
+
+        ByteBuffer out = ByteBuffer.wrap(response);
+        while (out.hasRemaining()) {
+            channel.write(out);
+        }
+        requests.remove(connection);
+        responses.remove(connection);
+        invoke(server, "endExchange");
+
+        // Bytes the native server read past the request, normally none as
+        // clients wait for the switching response before sending more.
+        byte[] leftover = new byte[Math.max(0, rawIn.available())];
+        int read = leftover.length == 0 ? 0 : rawIn.read(leftover);
+        channel.configureBlocking(false);
+        return new TakenConnection(channel,
+                ByteBuffer.wrap(leftover, 0, Math.max(0, read)),
+                () -> all.remove(connection));
+    }
+
+    private static Object read(Object target, String name) {
+        for (Class<?> type = target.getClass(); type != null;
+                type = type.getSuperclass()) {
+            try {
+                Field field = type.getDeclaredField(name);
+                field.setAccessible(true);
+                return field.get(target);
+            } catch (NoSuchFieldException e) {
+                // Keep searching the superclasses.
+            } catch (RuntimeException | IllegalAccessException e) {
+                throw new IllegalStateException(ADD_OPENS_HINT, e);
+            }
+        }
+        String msg = "Cannot find field " + name + ". " + ADD_OPENS_HINT;
+        throw new IllegalStateException(msg);
+    }
+
+    private static void invoke(Object target, String name) {
+        try {
+            Method method = target.getClass().getDeclaredMethod(name);
+            method.setAccessible(true);
+            method.invoke(target);
+        } catch (RuntimeException | ReflectiveOperationException e) {
+            throw new IllegalStateException(ADD_OPENS_HINT, e);
+        }
+    }
+
+    /**
+     * A connection taken over from the native server.
+     */
+    static final class TakenConnection {
+
+        private final SocketChannel channel;
+        private final ByteBuffer leftover;
+        private final Runnable release;
+
+        private TakenConnection(SocketChannel channel, ByteBuffer leftover,
+                                Runnable release) {
+            this.channel = channel;
+            this.leftover = leftover;
+            this.release = release;
+        }
+
+        SocketChannel getChannel() {
+            return channel;
+        }
+
+        // Returns the bytes received after the request, ready to be read.
+        ByteBuffer getLeftover() {
+            return leftover;
+        }
+
+        // Closes the connection and forgets it in the native server.
+        void close() {
+            release.run();
+            try {
+                channel.close();
+            } catch (IOException e) {
+                // Nothing more can be done with a connection being closed.
+            }
+        }
+    }
+}
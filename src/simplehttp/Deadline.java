@@ -0,0 +1,113 @@
+package simplehttp;
+
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+
+/**
+ * A point in time by which a request must be completed. Each
+ * {@link SimpleRequest} carries the deadline assigned to it by the server,
+ * which handlers can use to size any downstream calls they make, for example:
+ * <pre>
+ * Duration budget = request.getDeadline().remaining();
+ * </pre>
+ *
+ * Deadlines are measured against {@link System#nanoTime()} and are therefore
+ * only meaningful within the current process.
+ */
+public final class Deadline {
+
+    private static final Deadline NONE = new Deadline(0, false);
+
+    private final long expiresAtNanos;
+    private final boolean bounded;
+
+    private Deadline(long expiresAtNanos, boolean bounded) {
+        this.expiresAtNanos = expiresAtNanos;
+        this.bounded = bounded;
+    }
+
+    /**
+     * Returns a deadline that never expires.
+     */
+    public static Deadline none() {
+        return NONE;
+    }
+
+    /**
+     * Returns a deadline that expires after the given duration from now.
+     */
+    public static Deadline after(Duration timeout) {
+        return afterNanos(System.nanoTime(), timeout.toNanos());
+    }
+
+    // Returns a deadline that expires the given number of nanoseconds after
+    // the given start time.
+    static Deadline afterNanos(long startNanos, long timeoutNanos) {
+        return new Deadline(startNanos + timeoutNanos, true);
+    }
+
+    /**
+     * Returns true if this deadline has an expiry time, or false if it never
+     * expires.
+     */
+    public boolean isBounded() {
+        return bounded;
+    }
+
+    /**
+     * Returns true if the deadline has passed.
+     */
+    public boolean isExpired() {
+        return bounded && remainingNanos() <= 0;
+    }
+
+    /**
+     * Returns the time left until the deadline, or {@link Duration#ZERO} if
+     * it has already passed. An unbounded deadline returns
+     * {@link ChronoUnit#FOREVER}'s duration.
+     */
+    public Duration remaining() {
+        if (!bounded) {
+            return ChronoUnit.FOREVER.getDuration();
+        }
+        return Duration.ofNanos(Math.max(0, remainingNanos()));
+    }
+
+    /**
+     * Returns the time left until the deadline in milliseconds, or 0 if it
+     * has already passed. An unbounded deadline returns
+     * {@link Long#MAX_VALUE}.
+     */
+    public long remainingMillis() {
+        if (!bounded) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, remainingNanos() / 1_000_000);
+    }
+
+    /**
+     * Returns whichever of this deadline and the given deadline expires
+     * first.
+     */
+    public Deadline min(Deadline other) {
+        if (!bounded) {
+            return other;
+        }
+        if (!other.bounded) {
+            return this;
+        }
+        return expiresAtNanos - other.expiresAtNanos <= 0 ? this : other;
+    }
+
+    // Returns the nanoseconds until expiry, negative if already expired.
+    // Only valid for bounded deadlines.
+    long remainingNanos() {
+        return expiresAtNanos - System.nanoTime();
+    }
+
+    @Override
+    public String toString() {
+        return bounded ? "Deadline[remaining=" + remaining() + "]"
+                : "Deadline[none]";
+    }
+}
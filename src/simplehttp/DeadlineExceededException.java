@@ -0,0 +1,14 @@
+package simplehttp;
+
+/**
+ * Thrown when a handler tries to send a response after its request deadline
+ * has passed and the server has already answered the client on its behalf.
+ */
+public class DeadlineExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public DeadlineExceededException(String message) {
+        super(message);
+    }
+}
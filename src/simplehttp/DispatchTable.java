@@ -0,0 +1,191 @@
+package simplehttp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Maps request methods to the handlers of a single action. The table is
+ * built once, when the action is registered, by checking which of the
+ * action's handle methods are overridden and which methods are marked with
+ * {@link HandlesMethod}, so dispatching a request is a single map lookup.
+ *
+ * For actions marked with {@link SingleFlight}, the GET handler is wrapped
+ * by a {@link RequestCoalescer}.
+ *
+ * HEAD is served by the GET handler with the body left out, and OPTIONS is
+ * answered by the server itself, including CORS preflight requests, unless
+ * the action handles either of them explicitly. Any other method without a
+ * handler is answered with a 405 Method Not Allowed.
+ */
+final class DispatchTable {
+
+    private static final String PREFLIGHT_MAX_AGE_SECONDS = "600";
+
+    private final Map<String, Handler> handlers;
+    private final String allow;
+    private final Set<String> allowedOrigins;
+    private final SimpleResponse methodNotAllowed;
+    private final RequestCoalescer coalescer;
+
+    private DispatchTable(Map<String, Handler> handlers,
+                          Set<String> allowedOrigins,
+                          RequestCoalescer coalescer) {
+        this.handlers = handlers;
+        this.coalescer = coalescer;
+        handlers.putIfAbsent("OPTIONS", this::handleOptions);
+        this.allow = String.join(", ", new TreeSet<>(handlers.keySet()));
+        this.allowedOrigins = allowedOrigins;
+        this.methodNotAllowed = new SimpleResponse.Builder()
+                .setStatusCode(HttpStatus.METHOD_NOT_ALLOWED)
+                .setHeaders(new SimpleHeaders.Builder()
+                        .set(HttpHeader.ALLOW, allow)
+                        .build())
+                .build();
+    }
+
+    // Builds the table for the given action.
+    static DispatchTable forAction(SimpleAction action) {
+        Map<String, Handler> handlers = new HashMap<>();
+        Class<?> type = action.getClass();
+        if (isOverridden(type, "handleGet")) {
+            handlers.put("GET", action::handleGet);
+        }
+        if (isOverridden(type, "handlePost")) {
+            handlers.put("POST", action::handlePost);
+        }
+        if (isOverridden(type, "handlePatch")) {
+            handlers.put("PATCH", action::handlePatch);
+        }
+        if (isOverridden(type, "handlePut")) {
+            handlers.put("PUT", action::handlePut);
+        }
+        if (isOverridden(type, "handleDelete")) {
+            handlers.put("DELETE", action::handleDelete);
+        }
+        for (Method method : type.getMethods()) {
+            HandlesMethod annotation = method.getAnnotation(HandlesMethod.class);
+            if (annotation != null) {
+                handlers.put(annotation.value(), bind(action, method));
+            }
+        }
+        SingleFlight singleFlight =
+                type.getDeclaredAnnotation(SingleFlight.class);
+        RequestCoalescer coalescer = singleFlight == null ? null
+                : new RequestCoalescer(singleFlight);
+        if (coalescer != null && handlers.containsKey("GET")) {
+            handlers.put("GET", coalescer.wrap(handlers.get("GET")));
+        }
+        if (handlers.containsKey("GET")) {
+            // The response sender leaves out the body for HEAD requests.
+            handlers.putIfAbsent("HEAD", handlers.get("GET"));
+        }
+        return new DispatchTable(handlers, Set.of(action.getAllowedOrigins()),
+                coalescer);
+    }
+
+    // Returns the handler for the given request method, or null if the
+    // action does not support the method.
+    Handler lookup(String method) {
+        return handlers.get(method);
+    }
+
+    // Returns the coalescer for GET requests, or null if the action is not
+    // marked with SingleFlight.
+    RequestCoalescer getCoalescer() {
+        return coalescer;
+    }
+
+    // Returns the shared 405 response, listing the supported methods.
+    SimpleResponse getMethodNotAllowedResponse() {
+        return methodNotAllowed;
+    }
+
+    // Answers OPTIONS requests without involving the action. CORS headers
+    // are only added for preflight requests from an allowed origin.
+    private void handleOptions(SimpleRequest request, ResponseSender sender) {
+        SimpleHeaders requestHeaders = request.getHeaders();
+        SimpleHeaders.Builder headers = new SimpleHeaders.Builder()
+                .set(HttpHeader.ALLOW, allow);
+        String origin = requestHeaders.getFirstIgnoreCase(HttpHeader.ORIGIN);
+        String requestMethod = requestHeaders.getFirstIgnoreCase(
+                HttpHeader.ACCESS_CONTROL_REQUEST_METHOD);
+        if (origin != null && requestMethod != null
+                && isAllowedOrigin(origin)) {
+            headers.set(HttpHeader.ACCESS_CONTROL_ALLOW_ORIGIN, origin)
+                    .set(HttpHeader.ACCESS_CONTROL_ALLOW_METHODS, allow)
+                    .set(HttpHeader.ACCESS_CONTROL_MAX_AGE,
+                            PREFLIGHT_MAX_AGE_SECONDS)
+                    .set(HttpHeader.VARY, HttpHeader.ORIGIN);
+            String requestHeadersValue = requestHeaders.getFirstIgnoreCase(
+                    HttpHeader.ACCESS_CONTROL_REQUEST_HEADERS);
+            if (requestHeadersValue != null) {
+                headers.set(HttpHeader.ACCESS_CONTROL_ALLOW_HEADERS,
+                        requestHeadersValue);
+            }
+        }
+        sender.send(new SimpleResponse.Builder()
+                .setStatusCode(HttpStatus.NO_CONTENT)
+                .setHeaders(headers.build())
+                .build());
+    }
+
+    private boolean isAllowedOrigin(String origin) {
+        return allowedOrigins.contains("*") || allowedOrigins.contains(origin);
+    }
+
+    private static boolean isOverridden(Class<?> type, String methodName) {
+        try {
+            Method method = type.getMethod(methodName, SimpleRequest.class,
+                    ResponseSender.class);
+            return method.getDeclaringClass() != SimpleAction.class;
+        } catch (NoSuchMethodException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Binds a method marked with HandlesMethod to the action, so it can be
+    // invoked without reflection.
+    private static Handler bind(SimpleAction action, Method method) {
+        List<Class<?>> parameters = List.of(method.getParameterTypes());
+        if (!parameters.equals(List.of(SimpleRequest.class,
+                ResponseSender.class))) {
+            String msg = "Method " + method.getName() + " must take a "
+                    + "SimpleRequest and a ResponseSender.";
+            throw new IllegalStateException(msg);
+        }
+        MethodHandle handle;
+        try {
+            method.setAccessible(true);
+            handle = MethodHandles.lookup().unreflect(method)
+                    .bindTo(action)
+                    .asType(MethodType.methodType(void.class,
+                            SimpleRequest.class, ResponseSender.class));
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            String msg = "Cannot bind method " + method.getName() + ".";
+            throw new IllegalStateException(msg, e);
+        }
+        return (request, sender) -> {
+            try {
+                handle.invokeExact(request, sender);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        };
+    }
+
+    /**
+     * A handler for a single request method.
+     */
+    interface Handler {
+        void handle(SimpleRequest request, ResponseSender sender);
+    }
+}
@@ -0,0 +1,96 @@
+package simplehttp;
+
+import com.sun.net.httpserver.HttpExchange;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The reusable request and response objects of a single worker thread, used
+ * when object recycling is enabled with
+ * {@link SimpleHttpServer.Builder#setObjectRecycling(boolean)}. Instead of
+ * allocating a {@link SimpleRequest}, its {@link SimpleHeaders} and a
+ * {@link ResponseSender} for every exchange, each worker resets its own set
+ * between exchanges.
+ *
+ * Every exchange gets a new generation number, and the objects remember the
+ * generation they were last reset for. Using them from another thread, or
+ * once their exchange has completed, fails with an
+ * {@link IllegalStateException} rather than silently touching a different
+ * request. The server's own timers also check the generation, so a late
+ * timeout can never act on the next exchange.
+ */
+final class ExchangeContext {
+
+    private static final ThreadLocal<ExchangeContext> CURRENT =
+            ThreadLocal.withInitial(ExchangeContext::new);
+
+    private final Thread thread = Thread.currentThread();
+    private final Map<String, List<String>> headerMap = new HashMap<>();
+    private final SimpleHeaders headers = SimpleHeaders.wrap(headerMap);
+    private final SimpleRequest request = new SimpleRequest(this);
+    private final ResponseSender sender = new ResponseSender(this);
+
+    private int generation;
+    private boolean active;
+
+    private ExchangeContext() {}
+
+    // Returns the context of the current worker thread.
+    static ExchangeContext current() {
+        return CURRENT.get();
+    }
+
+    // Starts a new generation for the given exchange and returns the reset
+    // response sender.
+    ResponseSender begin(HttpExchange exchange, RequestTimeouts timeouts) {
+        if (active) {
+            String msg = "Exchange context is already in use on this thread.";
+            throw new IllegalStateException(msg);
+        }
+        generation++;
+        active = true;
+        sender.reset(exchange, timeouts, generation);
+        return sender;
+    }
+
+    // Reads the request of the current exchange into the reused request.
+    SimpleRequest readRequest(HttpExchange exchange, Deadline deadline,
+                              FormLimits formLimits, BodyBuffers bodyBuffers)
+            throws IOException {
+        headerMap.clear();
+        headerMap.putAll(exchange.getRequestHeaders());
+        request.reset(headers, exchange, deadline, formLimits, bodyBuffers,
+                generation);
+        return request;
+    }
+
+    // Ends the current exchange, releasing anything held by the request.
+    // Objects from the ended generation can no longer be used.
+    void end() {
+        request.releaseResources();
+        request.clear();
+        sender.clear();
+        headerMap.clear();
+        active = false;
+        generation++;
+    }
+
+    // Fails unless an object reset for the given generation is being used
+    // by this context's thread during its exchange.
+    void check(int objectGeneration) {
+        if (Thread.currentThread() != thread) {
+            String msg = "Recycled request objects can only be used by the "
+                    + "thread handling the request.";
+            throw new IllegalStateException(msg);
+        }
+        if (!active || objectGeneration != generation) {
+            String msg = "Recycled request object from generation "
+                    + objectGeneration + " used after its exchange completed"
+                    + " (current generation " + generation + ").";
+            throw new IllegalStateException(msg);
+        }
+    }
+}
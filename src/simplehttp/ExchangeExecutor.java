@@ -0,0 +1,81 @@
+package simplehttp;
+
+import java.util.concurrent.Executor;
+
+/**
+ * Wraps the server's executor to record when each exchange was handed off by
+ * the native server. The native server reads the request headers on the
+ * executor thread, so the recorded time covers both the wait for a free
+ * thread and the header read, and is used as the start of a request's
+ * deadline.
+ *
+ * When the {@link RequestEvents} are being recorded, the queue wait and
+ * request read events are also started here, as the handler runs too late
+ * to see either phase begin.
+ */
+final class ExchangeExecutor implements Executor {
+
+    private static final ThreadLocal<Accepted> ACCEPTED =
+            ThreadLocal.withInitial(Accepted::new);
+
+    private final Executor delegate;
+
+    // A null delegate runs each exchange on the calling thread, matching the
+    // native server's behaviour when no executor is set.
+    ExchangeExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable exchange) {
+        long acceptedAt = System.nanoTime();
+        RequestEvents.QueueWait queueWait = RequestEvents.beginQueueWait();
+        if (delegate == null) {
+            run(exchange, acceptedAt, queueWait);
+        } else {
+            delegate.execute(() -> run(exchange, acceptedAt, queueWait));
+        }
+    }
+
+    private static void run(Runnable exchange, long acceptedAt,
+                            RequestEvents.QueueWait queueWait) {
+        if (queueWait != null) {
+            queueWait.end();
+        }
+        Accepted accepted = ACCEPTED.get();
+        accepted.atNanos = acceptedAt;
+        accepted.queueWait = queueWait;
+        accepted.requestRead = RequestEvents.beginRequestRead();
+        try {
+            exchange.run();
+        } finally {
+            accepted.queueWait = null;
+            accepted.requestRead = null;
+        }
+    }
+
+    // Returns the time, in System.nanoTime() units, at which the exchange
+    // running on the current thread was accepted.
+    static long acceptedAtNanos() {
+        long acceptedAt = ACCEPTED.get().atNanos;
+        return acceptedAt == 0 ? System.nanoTime() : acceptedAt;
+    }
+
+    // Returns the queue wait event of the exchange running on the current
+    // thread, or null if it is not being recorded.
+    static RequestEvents.QueueWait queueWaitEvent() {
+        return ACCEPTED.get().queueWait;
+    }
+
+    // Returns the request read event of the exchange running on the current
+    // thread, or null if it is not being recorded.
+    static RequestEvents.RequestRead requestReadEvent() {
+        return ACCEPTED.get().requestRead;
+    }
+
+    private static final class Accepted {
+        private long atNanos;
+        private RequestEvents.QueueWait queueWait;
+        private RequestEvents.RequestRead requestRead;
+    }
+}
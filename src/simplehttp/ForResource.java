@@ -8,9 +8,23 @@ import java.lang.annotation.Target;
 /**
  * Defines the resource path for an action. The resource path is the URI path
  * that the action should handle requests to.
+ *
+ * A timeout can optionally be given, in milliseconds, to bound how long
+ * requests to the action may take before the server responds with a
+ * {@link HttpStatus#GATEWAY_TIMEOUT} on the action's behalf. A 0-value uses
+ * the server's default request timeout.
+ *
+ * Origins that may make cross-origin requests to the action can be listed
+ * in {@code allowedOrigins}, which the server uses to answer CORS preflight
+ * requests. A "*" entry allows any origin. By default, no origins are
+ * allowed.
  */
 @Retention(RetentionPolicy.RUNTIME)
 @Target(ElementType.TYPE)
 public @interface ForResource {
     String path();
+
+    long timeoutMillis() default 0;
+
+    String[] allowedOrigins() default {};
 }
@@ -0,0 +1,178 @@
+package simplehttp;
+
+import java.nio.file.Path;
+
+/**
+ * Limits applied when parsing form and JSON bodies, protecting the server
+ * from abusive uploads. Exceeding a form limit ends the request with a 413
+ * Payload Too Large, and nesting JSON too deeply with a 400 Bad Request. The limits can be created using the {@link Builder} class and set
+ * on the server with {@link SimpleHttpServer.Builder#setFormLimits}.
+ */
+public class FormLimits {
+
+    private final int maxParts;
+    private final long maxPartSize;
+    private final int maxInMemoryPartSize;
+    private final int maxPartHeaderSize;
+    private final int maxFormFields;
+    private final int maxJsonDepth;
+    private final Path spillDirectory;
+
+    private FormLimits(int maxParts, long maxPartSize, int maxInMemoryPartSize,
+                       int maxPartHeaderSize, int maxFormFields,
+                       int maxJsonDepth, Path spillDirectory) {
+        this.maxParts = maxParts;
+        this.maxPartSize = maxPartSize;
+        this.maxInMemoryPartSize = maxInMemoryPartSize;
+        this.maxPartHeaderSize = maxPartHeaderSize;
+        this.maxFormFields = maxFormFields;
+        this.maxJsonDepth = maxJsonDepth;
+        this.spillDirectory = spillDirectory;
+    }
+
+    /**
+     * Returns the limits used when none are configured.
+     */
+    public static FormLimits createDefault() {
+        return new Builder().build();
+    }
+
+    /**
+     * Returns the maximum number of parts in a multipart body.
+     */
+    public int getMaxParts() {
+        return maxParts;
+    }
+
+    /**
+     * Returns the maximum size in bytes of a single multipart part.
+     */
+    public long getMaxPartSize() {
+        return maxPartSize;
+    }
+
+    /**
+     * Returns the size in bytes above which a part is spilled to a temporary
+     * file instead of being kept in memory.
+     */
+    public int getMaxInMemoryPartSize() {
+        return maxInMemoryPartSize;
+    }
+
+    /**
+     * Returns the maximum size in bytes of the headers of a single part.
+     */
+    public int getMaxPartHeaderSize() {
+        return maxPartHeaderSize;
+    }
+
+    /**
+     * Returns the maximum number of fields in a URL-encoded form body.
+     */
+    public int getMaxFormFields() {
+        return maxFormFields;
+    }
+
+    /**
+     * Returns the maximum nesting depth of objects and arrays in a JSON
+     * body.
+     */
+    public int getMaxJsonDepth() {
+        return maxJsonDepth;
+    }
+
+    /**
+     * Returns the directory that large parts are spilled to, or null to use
+     * the system's temporary directory.
+     */
+    public Path getSpillDirectory() {
+        return spillDirectory;
+    }
+
+    /**
+     * Builder for creating a new {@link FormLimits}.
+     */
+    public static class Builder {
+
+        private int maxParts = 128;
+        private long maxPartSize = 64L * 1024 * 1024;
+        private int maxInMemoryPartSize = 64 * 1024;
+        private int maxPartHeaderSize = 8 * 1024;
+        private int maxFormFields = 1024;
+        private int maxJsonDepth = JsonReader.DEFAULT_MAX_DEPTH;
+        private Path spillDirectory;
+
+        /**
+         * Sets the maximum number of parts in a multipart body.
+         */
+        public Builder setMaxParts(int maxParts) {
+            this.maxParts = maxParts;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size in bytes of a single multipart part.
+         */
+        public Builder setMaxPartSize(long maxPartSize) {
+            this.maxPartSize = maxPartSize;
+            return this;
+        }
+
+        /**
+         * Sets the size in bytes above which a part is spilled to a
+         * temporary file instead of being kept in memory.
+         */
+        public Builder setMaxInMemoryPartSize(int maxInMemoryPartSize) {
+            this.maxInMemoryPartSize = maxInMemoryPartSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum size in bytes of the headers of a single part.
+         */
+        public Builder setMaxPartHeaderSize(int maxPartHeaderSize) {
+            this.maxPartHeaderSize = maxPartHeaderSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of fields in a URL-encoded form body.
+         */
+        public Builder setMaxFormFields(int maxFormFields) {
+            this.maxFormFields = maxFormFields;
+            return this;
+        }
+
+        /**
+         * Sets the maximum nesting depth of objects and arrays in a JSON
+         * body. Defaults to {@link JsonReader#DEFAULT_MAX_DEPTH}.
+         */
+        public Builder setMaxJsonDepth(int maxJsonDepth) {
+            this.maxJsonDepth = maxJsonDepth;
+            return this;
+        }
+
+        /**
+         * Sets the directory that large parts are spilled to. A null
+         * directory uses the system's temporary directory.
+         */
+        public Builder setSpillDirectory(Path spillDirectory) {
+            this.spillDirectory = spillDirectory;
+            return this;
+        }
+
+        /**
+         * Builds a new {@link FormLimits} from this builder.
+         */
+        public FormLimits build() {
+            if (maxJsonDepth <= 0) {
+                String msg = "The maxJsonDepth field must be positive";
+                throw new IllegalStateException(msg);
+            }
+
+            return new FormLimits(maxParts, maxPartSize, maxInMemoryPartSize,
+                    maxPartHeaderSize, maxFormFields, maxJsonDepth,
+                    spillDirectory);
+        }
+    }
+}
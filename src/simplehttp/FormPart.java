@@ -0,0 +1,126 @@
+package simplehttp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * A single part of a multipart/form-data body, as returned by
+ * {@link MultipartReader#nextPart()}. Small parts are held in memory, while
+ * parts above {@link FormLimits#getMaxInMemoryPartSize()} are spilled to a
+ * temporary file that is deleted once the request has been handled.
+ */
+public class FormPart {
+
+    private final String name;
+    private final String filename;
+    private final String contentType;
+    private final SimpleHeaders headers;
+    private final byte[] content;
+    private final Path file;
+    private final long size;
+
+    FormPart(String name, String filename, String contentType,
+             SimpleHeaders headers, byte[] content, Path file, long size) {
+        this.name = name;
+        this.filename = filename;
+        this.contentType = contentType;
+        this.headers = headers;
+        this.content = content;
+        this.file = file;
+        this.size = size;
+    }
+
+    /**
+     * Returns the form field name of the part.
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * Returns the original file name for file uploads, or null for ordinary
+     * fields.
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * Returns the content type of the part, or null if none was given.
+     */
+    public String getContentType() {
+        return contentType;
+    }
+
+    /**
+     * Returns all headers of the part.
+     */
+    public SimpleHeaders getHeaders() {
+        return headers;
+    }
+
+    /**
+     * Returns the size of the part's content in bytes.
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns true if the content is held in memory, or false if it was
+     * spilled to a temporary file.
+     */
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    /**
+     * Returns the temporary file holding the content, or null if the content
+     * is held in memory. The file is deleted once the request is handled, so
+     * it must be moved or copied to be kept.
+     */
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Opens a stream over the part's content.
+     */
+    public InputStream openStream() {
+        if (file == null) {
+            return new ByteArrayInputStream(content);
+        }
+        try {
+            return Files.newInputStream(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the part's content as raw bytes, reading it from disk if it
+     * was spilled.
+     */
+    public byte[] getBytes() {
+        if (file == null) {
+            return content;
+        }
+        try {
+            return Files.readAllBytes(file);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Returns the part's content as a UTF-8 string.
+     */
+    public String getString() {
+        return new String(getBytes(), StandardCharsets.UTF_8);
+    }
+}
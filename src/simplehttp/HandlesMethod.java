@@ -0,0 +1,25 @@
+package simplehttp;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Marks a method of a {@link SimpleAction} as the handler for the given
+ * request method, such as a custom verb like PROPFIND, or HEAD and OPTIONS
+ * when the server's built-in handling of them is not wanted. The method must
+ * be public and take the same parameters as {@link SimpleAction#handleGet},
+ * for example:
+ * <pre>
+ * &#64;HandlesMethod("PURGE")
+ * public void handlePurge(SimpleRequest request, ResponseSender sender) {
+ *     ...
+ * }
+ * </pre>
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.METHOD)
+public @interface HandlesMethod {
+    String value();
+}
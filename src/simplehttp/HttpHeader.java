@@ -9,10 +9,34 @@ public final class HttpHeader {
             "Access-Control-Allow-Origin";
     public static final String ACCESS_CONTROL_ALLOW_METHODS =
             "Access-Control-Allow-Methods";
+    public static final String ACCESS_CONTROL_ALLOW_HEADERS =
+            "Access-Control-Allow-Headers";
+    public static final String ACCESS_CONTROL_MAX_AGE =
+            "Access-Control-Max-Age";
+    public static final String ACCESS_CONTROL_REQUEST_METHOD =
+            "Access-Control-Request-Method";
+    public static final String ACCESS_CONTROL_REQUEST_HEADERS =
+            "Access-Control-Request-Headers";
     public static final String ACCEPT = "Accept";
+    public static final String ACCEPT_ENCODING = "Accept-Encoding";
     public static final String ACCEPT_LANGUAGE = "Accept-Language";
+    public static final String ALLOW = "Allow";
+    public static final String CACHE_CONTROL = "Cache-Control";
+    public static final String CONNECTION = "Connection";
+    public static final String CONTENT_ENCODING = "Content-Encoding";
+    public static final String CONTENT_LENGTH = "Content-Length";
     public static final String CONTENT_TYPE = "Content-Type";
     public static final String CONTENT_LANGUAGE = "Content-Language";
+    public static final String ETAG = "ETag";
+    public static final String IF_NONE_MATCH = "If-None-Match";
+    public static final String ORIGIN = "Origin";
+    public static final String SEC_WEBSOCKET_ACCEPT = "Sec-WebSocket-Accept";
+    public static final String SEC_WEBSOCKET_KEY = "Sec-WebSocket-Key";
+    public static final String SEC_WEBSOCKET_VERSION = "Sec-WebSocket-Version";
+    public static final String SET_COOKIE = "Set-Cookie";
+    public static final String TRANSFER_ENCODING = "Transfer-Encoding";
+    public static final String UPGRADE = "Upgrade";
+    public static final String VARY = "Vary";
 
     private HttpHeader() { /* Utility class not meant to be instantiated */ }
 }
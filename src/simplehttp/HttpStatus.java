@@ -4,6 +4,9 @@ package simplehttp;
  * Defines HTTP status codes using enums.
  */
 public enum HttpStatus {
+    // Informational codes.
+    SWITCHING_PROTOCOLS(101),
+
     // Success codes.
     OK(200),
     CREATED(201),
@@ -31,6 +34,7 @@ public enum HttpStatus {
     METHOD_NOT_ALLOWED(405),
     NOT_ACCEPTABLE(406),
     PROXY_AUTH_REQUIRED(407),
+    REQUEST_TIMEOUT(408),
     CONFLICT(409),
     GONE(410),
     LENGTH_REQUIRED(411),
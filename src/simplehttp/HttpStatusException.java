@@ -0,0 +1,25 @@
+package simplehttp;
+
+/**
+ * Thrown to end a request with the given error status. If the handler has
+ * not yet responded, the server answers the client with the status instead
+ * of leaving the request unanswered.
+ */
+public class HttpStatusException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final HttpStatus status;
+
+    public HttpStatusException(HttpStatus status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    /**
+     * Returns the status that the client should be sent.
+     */
+    public HttpStatus getStatus() {
+        return status;
+    }
+}
@@ -0,0 +1,67 @@
+package simplehttp;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.Consumer;
+
+/**
+ * A {@link RemoteCache} held in memory, standing in for a distributed store
+ * in tests. Servers in the same process that are given the same instance
+ * share its entries and invalidations, as servers sharing a real store
+ * would.
+ */
+public final class InProcessRemoteCache implements RemoteCache {
+
+    private final Map<String, Map<String, Entry>> paths =
+            new ConcurrentHashMap<>();
+    private final List<Consumer<String>> listeners =
+            new CopyOnWriteArrayList<>();
+
+    @Override
+    public byte[] get(String path, String variant) {
+        Map<String, Entry> variants = paths.get(path);
+        Entry entry = variants == null ? null : variants.get(variant);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.expiresAtNanos >= 0) {
+            variants.remove(variant, entry);
+            return null;
+        }
+        return entry.value.clone();
+    }
+
+    @Override
+    public void put(String path, String variant, byte[] value, Duration ttl) {
+        Entry entry = new Entry(value.clone(),
+                System.nanoTime() + ttl.toNanos());
+        paths.computeIfAbsent(path, key -> new ConcurrentHashMap<>())
+                .put(variant, entry);
+    }
+
+    @Override
+    public void invalidate(String path) {
+        paths.remove(path);
+        for (Consumer<String> listener : listeners) {
+            listener.accept(path);
+        }
+    }
+
+    @Override
+    public void addInvalidationListener(Consumer<String> listener) {
+        listeners.add(listener);
+    }
+
+    private static final class Entry {
+        private final byte[] value;
+        private final long expiresAtNanos;
+
+        private Entry(byte[] value, long expiresAtNanos) {
+            this.value = value;
+            this.expiresAtNanos = expiresAtNanos;
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package simplehttp;
+
+/**
+ * Converts values of a single type to and from JSON. Codecs for records,
+ * strings, numbers, booleans, enums and lists are provided by
+ * {@link JsonCodecs#forType}, and custom codecs can be written for any other
+ * type and used directly with {@link SimpleRequest#getBody(JsonCodec)} and
+ * {@link ResponseSender#sendJson(HttpStatus, Object, JsonCodec)}.
+ *
+ * Codecs must be stateless, as a single instance is shared between all
+ * requests.
+ */
+public interface JsonCodec<T> {
+
+    /**
+     * Reads the next value from the reader.
+     * @throws IllegalArgumentException if the input is not a valid value of
+     * the type.
+     */
+    T decode(JsonReader reader);
+
+    /**
+     * Writes the given value to the writer.
+     */
+    void encode(T value, JsonWriter writer);
+}
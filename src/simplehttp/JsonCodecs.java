@@ -0,0 +1,351 @@
+package simplehttp;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.RecordComponent;
+import java.lang.reflect.Type;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Provides {@link JsonCodec} instances for records and the basic types they
+ * are made of. Each codec is built once per type, the first time the type is
+ * requested, and cached for the lifetime of the class. Record codecs look up
+ * the record's accessors and canonical constructor when they are built, so
+ * encoding and decoding never use reflection per request.
+ *
+ * Supported types are records, {@link String}, primitive and boxed
+ * {@code int}, {@code long}, {@code double} and {@code boolean}, enums (by
+ * name), and {@link List}s of any supported type when used as a record
+ * component. Missing record properties are decoded as null, 0 or false, and
+ * unknown properties are ignored. Records that contain themselves, directly
+ * or through other records or lists, are not supported.
+ */
+public final class JsonCodecs {
+
+    private static final JsonCodec<String> STRING = new JsonCodec<>() {
+        public String decode(JsonReader reader) {
+            return reader.nextIfNull() ? null : reader.nextString();
+        }
+
+        public void encode(String value, JsonWriter writer) {
+            writer.value(value);
+        }
+    };
+
+    private static final JsonCodec<Integer> INT = new JsonCodec<>() {
+        public Integer decode(JsonReader reader) {
+            return reader.nextIfNull() ? null : reader.nextInt();
+        }
+
+        public void encode(Integer value, JsonWriter writer) {
+            if (value == null) {
+                writer.nullValue();
+            } else {
+                writer.value(value);
+            }
+        }
+    };
+
+    private static final JsonCodec<Long> LONG = new JsonCodec<>() {
+        public Long decode(JsonReader reader) {
+            return reader.nextIfNull() ? null : reader.nextLong();
+        }
+
+        public void encode(Long value, JsonWriter writer) {
+            if (value == null) {
+                writer.nullValue();
+            } else {
+                writer.value(value);
+            }
+        }
+    };
+
+    private static final JsonCodec<Double> DOUBLE = new JsonCodec<>() {
+        public Double decode(JsonReader reader) {
+            return reader.nextIfNull() ? null : reader.nextDouble();
+        }
+
+        public void encode(Double value, JsonWriter writer) {
+            if (value == null) {
+                writer.nullValue();
+            } else {
+                writer.value(value);
+            }
+        }
+    };
+
+    private static final JsonCodec<Boolean> BOOLEAN = new JsonCodec<>() {
+        public Boolean decode(JsonReader reader) {
+            return reader.nextIfNull() ? null : reader.nextBoolean();
+        }
+
+        public void encode(Boolean value, JsonWriter writer) {
+            if (value == null) {
+                writer.nullValue();
+            } else {
+                writer.value(value);
+            }
+        }
+    };
+
+    // The record types whose codecs are being built on this thread, in the
+    // order they were reached, to catch records that contain themselves.
+    private static final ThreadLocal<Set<Class<?>>> BUILDING =
+            ThreadLocal.withInitial(LinkedHashSet::new);
+
+    private static final ClassValue<JsonCodec<?>> CODECS = new ClassValue<>() {
+        @Override
+        protected JsonCodec<?> computeValue(Class<?> type) {
+            return createCodec(type);
+        }
+    };
+
+    private JsonCodecs() { /* Utility class not meant to be instantiated */ }
+
+    /**
+     * Returns the codec for the given type.
+     * @throws IllegalArgumentException if the type is not supported.
+     */
+    @SuppressWarnings("unchecked")
+    public static <T> JsonCodec<T> forType(Class<T> type) {
+        return (JsonCodec<T>) CODECS.get(type);
+    }
+
+    /**
+     * Returns a codec for lists whose elements use the given codec.
+     */
+    public static <T> JsonCodec<List<T>> listOf(JsonCodec<T> elementCodec) {
+        return new ListCodec<>(elementCodec);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static JsonCodec<?> createCodec(Class<?> type) {
+        if (type == String.class) {
+            return STRING;
+        } else if (type == int.class || type == Integer.class) {
+            return INT;
+        } else if (type == long.class || type == Long.class) {
+            return LONG;
+        } else if (type == double.class || type == Double.class) {
+            return DOUBLE;
+        } else if (type == boolean.class || type == Boolean.class) {
+            return BOOLEAN;
+        } else if (type.isEnum()) {
+            return new EnumCodec(type);
+        } else if (type.isRecord()) {
+            return createRecordCodec(type);
+        }
+        String msg = "No JSON codec for type " + type.getName() + ".";
+        throw new IllegalArgumentException(msg);
+    }
+
+    // Building a record's codec builds its components' codecs first, so a
+    // record that contains itself would recurse until the stack overflows.
+    private static <T> JsonCodec<T> createRecordCodec(Class<T> type) {
+        Set<Class<?>> building = BUILDING.get();
+        if (!building.add(type)) {
+            StringBuilder path = new StringBuilder();
+            for (Class<?> record : building) {
+                path.append(record.getName()).append(" -> ");
+            }
+            String msg = "No JSON codec for recursive record type "
+                    + type.getName() + " (" + path + type.getName() + ").";
+            throw new IllegalArgumentException(msg);
+        }
+        try {
+            return new RecordCodec<>(type);
+        } finally {
+            building.remove(type);
+        }
+    }
+
+    // Resolves the codec for a record component, including the element type
+    // of a List.
+    private static JsonCodec<?> forGenericType(Type type) {
+        if (type instanceof Class<?> rawType) {
+            return CODECS.get(rawType);
+        }
+        if (type instanceof ParameterizedType parameterized
+                && parameterized.getRawType() == List.class) {
+            Type elementType = parameterized.getActualTypeArguments()[0];
+            return listOf(forGenericType(elementType));
+        }
+        String msg = "No JSON codec for type " + type.getTypeName() + ".";
+        throw new IllegalArgumentException(msg);
+    }
+
+    private static final class ListCodec<T> implements JsonCodec<List<T>> {
+
+        private final JsonCodec<T> elementCodec;
+
+        private ListCodec(JsonCodec<T> elementCodec) {
+            this.elementCodec = elementCodec;
+        }
+
+        @Override
+        public List<T> decode(JsonReader reader) {
+            if (reader.nextIfNull()) {
+                return null;
+            }
+            List<T> list = new ArrayList<>();
+            reader.beginArray();
+            while (reader.hasNext()) {
+                list.add(elementCodec.decode(reader));
+            }
+            reader.endArray();
+            return list;
+        }
+
+        @Override
+        public void encode(List<T> value, JsonWriter writer) {
+            if (value == null) {
+                writer.nullValue();
+                return;
+            }
+            writer.beginArray();
+            for (T element : value) {
+                elementCodec.encode(element, writer);
+            }
+            writer.endArray();
+        }
+    }
+
+    private static final class EnumCodec<E extends Enum<E>>
+            implements JsonCodec<E> {
+
+        private final Class<E> type;
+
+        private EnumCodec(Class<E> type) {
+            this.type = type;
+        }
+
+        @Override
+        public E decode(JsonReader reader) {
+            return reader.nextIfNull() ? null
+                    : Enum.valueOf(type, reader.nextString());
+        }
+
+        @Override
+        public void encode(E value, JsonWriter writer) {
+            writer.value(value == null ? null : value.name());
+        }
+    }
+
+    private static final class RecordCodec<T> implements JsonCodec<T> {
+
+        private final String[] names;
+        private final JsonCodec<Object>[] codecs;
+        private final MethodHandle[] accessors;
+        private final Object[] defaults;
+        private final Map<String, Integer> indexes = new HashMap<>();
+        private final MethodHandle constructor;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        private RecordCodec(Class<T> type) {
+            RecordComponent[] components = type.getRecordComponents();
+            int count = components.length;
+            names = new String[count];
+            codecs = new JsonCodec[count];
+            accessors = new MethodHandle[count];
+            defaults = new Object[count];
+            Class<?>[] parameterTypes = new Class<?>[count];
+            MethodHandles.Lookup lookup = MethodHandles.lookup();
+            try {
+                for (int i = 0; i < count; i++) {
+                    RecordComponent component = components[i];
+                    names[i] = component.getName();
+                    codecs[i] = (JsonCodec<Object>)
+                            forGenericType(component.getGenericType());
+                    Method accessor = component.getAccessor();
+                    accessor.setAccessible(true);
+                    accessors[i] = lookup.unreflect(accessor).asType(
+                            MethodType.methodType(Object.class, Object.class));
+                    parameterTypes[i] = component.getType();
+                    defaults[i] = defaultValue(component.getType());
+                    indexes.put(names[i], i);
+                }
+                Constructor<T> canonical =
+                        type.getDeclaredConstructor(parameterTypes);
+                canonical.setAccessible(true);
+                constructor = lookup.unreflectConstructor(canonical)
+                        .asSpreader(Object[].class, count)
+                        .asType(MethodType.methodType(Object.class,
+                                Object[].class));
+            } catch (ReflectiveOperationException e) {
+                String msg = "Cannot build JSON codec for " + type.getName();
+                throw new IllegalArgumentException(msg, e);
+            }
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public T decode(JsonReader reader) {
+            if (reader.nextIfNull()) {
+                return null;
+            }
+            Object[] values = defaults.clone();
+            reader.beginObject();
+            while (reader.hasNext()) {
+                Integer index = indexes.get(reader.nextName());
+                if (index == null) {
+                    reader.skipValue();
+                } else {
+                    Object value = codecs[index].decode(reader);
+                    if (value != null) {
+                        values[index] = value;
+                    }
+                }
+            }
+            reader.endObject();
+            try {
+                return (T) constructor.invokeExact(values);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public void encode(T value, JsonWriter writer) {
+            if (value == null) {
+                writer.nullValue();
+                return;
+            }
+            writer.beginObject();
+            try {
+                for (int i = 0; i < names.length; i++) {
+                    writer.name(names[i]);
+                    codecs[i].encode(accessors[i].invokeExact(value), writer);
+                }
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            writer.endObject();
+        }
+
+        private static Object defaultValue(Class<?> type) {
+            if (type == int.class) {
+                return 0;
+            } else if (type == long.class) {
+                return 0L;
+            } else if (type == double.class) {
+                return 0.0;
+            } else if (type == boolean.class) {
+                return false;
+            }
+            return null;
+        }
+    }
+}
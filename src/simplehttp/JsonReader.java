@@ -0,0 +1,503 @@
+package simplehttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.util.Arrays;
+
+/**
+ * A streaming JSON reader that decodes UTF-8 directly from bytes, without
+ * first converting the input into a string. Values are pulled one at a time
+ * in document order, for example:
+ * <pre>
+ * reader.beginObject();
+ * while (reader.hasNext()) {
+ *     String name = reader.nextName();
+ *     ...
+ * }
+ * reader.endObject();
+ * </pre>
+ *
+ * Malformed input causes an {@link IllegalArgumentException}, as does
+ * nesting objects and arrays deeper than the reader's maximum depth, which
+ * keeps recursive decoding of hostile input from overflowing the stack.
+ */
+public class JsonReader {
+
+    /**
+     * The maximum nesting depth of objects and arrays used unless another is
+     * set with {@link #setMaxDepth(int)}.
+     */
+    public static final int DEFAULT_MAX_DEPTH = 512;
+
+    // Per-depth states used to decide whether a comma is expected.
+    private static final int FIRST = 0;
+    private static final int NEEDS_COMMA = 1;
+    private static final int AFTER_NAME = 2;
+
+    private final InputStream in;
+    private byte[] buffer;
+    private int position;
+    private int limit;
+    private long consumed;
+
+    private int[] states = new int[16];
+    private boolean[] objectFlags = new boolean[16];
+    private int depth;
+    private int maxDepth = DEFAULT_MAX_DEPTH;
+
+    private final StringBuilder text = new StringBuilder();
+
+    /**
+     * Creates a reader that pulls bytes from the given stream as needed.
+     */
+    public JsonReader(InputStream in) {
+        this.in = in;
+        this.buffer = new byte[8192];
+    }
+
+    /**
+     * Creates a reader over the given bytes, without copying them.
+     */
+    public JsonReader(byte[] bytes) {
+        this.in = null;
+        this.buffer = bytes;
+        this.limit = bytes.length;
+    }
+
+    /**
+     * Sets the maximum nesting depth of objects and arrays. Defaults to
+     * {@link #DEFAULT_MAX_DEPTH}.
+     * @throws IllegalArgumentException if the depth is not positive.
+     */
+    public void setMaxDepth(int maxDepth) {
+        if (maxDepth <= 0) {
+            String msg = "The maxDepth must be positive";
+            throw new IllegalArgumentException(msg);
+        }
+        this.maxDepth = maxDepth;
+    }
+
+    /**
+     * Returns the type of the next value, without consuming it.
+     */
+    public Token peek() {
+        int c = peekNonWhitespace();
+        return switch (c) {
+            case '{' -> Token.BEGIN_OBJECT;
+            case '}' -> Token.END_OBJECT;
+            case '[' -> Token.BEGIN_ARRAY;
+            case ']' -> Token.END_ARRAY;
+            case '"' -> states[depth] == AFTER_NAME || !inObject()
+                    ? Token.STRING : Token.NAME;
+            case 't', 'f' -> Token.BOOLEAN;
+            case 'n' -> Token.NULL;
+            case ',' -> {
+                // Only reachable between elements before hasNext() is called.
+                expect(',');
+                states[depth] = FIRST;
+                yield peek();
+            }
+            case -1 -> Token.END_DOCUMENT;
+            default -> Token.NUMBER;
+        };
+    }
+
+    /**
+     * Consumes the start of an object.
+     */
+    public void beginObject() {
+        beforeValue();
+        expect('{');
+        push(true);
+    }
+
+    /**
+     * Consumes the end of an object.
+     */
+    public void endObject() {
+        expectNonWhitespace('}');
+        pop();
+    }
+
+    /**
+     * Consumes the start of an array.
+     */
+    public void beginArray() {
+        beforeValue();
+        expect('[');
+        push(false);
+    }
+
+    /**
+     * Consumes the end of an array.
+     */
+    public void endArray() {
+        expectNonWhitespace(']');
+        pop();
+    }
+
+    /**
+     * Returns true if the current object or array has another element.
+     */
+    public boolean hasNext() {
+        int c = peekNonWhitespace();
+        if (c == '}' || c == ']' || c == -1) {
+            return false;
+        }
+        if (states[depth] == NEEDS_COMMA) {
+            expect(',');
+            states[depth] = FIRST;
+        }
+        return true;
+    }
+
+    /**
+     * Consumes the next property name in the current object.
+     */
+    public String nextName() {
+        if (states[depth] == NEEDS_COMMA) {
+            expectNonWhitespace(',');
+        }
+        expectNonWhitespace('"');
+        String name = readStringBody();
+        expectNonWhitespace(':');
+        states[depth] = AFTER_NAME;
+        return name;
+    }
+
+    /**
+     * Consumes the next string value.
+     */
+    public String nextString() {
+        beforeValue();
+        expect('"');
+        String value = readStringBody();
+        afterValue();
+        return value;
+    }
+
+    /**
+     * Consumes the next boolean value.
+     */
+    public boolean nextBoolean() {
+        beforeValue();
+        boolean value;
+        if (peekByte() == 't') {
+            expectLiteral("true");
+            value = true;
+        } else {
+            expectLiteral("false");
+            value = false;
+        }
+        afterValue();
+        return value;
+    }
+
+    /**
+     * Consumes the next value if it is null, returning true if it was.
+     */
+    public boolean nextIfNull() {
+        if (peek() != Token.NULL) {
+            return false;
+        }
+        beforeValue();
+        expectLiteral("null");
+        afterValue();
+        return true;
+    }
+
+    /**
+     * Consumes the next number as a long.
+     * @throws IllegalArgumentException if the number is not an integer.
+     */
+    public long nextLong() {
+        beforeValue();
+        boolean negative = false;
+        if (peekByte() == '-') {
+            negative = true;
+            position++;
+        }
+        // Accumulated negatively, since Long.MIN_VALUE has no positive
+        // counterpart.
+        long value = 0;
+        int digits = 0;
+        int c;
+        try {
+            while ((c = peekByte()) >= '0' && c <= '9') {
+                value = Math.subtractExact(Math.multiplyExact(value, 10),
+                        c - '0');
+                position++;
+                digits++;
+            }
+            if (!negative) {
+                value = Math.negateExact(value);
+            }
+        } catch (ArithmeticException e) {
+            throw malformed("Integer out of range");
+        }
+        if (digits == 0 || c == '.' || c == 'e' || c == 'E') {
+            throw malformed("Expected an integer");
+        }
+        afterValue();
+        return value;
+    }
+
+    /**
+     * Consumes the next number as an int.
+     * @throws IllegalArgumentException if the number is not an int.
+     */
+    public int nextInt() {
+        long value = nextLong();
+        if (value != (int) value) {
+            throw malformed("Integer out of range " + value);
+        }
+        return (int) value;
+    }
+
+    /**
+     * Consumes the next number as a double.
+     */
+    public double nextDouble() {
+        beforeValue();
+        text.setLength(0);
+        int c;
+        while ((c = peekByte()) == '-' || c == '+' || c == '.' || c == 'e'
+                || c == 'E' || (c >= '0' && c <= '9')) {
+            text.append((char) c);
+            position++;
+        }
+        try {
+            double value = Double.parseDouble(text.toString());
+            afterValue();
+            return value;
+        } catch (NumberFormatException e) {
+            throw malformed("Expected a number");
+        }
+    }
+
+    /**
+     * Checks that nothing but whitespace follows the values read so far.
+     * @throws IllegalArgumentException if there is more input.
+     */
+    public void endDocument() {
+        if (depth > 0 || peekNonWhitespace() != -1) {
+            throw malformed("Expected end of document");
+        }
+    }
+
+    /**
+     * Consumes and discards the next value, including any nested values.
+     */
+    public void skipValue() {
+        switch (peek()) {
+            case BEGIN_OBJECT -> {
+                beginObject();
+                while (hasNext()) {
+                    nextName();
+                    skipValue();
+                }
+                endObject();
+            }
+            case BEGIN_ARRAY -> {
+                beginArray();
+                while (hasNext()) {
+                    skipValue();
+                }
+                endArray();
+            }
+            case STRING -> nextString();
+            case BOOLEAN -> nextBoolean();
+            case NULL -> nextIfNull();
+            case NUMBER -> nextDouble();
+            default -> throw malformed("Expected a value");
+        }
+    }
+
+    private boolean inObject() {
+        return objectFlags[depth];
+    }
+
+    private void push(boolean object) {
+        if (depth == maxDepth) {
+            throw malformed("Nesting deeper than " + maxDepth);
+        }
+        depth++;
+        if (depth == states.length) {
+            states = Arrays.copyOf(states, depth * 2);
+            objectFlags = Arrays.copyOf(objectFlags, depth * 2);
+        }
+        states[depth] = FIRST;
+        objectFlags[depth] = object;
+    }
+
+    private void pop() {
+        depth--;
+        afterValue();
+    }
+
+    private void beforeValue() {
+        int c = peekNonWhitespace();
+        if (states[depth] == NEEDS_COMMA && depth > 0) {
+            if (c != ',') {
+                throw malformed("Expected ','");
+            }
+            position++;
+            peekNonWhitespace();
+        }
+    }
+
+    private void afterValue() {
+        states[depth] = NEEDS_COMMA;
+    }
+
+    // Reads a string after its opening quote, decoding UTF-8 and escapes.
+    private String readStringBody() {
+        text.setLength(0);
+        while (true) {
+            int c = readByte();
+            if (c == '"') {
+                return text.toString();
+            } else if (c == '\\') {
+                readEscape();
+            } else if (c < 0) {
+                throw malformed("Unterminated string");
+            } else if (c < 0x80) {
+                text.append((char) c);
+            } else {
+                readMultiByte(c);
+            }
+        }
+    }
+
+    private void readEscape() {
+        int c = readByte();
+        switch (c) {
+            case '"', '\\', '/' -> text.append((char) c);
+            case 'b' -> text.append('\b');
+            case 'f' -> text.append('\f');
+            case 'n' -> text.append('\n');
+            case 'r' -> text.append('\r');
+            case 't' -> text.append('\t');
+            case 'u' -> {
+                int codeUnit = 0;
+                for (int i = 0; i < 4; i++) {
+                    int digit = Character.digit(readByte(), 16);
+                    if (digit < 0) {
+                        throw malformed("Invalid unicode escape");
+                    }
+                    codeUnit = (codeUnit << 4) | digit;
+                }
+                text.append((char) codeUnit);
+            }
+            default -> throw malformed("Invalid escape");
+        }
+    }
+
+    private void readMultiByte(int lead) {
+        int extra;
+        int codePoint;
+        if ((lead & 0xE0) == 0xC0) {
+            extra = 1;
+            codePoint = lead & 0x1F;
+        } else if ((lead & 0xF0) == 0xE0) {
+            extra = 2;
+            codePoint = lead & 0x0F;
+        } else if ((lead & 0xF8) == 0xF0) {
+            extra = 3;
+            codePoint = lead & 0x07;
+        } else {
+            throw malformed("Invalid UTF-8");
+        }
+        for (int i = 0; i < extra; i++) {
+            int next = readByte();
+            if ((next & 0xC0) != 0x80) {
+                throw malformed("Invalid UTF-8");
+            }
+            codePoint = (codePoint << 6) | (next & 0x3F);
+        }
+        text.appendCodePoint(codePoint);
+    }
+
+    private void expectLiteral(String literal) {
+        for (int i = 0; i < literal.length(); i++) {
+            if (readByte() != literal.charAt(i)) {
+                throw malformed("Expected " + literal);
+            }
+        }
+    }
+
+    private void expectNonWhitespace(char expected) {
+        peekNonWhitespace();
+        expect(expected);
+    }
+
+    private void expect(char expected) {
+        if (readByte() != expected) {
+            throw malformed("Expected '" + expected + "'");
+        }
+    }
+
+    private int peekNonWhitespace() {
+        int c;
+        while ((c = peekByte()) == ' ' || c == '\n' || c == '\r' || c == '\t') {
+            position++;
+        }
+        return c;
+    }
+
+    private int peekByte() {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position] & 0xFF;
+    }
+
+    private int readByte() {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    private boolean fill() {
+        if (in == null) {
+            return false;
+        }
+        try {
+            consumed += limit;
+            position = 0;
+            limit = 0;
+            int read = in.read(buffer);
+            if (read <= 0) {
+                return false;
+            }
+            limit = read;
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private IllegalArgumentException malformed(String reason) {
+        String msg = "Malformed JSON at offset " + (consumed + position) + ": "
+                + reason + ".";
+        return new IllegalArgumentException(msg);
+    }
+
+    /**
+     * The kinds of tokens that can be returned by {@link #peek()}.
+     */
+    public enum Token {
+        BEGIN_OBJECT,
+        END_OBJECT,
+        BEGIN_ARRAY,
+        END_ARRAY,
+        NAME,
+        STRING,
+        NUMBER,
+        BOOLEAN,
+        NULL,
+        END_DOCUMENT,
+    }
+}
@@ -0,0 +1,102 @@
+package simplehttp;
+
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsParameters;
+import com.sun.net.httpserver.HttpsServer;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ServerSocketChannel;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+
+/**
+ * Creates the native servers that accept connections for a
+ * {@link SimpleHttpServer}.
+ *
+ * Several listeners can share a port by binding with SO_REUSEPORT, which
+ * lets the kernel spread incoming connections between them. The native
+ * implementation offers no way to set socket options before binding, so the
+ * option is set on its server channel directly. This requires the JVM to be
+ * started with:
+ * <pre>
+ * --add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED
+ * </pre>
+ *
+ * Listeners serving HTTPS secure each connection with an engine from the
+ * given context, configured with the same parameters.
+ */
+final class ListenerFactory {
+
+    private static final String ADD_OPENS_HINT = "Start the JVM with "
+            + "--add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED "
+            + "to use more than one listener.";
+
+    private ListenerFactory() { /* Utility class not meant to be instantiated */ }
+
+    // Creates a native server bound to the given address. If reusePort is
+    // set, other listeners may bind to the same address. If sslContext is
+    // non-null, the server serves HTTPS using the given parameters.
+    static HttpServer create(InetSocketAddress address, int backlog,
+                             boolean reusePort, SSLContext sslContext,
+                             SSLParameters sslParameters) throws IOException {
+        HttpServer server = createUnbound(sslContext, sslParameters);
+        if (!reusePort) {
+            server.bind(address, backlog);
+            return server;
+        }
+        ServerSocketChannel channel = findServerChannel(server);
+        if (!channel.supportedOptions()
+                .contains(StandardSocketOptions.SO_REUSEPORT)) {
+            String msg = "SO_REUSEPORT is not supported on this platform.";
+            throw new IllegalStateException(msg);
+        }
+        channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+        server.bind(address, backlog);
+        return server;
+    }
+
+    private static HttpServer createUnbound(SSLContext sslContext,
+                                            SSLParameters sslParameters)
+            throws IOException {
+        if (sslContext == null) {
+            return HttpServer.create();
+        }
+        HttpsServer server = HttpsServer.create();
+        server.setHttpsConfigurator(new HttpsConfigurator(sslContext) {
+            @Override
+            public void configure(HttpsParameters params) {
+                params.setSSLParameters(sslParameters);
+            }
+        });
+        return server;
+    }
+
+    // Finds the channel that the native server will accept connections on.
+    // The channel is held by the server's implementation object rather than
+    // the server itself, so one level of fields is searched.
+    private static ServerSocketChannel findServerChannel(HttpServer server) {
+        try {
+            for (Field field : server.getClass().getDeclaredFields()) {
+                field.setAccessible(true);
+                Object impl = field.get(server);
+                if (impl == null) {
+                    continue;
+                }
+                for (Field implField : impl.getClass().getDeclaredFields()) {
+                    if (implField.getType() == ServerSocketChannel.class) {
+                        implField.setAccessible(true);
+                        return (ServerSocketChannel) implField.get(impl);
+                    }
+                }
+            }
+        } catch (RuntimeException | IllegalAccessException e) {
+            throw new IllegalStateException(ADD_OPENS_HINT, e);
+        }
+        String msg = "Cannot find the server channel. " + ADD_OPENS_HINT;
+        throw new IllegalStateException(msg);
+    }
+}
@@ -0,0 +1,322 @@
+package simplehttp;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
+
+/**
+ * Wraps an SSLContext so that the handshakes of the engines it creates are
+ * counted in a {@link TlsStats}. The native server drives each connection's
+ * SSLEngine itself and offers no handshake callbacks, so the engines are
+ * wrapped instead, and a handshake is recorded when a wrap or unwrap reports
+ * it finished.
+ */
+final class MeteredSslContext extends SSLContext {
+
+    MeteredSslContext(SSLContext delegate, TlsStats stats) {
+        super(new Spi(delegate, stats), delegate.getProvider(),
+                delegate.getProtocol());
+    }
+
+    private static final class Spi extends SSLContextSpi {
+
+        private final SSLContext delegate;
+        private final TlsStats stats;
+
+        private Spi(SSLContext delegate, TlsStats stats) {
+            this.delegate = delegate;
+            this.stats = stats;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] keyManagers,
+                                  TrustManager[] trustManagers,
+                                  SecureRandom random) {
+            String msg = "The wrapped context is already initialized.";
+            throw new UnsupportedOperationException(msg);
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory() {
+            return delegate.getSocketFactory();
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory() {
+            return delegate.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine() {
+            return new MeteredEngine(delegate.createSSLEngine(), stats);
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port) {
+            return new MeteredEngine(delegate.createSSLEngine(host, port),
+                    stats);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext() {
+            return delegate.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext() {
+            return delegate.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters() {
+            return delegate.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters() {
+            return delegate.getSupportedSSLParameters();
+        }
+    }
+
+    /**
+     * An engine that times its handshakes. The native server may wrap and
+     * unwrap from different threads, so the start of the handshake in
+     * progress is claimed atomically by whichever sees it finish.
+     */
+    private static final class MeteredEngine extends SSLEngine {
+
+        private final SSLEngine delegate;
+        private final TlsStats stats;
+        private final AtomicReference<HandshakeStart> handshakeStart;
+
+        private MeteredEngine(SSLEngine delegate, TlsStats stats) {
+            super(delegate.getPeerHost(), delegate.getPeerPort());
+            this.delegate = delegate;
+            this.stats = stats;
+            // The server starts handshaking as soon as the engine exists.
+            this.handshakeStart = new AtomicReference<>(new HandshakeStart());
+        }
+
+        @Override
+        public SSLEngineResult wrap(ByteBuffer[] srcs, int offset, int length,
+                                    ByteBuffer dst) throws SSLException {
+            try {
+                return record(delegate.wrap(srcs, offset, length, dst));
+            } catch (SSLException e) {
+                recordFailure();
+                throw e;
+            }
+        }
+
+        @Override
+        public SSLEngineResult unwrap(ByteBuffer src, ByteBuffer[] dsts,
+                                      int offset, int length)
+                throws SSLException {
+            try {
+                return record(delegate.unwrap(src, dsts, offset, length));
+            } catch (SSLException e) {
+                recordFailure();
+                throw e;
+            }
+        }
+
+        // A handshake fails if the engine closes before it finishes, such
+        // as when the client rejects the certificate with an alert.
+        private SSLEngineResult record(SSLEngineResult result) {
+            if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+                recordFailure();
+                return result;
+            }
+            if (result.getHandshakeStatus()
+                    != SSLEngineResult.HandshakeStatus.FINISHED) {
+                return result;
+            }
+            HandshakeStart start = handshakeStart.getAndSet(null);
+            if (start != null) {
+                long nanos = System.nanoTime() - start.nanos;
+                // A full handshake creates its session after it started,
+                // while a resumed one reuses a session created earlier.
+                boolean resumed = delegate.getSession().getCreationTime()
+                        < start.millis;
+                stats.recordHandshake(resumed, nanos);
+            }
+            return result;
+        }
+
+        private void recordFailure() {
+            if (handshakeStart.getAndSet(null) != null) {
+                stats.recordFailedHandshake();
+            }
+        }
+
+        @Override
+        public void beginHandshake() throws SSLException {
+            handshakeStart.compareAndSet(null, new HandshakeStart());
+            delegate.beginHandshake();
+        }
+
+        // When a handshake started, on the monotonic clock for timing it and
+        // on the wall clock for comparing with session creation times.
+        private static final class HandshakeStart {
+
+            private final long nanos = System.nanoTime();
+            private final long millis = System.currentTimeMillis();
+        }
+
+        @Override
+        public Runnable getDelegatedTask() {
+            return delegate.getDelegatedTask();
+        }
+
+        @Override
+        public void closeInbound() throws SSLException {
+            delegate.closeInbound();
+        }
+
+        @Override
+        public boolean isInboundDone() {
+            return delegate.isInboundDone();
+        }
+
+        @Override
+        public void closeOutbound() {
+            delegate.closeOutbound();
+        }
+
+        @Override
+        public boolean isOutboundDone() {
+            return delegate.isOutboundDone();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return delegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public String[] getEnabledCipherSuites() {
+            return delegate.getEnabledCipherSuites();
+        }
+
+        @Override
+        public void setEnabledCipherSuites(String[] suites) {
+            delegate.setEnabledCipherSuites(suites);
+        }
+
+        @Override
+        public String[] getSupportedProtocols() {
+            return delegate.getSupportedProtocols();
+        }
+
+        @Override
+        public String[] getEnabledProtocols() {
+            return delegate.getEnabledProtocols();
+        }
+
+        @Override
+        public void setEnabledProtocols(String[] protocols) {
+            delegate.setEnabledProtocols(protocols);
+        }
+
+        @Override
+        public SSLSession getSession() {
+            return delegate.getSession();
+        }
+
+        @Override
+        public SSLSession getHandshakeSession() {
+            return delegate.getHandshakeSession();
+        }
+
+        @Override
+        public SSLEngineResult.HandshakeStatus getHandshakeStatus() {
+            return delegate.getHandshakeStatus();
+        }
+
+        @Override
+        public void setUseClientMode(boolean mode) {
+            delegate.setUseClientMode(mode);
+        }
+
+        @Override
+        public boolean getUseClientMode() {
+            return delegate.getUseClientMode();
+        }
+
+        @Override
+        public void setNeedClientAuth(boolean need) {
+            delegate.setNeedClientAuth(need);
+        }
+
+        @Override
+        public boolean getNeedClientAuth() {
+            return delegate.getNeedClientAuth();
+        }
+
+        @Override
+        public void setWantClientAuth(boolean want) {
+            delegate.setWantClientAuth(want);
+        }
+
+        @Override
+        public boolean getWantClientAuth() {
+            return delegate.getWantClientAuth();
+        }
+
+        @Override
+        public void setEnableSessionCreation(boolean flag) {
+            delegate.setEnableSessionCreation(flag);
+        }
+
+        @Override
+        public boolean getEnableSessionCreation() {
+            return delegate.getEnableSessionCreation();
+        }
+
+        @Override
+        public SSLParameters getSSLParameters() {
+            return delegate.getSSLParameters();
+        }
+
+        @Override
+        public void setSSLParameters(SSLParameters parameters) {
+            delegate.setSSLParameters(parameters);
+        }
+
+        @Override
+        public String getApplicationProtocol() {
+            return delegate.getApplicationProtocol();
+        }
+
+        @Override
+        public String getHandshakeApplicationProtocol() {
+            return delegate.getHandshakeApplicationProtocol();
+        }
+
+        @Override
+        public void setHandshakeApplicationProtocolSelector(
+                BiFunction<SSLEngine, List<String>, String> selector) {
+            delegate.setHandshakeApplicationProtocolSelector(selector);
+        }
+
+        @Override
+        public BiFunction<SSLEngine, List<String>, String>
+                getHandshakeApplicationProtocolSelector() {
+            return delegate.getHandshakeApplicationProtocolSelector();
+        }
+    }
+}
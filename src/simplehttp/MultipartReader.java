@@ -0,0 +1,311 @@
+package simplehttp;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A streaming parser for multipart/form-data request bodies. Parts are read
+ * from the connection one at a time as {@link #nextPart()} is called, so the
+ * body is never held in memory as a whole. Part content is kept in memory up
+ * to {@link FormLimits#getMaxInMemoryPartSize()} and spilled to a temporary
+ * file beyond it. Any temporary files are deleted once the request has been
+ * handled.
+ *
+ * Bodies that break the configured {@link FormLimits} end the request with a
+ * 413 Payload Too Large, and malformed bodies with a 400 Bad Request.
+ */
+public class MultipartReader {
+
+    private static final byte[] CRLF = {'\r', '\n'};
+
+    private final InputStream in;
+    private final FormLimits limits;
+    private final byte[] delimiter;
+    private final byte[] buffer;
+    private int position;
+    private int limit;
+
+    private final List<Path> spilledFiles = new ArrayList<>();
+    private int partCount;
+    private boolean finished;
+
+    MultipartReader(InputStream in, String boundary, FormLimits limits) {
+        this.in = in;
+        this.limits = limits;
+        this.delimiter = ("\r\n--" + boundary)
+                .getBytes(StandardCharsets.ISO_8859_1);
+        this.buffer = new byte[Math.max(8192, delimiter.length * 4)];
+        // The first delimiter may not be preceded by a line break, so one is
+        // assumed before the body to allow a single delimiter search.
+        System.arraycopy(CRLF, 0, buffer, 0, CRLF.length);
+        this.limit = CRLF.length;
+    }
+
+    /**
+     * Reads the next part of the body.
+     * @return the next part, or null if there are no more parts.
+     * @throws HttpStatusException if the body is malformed or breaks the
+     * configured limits.
+     */
+    public FormPart nextPart() {
+        if (finished) {
+            return null;
+        }
+        try {
+            if (partCount == 0) {
+                // Discard the preamble before the first delimiter.
+                readUntilDelimiter(OutputStream.nullOutputStream(), Long.MAX_VALUE);
+            }
+            if (readCloseDelimiterSuffix()) {
+                finished = true;
+                return null;
+            }
+            if (++partCount > limits.getMaxParts()) {
+                throw tooLarge("Multipart body has more than "
+                        + limits.getMaxParts() + " parts.");
+            }
+            SimpleHeaders headers = readPartHeaders();
+            return readPart(headers);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Deletes any temporary files created for spilled parts.
+    void close() {
+        for (Path file : spilledFiles) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        spilledFiles.clear();
+    }
+
+    private FormPart readPart(SimpleHeaders headers) throws IOException {
+        String disposition = headers.getFirstIgnoreCase("Content-Disposition");
+        if (disposition == null) {
+            throw badRequest("Multipart part is missing Content-Disposition.");
+        }
+        String name = headerParameter(disposition, "name");
+        String filename = headerParameter(disposition, "filename");
+        String contentType = headers.getFirstIgnoreCase(HttpHeader.CONTENT_TYPE);
+
+        SpillingOutputStream content = new SpillingOutputStream();
+        try {
+            readUntilDelimiter(content, limits.getMaxPartSize());
+        } finally {
+            content.close();
+        }
+        return new FormPart(name, filename, contentType, headers,
+                content.getBytes(), content.getFile(), content.getSize());
+    }
+
+    // Reads the two bytes after a delimiter, returning true if they mark the
+    // end of the body.
+    private boolean readCloseDelimiterSuffix() throws IOException {
+        int first = readByte();
+        int second = readByte();
+        if (first == '-' && second == '-') {
+            return true;
+        }
+        // Skip any transport padding before the line break.
+        while (first == ' ' || first == '\t') {
+            first = second;
+            second = readByte();
+        }
+        if (first != '\r' || second != '\n') {
+            throw badRequest("Malformed multipart delimiter.");
+        }
+        return false;
+    }
+
+    private SimpleHeaders readPartHeaders() throws IOException {
+        SimpleHeaders.Builder headers = new SimpleHeaders.Builder();
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int headerSize = 0;
+        while (true) {
+            line.reset();
+            int c;
+            while ((c = readByte()) != '\n') {
+                if (c < 0) {
+                    throw badRequest("Unexpected end of multipart headers.");
+                }
+                if (++headerSize > limits.getMaxPartHeaderSize()) {
+                    throw tooLarge("Multipart part headers exceed "
+                            + limits.getMaxPartHeaderSize() + " bytes.");
+                }
+                if (c != '\r') {
+                    line.write(c);
+                }
+            }
+            if (line.size() == 0) {
+                return headers.build();
+            }
+            String header = line.toString(StandardCharsets.UTF_8);
+            int colon = header.indexOf(':');
+            if (colon <= 0) {
+                throw badRequest("Malformed multipart header " + header);
+            }
+            headers.add(header.substring(0, colon).trim(),
+                    header.substring(colon + 1).trim());
+        }
+    }
+
+    // Copies bytes to the output until the next delimiter, which is consumed.
+    // Only bytes that cannot be the start of a delimiter are copied before
+    // more input is read, so a delimiter split across reads is still found.
+    private void readUntilDelimiter(OutputStream out, long maxSize)
+            throws IOException {
+        long size = 0;
+        while (true) {
+            int match = indexOfDelimiter();
+            int end = match >= 0 ? match
+                    : Math.max(position, limit - delimiter.length + 1);
+            size += end - position;
+            if (size > maxSize) {
+                throw tooLarge("Multipart part exceeds " + maxSize + " bytes.");
+            }
+            out.write(buffer, position, end - position);
+            position = end;
+            if (match >= 0) {
+                position += delimiter.length;
+                return;
+            }
+            if (!fill()) {
+                throw badRequest("Unexpected end of multipart body.");
+            }
+        }
+    }
+
+    private int indexOfDelimiter() {
+        int last = limit - delimiter.length;
+        outer:
+        for (int i = position; i <= last; i++) {
+            for (int j = 0; j < delimiter.length; j++) {
+                if (buffer[i + j] != delimiter[j]) {
+                    continue outer;
+                }
+            }
+            return i;
+        }
+        return -1;
+    }
+
+    private int readByte() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+        return buffer[position++] & 0xFF;
+    }
+
+    // Moves any unread bytes to the front of the buffer and reads more,
+    // returning false at the end of the body.
+    private boolean fill() throws IOException {
+        int remaining = limit - position;
+        System.arraycopy(buffer, position, buffer, 0, remaining);
+        position = 0;
+        limit = remaining;
+        int read = in.read(buffer, limit, buffer.length - limit);
+        if (read <= 0) {
+            return false;
+        }
+        limit += read;
+        return true;
+    }
+
+    // Extracts a parameter such as name="field" from a header value.
+    static String headerParameter(String headerValue, String parameter) {
+        for (String token : headerValue.split(";")) {
+            String trimmed = token.trim();
+            int equals = trimmed.indexOf('=');
+            if (equals > 0 && trimmed.substring(0, equals).trim()
+                    .equalsIgnoreCase(parameter)) {
+                String value = trimmed.substring(equals + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"")
+                        && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    private static HttpStatusException badRequest(String msg) {
+        return new HttpStatusException(HttpStatus.BAD_REQUEST, msg);
+    }
+
+    private static HttpStatusException tooLarge(String msg) {
+        return new HttpStatusException(HttpStatus.PAYLOAD_TOO_LARGE, msg);
+    }
+
+    // Buffers content in memory until it exceeds the in-memory limit, then
+    // moves it to a temporary file.
+    private class SpillingOutputStream extends OutputStream {
+
+        private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+        private OutputStream fileOut;
+        private Path file;
+        private long size;
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length)
+                throws IOException {
+            size += length;
+            if (fileOut == null
+                    && size > limits.getMaxInMemoryPartSize()) {
+                spill();
+            }
+            if (fileOut != null) {
+                fileOut.write(bytes, offset, length);
+            } else {
+                memory.write(bytes, offset, length);
+            }
+        }
+
+        private void spill() throws IOException {
+            file = limits.getSpillDirectory() == null
+                    ? Files.createTempFile("simplehttp-", ".part")
+                    : Files.createTempFile(limits.getSpillDirectory(),
+                            "simplehttp-", ".part");
+            spilledFiles.add(file);
+            fileOut = Files.newOutputStream(file);
+            memory.writeTo(fileOut);
+            memory = null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (fileOut != null) {
+                fileOut.close();
+            }
+        }
+
+        byte[] getBytes() {
+            return memory == null ? null : memory.toByteArray();
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        long getSize() {
+            return size;
+        }
+    }
+}
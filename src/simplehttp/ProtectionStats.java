@@ -0,0 +1,72 @@
+package simplehttp;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the requests that a {@link SimpleHttpServer} cut short to protect
+ * itself from slow or greedy clients, by the rule that applied. The counts
+ * can be read at any time using
+ * {@link SimpleHttpServer#getProtectionStats()}.
+ *
+ * Connections closed by the native header read and idle timeouts, set with
+ * {@link SimpleHttpServer#setNativeTimeouts}, are not reported by the native
+ * implementation, so they are not counted here.
+ */
+public final class ProtectionStats {
+
+    private final LongAdder requestTimeouts = new LongAdder();
+    private final LongAdder bodyReadTimeouts = new LongAdder();
+    private final LongAdder writeTimeouts = new LongAdder();
+    private final LongAdder addressLimitRejections = new LongAdder();
+
+    ProtectionStats() {}
+
+    /**
+     * Returns the number of requests answered with a 503 or 504 because
+     * their request deadline passed.
+     */
+    public long getRequestTimeouts() {
+        return requestTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of requests answered with a 408 because their body
+     * was not received in time.
+     */
+    public long getBodyReadTimeouts() {
+        return bodyReadTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of connections closed because the client did not
+     * accept a response write in time.
+     */
+    public long getWriteTimeouts() {
+        return writeTimeouts.sum();
+    }
+
+    /**
+     * Returns the number of requests answered with a 429 and closed because
+     * their client address already had the maximum number of requests in
+     * progress.
+     */
+    public long getAddressLimitRejections() {
+        return addressLimitRejections.sum();
+    }
+
+    void recordRequestTimeout() {
+        requestTimeouts.increment();
+    }
+
+    void recordBodyReadTimeout() {
+        bodyReadTimeouts.increment();
+    }
+
+    void recordWriteTimeout() {
+        writeTimeouts.increment();
+    }
+
+    void recordAddressLimitRejection() {
+        addressLimitRejections.increment();
+    }
+}
@@ -0,0 +1,47 @@
+package simplehttp;
+
+import java.time.Duration;
+import java.util.function.Consumer;
+
+/**
+ * A cache shared by several servers, used as the second tier of a
+ * {@link ResponseCache}. Implementations adapt a distributed store, such as
+ * a memcached or Redis cluster, and must be safe to call from many threads.
+ * {@link InProcessRemoteCache} is a stand-in for tests, shared by servers
+ * in the same process.
+ *
+ * Entries are grouped by request path, so that every variant of a path,
+ * one for each query string and set of varied header values, can be
+ * invalidated at once. Values are opaque to the store.
+ *
+ * Calls are made on the request's thread, so implementations should bound
+ * their own latency. A call that throws is counted and treated as a miss,
+ * and never fails the request.
+ */
+public interface RemoteCache {
+
+    /**
+     * Returns the value stored for the given variant of the path, or null
+     * if there is none or it has expired.
+     */
+    byte[] get(String path, String variant);
+
+    /**
+     * Stores a value for the given variant of the path, replacing any
+     * existing one, to be kept for at most the given time.
+     */
+    void put(String path, String variant, byte[] value, Duration ttl);
+
+    /**
+     * Removes every variant of the path and broadcasts the path to the
+     * invalidation listeners of all servers sharing the store, including
+     * this one, so they can drop any copies they hold.
+     */
+    void invalidate(String path);
+
+    /**
+     * Registers a listener that is called with each path invalidated by any
+     * server sharing the store.
+     */
+    void addInvalidationListener(Consumer<String> listener);
+}
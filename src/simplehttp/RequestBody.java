@@ -0,0 +1,593 @@
+package simplehttp;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.NonWritableChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A request body read in full, kept on the heap, in pooled direct chunks or
+ * in a temporary file as decided by {@link BodyBuffers}. Chunks and files
+ * are held until {@link #release()} is called once the request has been
+ * handled, after which the chunks are lent to other requests.
+ */
+final class RequestBody {
+
+    private static final long SPILL_TRANSFER_SIZE = 1024 * 1024;
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final long length;
+    private final BodyBuffers owner;
+
+    // Exactly one of these holds the body.
+    private byte[] heap;
+    private ByteBuffer[] chunks;
+    private FileChannel file;
+
+    // Made on first use from a chunked or file body.
+    private ByteBuffer mapped;
+    private byte[] copy;
+    private boolean released;
+
+    private RequestBody(long length, byte[] heap, ByteBuffer[] chunks,
+                        FileChannel file, BodyBuffers owner) {
+        this.length = length;
+        this.heap = heap;
+        this.chunks = chunks;
+        this.file = file;
+        this.owner = owner;
+    }
+
+    // Wraps bytes already on the heap.
+    static RequestBody of(byte[] bytes) {
+        return new RequestBody(bytes.length, bytes, null, null, null);
+    }
+
+    // Reads the whole stream, keeping it where the buffers decide. The
+    // content length is -1 if unknown. Throws an HttpStatusException if the
+    // body is larger than allowed.
+    static RequestBody read(InputStream in, long contentLength,
+                            BodyBuffers buffers) throws IOException {
+        long maxBodySize = buffers.getMaxBodySize();
+        if (contentLength > maxBodySize) {
+            throw tooLarge(maxBodySize);
+        }
+        int maxHeap = buffers.getMaxHeapBodySize();
+        if (contentLength >= 0 && contentLength <= maxHeap) {
+            return heap(in.readAllBytes(), buffers);
+        }
+        byte[] head = EMPTY;
+        if (contentLength < 0) {
+            // The size is only known once read, so the body starts on the
+            // heap and moves off it only if it outgrows the heap limit.
+            head = in.readNBytes(maxHeap + 1);
+            if (head.length <= maxHeap) {
+                return heap(head, buffers);
+            }
+            if (head.length > maxBodySize) {
+                throw tooLarge(maxBodySize);
+            }
+        }
+        return new Reader(in, contentLength, buffers).read(head);
+    }
+
+    private static RequestBody heap(byte[] bytes, BodyBuffers buffers) {
+        buffers.recordHeapBody();
+        return of(bytes);
+    }
+
+    private static HttpStatusException tooLarge(long maxBodySize) {
+        String msg = "Body is larger than " + maxBodySize + " bytes.";
+        return new HttpStatusException(HttpStatus.PAYLOAD_TOO_LARGE, msg);
+    }
+
+    long length() {
+        return length;
+    }
+
+    // Returns the body as a byte array. Bodies kept off the heap are copied
+    // to it once.
+    byte[] toByteArray() {
+        if (heap != null) {
+            return heap;
+        }
+        if (copy == null) {
+            if (length > Integer.MAX_VALUE - 8) {
+                String msg = "Body of " + length + " bytes is too large for "
+                        + "an array, read it as a channel instead.";
+                throw new IllegalStateException(msg);
+            }
+            byte[] bytes = new byte[(int) length];
+            if (chunks != null) {
+                int offset = 0;
+                for (ByteBuffer chunk : chunks) {
+                    int n = chunk.remaining();
+                    chunk.duplicate().get(bytes, offset, n);
+                    offset += n;
+                }
+            } else {
+                asBuffer().get(bytes);
+            }
+            copy = bytes;
+        }
+        return copy;
+    }
+
+    // Decodes the body, without copying it to a byte array first if it is
+    // held in a single buffer.
+    String toString(Charset charset) {
+        if (heap != null) {
+            return new String(heap, charset);
+        }
+        if (chunks != null && chunks.length > 1) {
+            return new String(toByteArray(), charset);
+        }
+        return charset.decode(asBuffer()).toString();
+    }
+
+    // Returns a read-only buffer over the whole body, with its own
+    // position. A file body is mapped into memory on first use, and a body
+    // spread over several chunks is copied to the heap once, as for
+    // toByteArray.
+    ByteBuffer asBuffer() {
+        if (heap != null) {
+            return ByteBuffer.wrap(heap).asReadOnlyBuffer();
+        }
+        if (chunks != null) {
+            return chunks.length == 1
+                    ? chunks[0].asReadOnlyBuffer()
+                    : ByteBuffer.wrap(toByteArray()).asReadOnlyBuffer();
+        }
+        if (mapped == null) {
+            if (length > Integer.MAX_VALUE) {
+                String msg = "Body of " + length + " bytes is too large for "
+                        + "a single buffer, read it as a channel instead.";
+                throw new IllegalStateException(msg);
+            }
+            try {
+                mapped = file.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return mapped.duplicate();
+    }
+
+    // Returns a read-only channel over the whole body, with its own
+    // position.
+    SeekableByteChannel newChannel() {
+        if (heap != null) {
+            return new BufferView(ByteBuffer.wrap(heap));
+        }
+        if (chunks != null) {
+            return new ChunkView(this);
+        }
+        return new FileView(file, length);
+    }
+
+    // Returns a stream over the whole body.
+    InputStream newInputStream() {
+        return Channels.newInputStream(newChannel());
+    }
+
+    // Gives the chunks back to the pool and deletes the body's file. Views
+    // that are still open afterwards can no longer read the body.
+    void release() {
+        if (released) {
+            return;
+        }
+        released = true;
+        if (chunks != null) {
+            for (ByteBuffer chunk : chunks) {
+                owner.releaseChunk(chunk);
+            }
+        }
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // The file is deleted on close, there is nothing to retry.
+            }
+        }
+    }
+
+    // Reads a body too large for the heap into pooled direct chunks,
+    // spilling it to a file once it outgrows the direct limit or the budget.
+    private static final class Reader {
+
+        private final ReadableByteChannel in;
+        private final long contentLength;
+        private final BodyBuffers buffers;
+        private final long maxBodySize;
+        private final List<ByteBuffer> chunks = new ArrayList<>();
+
+        private FileChannel file;
+
+        Reader(InputStream in, long contentLength, BodyBuffers buffers) {
+            this.in = Channels.newChannel(in);
+            this.contentLength = contentLength;
+            this.buffers = buffers;
+            this.maxBodySize = buffers.getMaxBodySize();
+        }
+
+        RequestBody read(byte[] head) throws IOException {
+            try {
+                long maxDirect = buffers.getMaxDirectBodySize();
+                if (contentLength > maxDirect || head.length > maxDirect) {
+                    return readFile(ByteBuffer.wrap(head));
+                }
+                return readChunks(ByteBuffer.wrap(head));
+            } catch (IOException | RuntimeException e) {
+                releaseChunks();
+                if (file != null) {
+                    file.close();
+                }
+                throw e;
+            }
+        }
+
+        // Fills chunks, first with the bytes already read, taking a new one
+        // from the pool as each fills up. Spills to a file if the body
+        // outgrows the direct limit or no chunk is left in the budget.
+        private RequestBody readChunks(ByteBuffer head) throws IOException {
+            long maxDirect = buffers.getMaxDirectBodySize();
+            ByteBuffer next = ByteBuffer.allocate(1).limit(0);
+            ByteBuffer chunk = null;
+            long total = 0;
+            while (true) {
+                if (chunk == null || !chunk.hasRemaining()) {
+                    // Before taking another chunk, make sure more is coming.
+                    // Without a length, only reading one more byte can tell.
+                    if (!head.hasRemaining()) {
+                        if (contentLength >= 0) {
+                            if (total >= contentLength) {
+                                break;
+                            }
+                        } else if (in.read(next.clear()) < 0) {
+                            break;
+                        } else {
+                            next.flip();
+                        }
+                    }
+                    chunk = total < maxDirect ? buffers.acquireChunk() : null;
+                    if (chunk == null) {
+                        return spill(head, next);
+                    }
+                    chunks.add(chunk);
+                }
+                if (head.hasRemaining()) {
+                    total += transfer(head, chunk);
+                } else if (next.hasRemaining()) {
+                    total += transfer(next, chunk);
+                } else {
+                    int read = in.read(chunk);
+                    if (read < 0) {
+                        break;
+                    }
+                    total += read;
+                    if (total > maxBodySize) {
+                        throw tooLarge(maxBodySize);
+                    }
+                }
+            }
+            buffers.recordDirectBody();
+            ByteBuffer[] filled = chunks.toArray(new ByteBuffer[0]);
+            for (ByteBuffer full : filled) {
+                full.flip();
+            }
+            chunks.clear();
+            return new RequestBody(total, null, filled, null, buffers);
+        }
+
+        // Writes the filled chunks and the pending bytes to a file, gives the
+        // chunks back, and streams the rest of the body after them.
+        private RequestBody spill(ByteBuffer head, ByteBuffer next)
+                throws IOException {
+            ByteBuffer[] pending = new ByteBuffer[chunks.size() + 2];
+            for (int i = 0; i < chunks.size(); i++) {
+                pending[i] = chunks.get(i).flip();
+            }
+            pending[chunks.size()] = head;
+            pending[chunks.size() + 1] = next;
+            RequestBody body = readFile(pending);
+            releaseChunks();
+            return body;
+        }
+
+        // Writes what was read so far to a new file and streams the rest of
+        // the body after it.
+        private RequestBody readFile(ByteBuffer... head) throws IOException {
+            file = buffers.createSpillFile();
+            long remaining = 0;
+            for (ByteBuffer buffer : head) {
+                remaining += buffer.remaining();
+            }
+            while (remaining > 0) {
+                remaining -= file.write(head);
+            }
+            long length = file.position();
+            if (length > maxBodySize) {
+                throw tooLarge(maxBodySize);
+            }
+            while (true) {
+                // One byte past the limit is enough to tell it was passed.
+                long allowed = maxBodySize - length;
+                long count = allowed < SPILL_TRANSFER_SIZE
+                        ? allowed + 1
+                        : SPILL_TRANSFER_SIZE;
+                long transferred = file.transferFrom(in, length, count);
+                if (transferred == 0) {
+                    break;
+                }
+                length += transferred;
+                if (length > maxBodySize) {
+                    throw tooLarge(maxBodySize);
+                }
+            }
+            buffers.recordSpilledBody();
+            FileChannel body = file;
+            file = null;
+            return new RequestBody(length, null, null, body, null);
+        }
+
+        private void releaseChunks() {
+            for (ByteBuffer chunk : chunks) {
+                buffers.releaseChunk(chunk);
+            }
+            chunks.clear();
+        }
+
+        // Moves as many bytes as fit from one buffer to the other.
+        private static int transfer(ByteBuffer from, ByteBuffer to) {
+            int count = Math.min(from.remaining(), to.remaining());
+            to.put(from.slice().limit(count));
+            from.position(from.position() + count);
+            return count;
+        }
+    }
+
+    // A read-only channel over a heap buffer.
+    private static final class BufferView implements SeekableByteChannel {
+
+        private final ByteBuffer buffer;
+        private boolean open = true;
+
+        BufferView(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int count = Math.min(dst.remaining(), buffer.remaining());
+            dst.put(buffer.slice().limit(count));
+            buffer.position(buffer.position() + count);
+            return count;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return buffer.position();
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition)
+                throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            buffer.position((int) Math.min(newPosition, buffer.limit()));
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return buffer.limit();
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!open) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    // A read-only channel over the chunks of a body. It stops reading once
+    // the body is released, as its chunks are then lent to other requests.
+    private static final class ChunkView implements SeekableByteChannel {
+
+        private final RequestBody body;
+        private long position;
+        private boolean open = true;
+
+        ChunkView(RequestBody body) {
+            this.body = body;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (position >= body.length) {
+                return -1;
+            }
+            int read = 0;
+            long chunkStart = 0;
+            for (ByteBuffer chunk : body.chunks) {
+                long chunkEnd = chunkStart + chunk.limit();
+                if (position < chunkEnd && dst.hasRemaining()) {
+                    int offset = (int) (position - chunkStart);
+                    int count = (int) Math.min(dst.remaining(),
+                            chunkEnd - position);
+                    dst.put(chunk.duplicate().position(offset)
+                            .limit(offset + count));
+                    position += count;
+                    read += count;
+                }
+                chunkStart = chunkEnd;
+            }
+            return read;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition)
+                throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return body.length;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && !body.released;
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+
+    // A read-only channel over a spilled file. Each view keeps its own
+    // position and reads at it, so views do not disturb each other.
+    private static final class FileView implements SeekableByteChannel {
+
+        private final FileChannel file;
+        private final long length;
+        private long position;
+        private boolean open = true;
+
+        FileView(FileChannel file, long length) {
+            this.file = file;
+            this.length = length;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            ensureOpen();
+            if (position >= length) {
+                return -1;
+            }
+            int read = file.read(dst, position);
+            if (read > 0) {
+                position += read;
+            }
+            return read;
+        }
+
+        @Override
+        public long position() throws IOException {
+            ensureOpen();
+            return position;
+        }
+
+        @Override
+        public SeekableByteChannel position(long newPosition)
+                throws IOException {
+            ensureOpen();
+            if (newPosition < 0) {
+                throw new IllegalArgumentException("Negative position");
+            }
+            position = newPosition;
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            ensureOpen();
+            return length;
+        }
+
+        @Override
+        public int write(ByteBuffer src) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public SeekableByteChannel truncate(long size) {
+            throw new NonWritableChannelException();
+        }
+
+        @Override
+        public boolean isOpen() {
+            return open && file.isOpen();
+        }
+
+        @Override
+        public void close() {
+            open = false;
+        }
+
+        private void ensureOpen() throws ClosedChannelException {
+            if (!isOpen()) {
+                throw new ClosedChannelException();
+            }
+        }
+    }
+}
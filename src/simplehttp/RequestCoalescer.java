@@ -0,0 +1,160 @@
+package simplehttp;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Collapses concurrent identical GET requests to an action marked with
+ * {@link SingleFlight} into a single call to its handler. The first request
+ * for a key becomes the leader and runs the handler, while requests for the
+ * same key that arrive before it finishes wait for, and are sent, the
+ * leader's response. If the leader has no response to share, one of its
+ * waiters takes over as leader and runs the handler, and the rest wait for
+ * it in turn, so a failing or streaming handler is still called only once
+ * at a time per key.
+ *
+ * The counters can be read at any time from
+ * {@link SimpleHttpServer#getRequestCoalescers()}.
+ */
+public final class RequestCoalescer {
+
+    private final long maxWaitNanos;
+    private final String[] varyHeaders;
+    private final ConcurrentHashMap<String, CompletableFuture<SimpleResponse>>
+            flights = new ConcurrentHashMap<>();
+
+    private final LongAdder leaders = new LongAdder();
+    private final LongAdder collapsed = new LongAdder();
+    private final LongAdder timedOut = new LongAdder();
+    private final LongAdder unshared = new LongAdder();
+
+    RequestCoalescer(SingleFlight config) {
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(config.maxWaitMillis());
+        this.varyHeaders = config.varyHeaders().clone();
+    }
+
+    /**
+     * Returns the number of requests that ran the handler as a leader.
+     */
+    public long getLeaderCount() {
+        return leaders.sum();
+    }
+
+    /**
+     * Returns the number of requests that were sent a leader's response
+     * instead of running the handler.
+     */
+    public long getCollapsedCount() {
+        return collapsed.sum();
+    }
+
+    /**
+     * Returns the number of requests that stopped waiting for a leader
+     * because the maximum wait or their deadline passed, and ran the handler
+     * themselves.
+     */
+    public long getTimedOutCount() {
+        return timedOut.sum();
+    }
+
+    /**
+     * Returns the number of requests that took over as leader and ran the
+     * handler because the previous leader had no response to share, for
+     * example because it streamed its response or failed.
+     */
+    public long getUnsharedCount() {
+        return unshared.sum();
+    }
+
+    /**
+     * Returns the number of keys with a leader currently in progress.
+     */
+    public int getInFlightCount() {
+        return flights.size();
+    }
+
+    // Wraps the given handler so concurrent requests with the same key share
+    // a single call to it.
+    DispatchTable.Handler wrap(DispatchTable.Handler handler) {
+        return (request, sender) -> handle(handler, request, sender);
+    }
+
+    private void handle(DispatchTable.Handler handler, SimpleRequest request,
+                        ResponseSender sender) {
+        String key = keyFor(request);
+        long waitUntil = System.nanoTime() + maxWaitNanos;
+        boolean promoted = false;
+        while (true) {
+            CompletableFuture<SimpleResponse> flight = new CompletableFuture<>();
+            CompletableFuture<SimpleResponse> leader =
+                    flights.putIfAbsent(key, flight);
+            if (leader == null) {
+                (promoted ? unshared : leaders).increment();
+                lead(handler, request, sender, key, flight);
+                return;
+            }
+
+            SimpleResponse response;
+            try {
+                long waitNanos = waitUntil - System.nanoTime();
+                Deadline deadline = request.getDeadline();
+                if (deadline.isBounded()) {
+                    waitNanos = Math.min(waitNanos, deadline.remainingNanos());
+                }
+                response = leader.get(Math.max(0, waitNanos),
+                        TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                // The request deadline passed and the server has responded.
+                Thread.currentThread().interrupt();
+                return;
+            } catch (TimeoutException e) {
+                timedOut.increment();
+                handler.handle(request, sender);
+                return;
+            } catch (ExecutionException e) {
+                response = null;
+            }
+            if (response != null) {
+                collapsed.increment();
+                sender.send(response);
+                return;
+            }
+            // The leader had nothing to share. The first waiter to start a
+            // new flight takes over and the others wait for it.
+            promoted = true;
+        }
+    }
+
+    private void lead(DispatchTable.Handler handler, SimpleRequest request,
+                      ResponseSender sender, String key,
+                      CompletableFuture<SimpleResponse> flight) {
+        try {
+            handler.handle(request, sender);
+        } finally {
+            // Removed before completing, so a request arriving after the
+            // response is final starts a new flight instead of joining.
+            flights.remove(key, flight);
+            flight.complete(sender.getSentResponse());
+        }
+    }
+
+    private String keyFor(SimpleRequest request) {
+        StringBuilder key = new StringBuilder(request.getUri().getRawPath());
+        String query = request.getUri().getRawQuery();
+        if (query != null) {
+            key.append('?').append(query);
+        }
+        SimpleHeaders headers = request.getHeaders();
+        for (String header : varyHeaders) {
+            String value = headers.getFirstIgnoreCase(header);
+            // Line breaks cannot appear in paths or header values, so they
+            // keep the parts of the key apart.
+            key.append('\n').append(value == null ? "" : value);
+        }
+        return key.toString();
+    }
+}
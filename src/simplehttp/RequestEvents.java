@@ -0,0 +1,143 @@
+package simplehttp;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JDK Flight Recorder events for the phases of a request, so a recording
+ * shows where the time of a slow request went. Each event is tagged with the
+ * action's resource path, the request method and the response status:
+ * <ul>
+ *     <li>{@code simplehttp.QueueWait}: from the native server handing off
+ *     the exchange until an executor thread picks it up.</li>
+ *     <li>{@code simplehttp.RequestRead}: reading the request headers and,
+ *     except for multipart bodies, the request body.</li>
+ *     <li>{@code simplehttp.Handler}: the action's handle method.</li>
+ *     <li>{@code simplehttp.ResponseWrite}: each write of a response, or a
+ *     chunk of one, to the connection, including the flush.</li>
+ * </ul>
+ *
+ * The events are disabled by default, even in a recording using the
+ * default settings, and cost next to nothing until enabled. They can be
+ * enabled with a settings file passed to {@code jcmd <pid> JFR.start}, or
+ * in code with {@code Recording.enable("simplehttp.Handler")}.
+ */
+final class RequestEvents {
+
+    private static final EventType QUEUE_WAIT =
+            EventType.getEventType(QueueWait.class);
+    private static final EventType REQUEST_READ =
+            EventType.getEventType(RequestRead.class);
+    private static final EventType HANDLER =
+            EventType.getEventType(Handler.class);
+    private static final EventType RESPONSE_WRITE =
+            EventType.getEventType(ResponseWrite.class);
+
+    private RequestEvents() { /* Utility class not meant to be instantiated */ }
+
+    // Starts a queue wait event, or returns null if no recording wants it.
+    // Events are only created when enabled, so that requests allocate
+    // nothing for them while no recording is running.
+    static QueueWait beginQueueWait() {
+        if (!QUEUE_WAIT.isEnabled()) {
+            return null;
+        }
+        QueueWait event = new QueueWait();
+        event.begin();
+        return event;
+    }
+
+    // Starts a request read event, or returns null if no recording wants it.
+    static RequestRead beginRequestRead() {
+        if (!REQUEST_READ.isEnabled()) {
+            return null;
+        }
+        RequestRead event = new RequestRead();
+        event.begin();
+        return event;
+    }
+
+    // Starts a handler event, or returns null if no recording wants it.
+    static Handler beginHandler() {
+        if (!HANDLER.isEnabled()) {
+            return null;
+        }
+        Handler event = new Handler();
+        event.begin();
+        return event;
+    }
+
+    // Starts a response write event, or returns null if no recording
+    // wants it.
+    static ResponseWrite beginResponseWrite() {
+        if (!RESPONSE_WRITE.isEnabled()) {
+            return null;
+        }
+        ResponseWrite event = new ResponseWrite();
+        event.begin();
+        return event;
+    }
+
+    // Fields shared by all request events.
+    @Category({"SimpleHttp", "Request"})
+    @StackTrace(false)
+    @Enabled(false)
+    abstract static class RequestEvent extends Event {
+
+        @Label("Route")
+        @Description("Resource path of the action handling the request")
+        String route;
+
+        @Label("Method")
+        String method;
+
+        @Label("Status")
+        @Description("Response status code, or 0 if none was sent")
+        int status;
+
+        // Commits the event with the given tags if a recording wants it.
+        void commit(String route, String method, int status) {
+            if (shouldCommit()) {
+                this.route = route;
+                this.method = method;
+                this.status = status;
+                commit();
+            }
+        }
+    }
+
+    @Name("simplehttp.QueueWait")
+    @Label("Queue Wait")
+    @Description("Time a request waited for an executor thread")
+    static final class QueueWait extends RequestEvent {
+    }
+
+    @Name("simplehttp.RequestRead")
+    @Label("Request Read")
+    @Description("Time spent reading the request headers and body")
+    static final class RequestRead extends RequestEvent {
+    }
+
+    @Name("simplehttp.Handler")
+    @Label("Handler")
+    @Description("Time spent in the action's handle method")
+    static final class Handler extends RequestEvent {
+    }
+
+    @Name("simplehttp.ResponseWrite")
+    @Label("Response Write")
+    @Description("Time spent writing and flushing a response or chunk")
+    static final class ResponseWrite extends RequestEvent {
+
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
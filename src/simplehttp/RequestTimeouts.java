@@ -0,0 +1,253 @@
+package simplehttp;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Enforces request deadlines and body read and response write timeouts. A
+ * single {@link TimerWheel} watches every in-progress request, so arming and
+ * disarming a watch is O(1) however many requests are in flight. When a
+ * watch expires, the client is sent the given error status on the handler's
+ * behalf, if it can still be sent, and only then is the handler thread
+ * interrupted so that it can give up and return to the executor. A handler
+ * caught in the middle of writing its response is interrupted first, as
+ * the status can no longer be sent. Sending
+ * the status can block on a slow client, so it is done on a separate thread
+ * rather than the timer's, which would hold up every other timeout.
+ *
+ * A thread blocked reading the request body is never interrupted, as that
+ * would close the connection before the status could be sent. The native
+ * server closes the connection itself once the status is sent with part of
+ * the body unread, which frees the thread.
+ *
+ * Interruption is cooperative: a handler that ignores interrupts will keep
+ * its thread until it returns, but its client is no longer kept waiting. A
+ * thread blocked writing to a slow client is always freed, as interrupting
+ * it closes the connection; no status can be sent once a response has
+ * started.
+ */
+final class RequestTimeouts {
+
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final int WHEEL_SIZE = 512;
+
+    private final Duration requestTimeout;
+    private final Duration bodyReadTimeout;
+    private final Duration writeTimeout;
+    private final ProtectionStats stats;
+
+    private TimerWheel timer;
+    private ExecutorService aborts;
+
+    // A null timeout disables the corresponding check.
+    RequestTimeouts(Duration requestTimeout, Duration bodyReadTimeout,
+                    Duration writeTimeout, ProtectionStats stats) {
+        this.requestTimeout = requestTimeout;
+        this.bodyReadTimeout = bodyReadTimeout;
+        this.writeTimeout = writeTimeout;
+        this.stats = stats;
+    }
+
+    Duration getRequestTimeout() {
+        return requestTimeout;
+    }
+
+    Duration getBodyReadTimeout() {
+        return bodyReadTimeout;
+    }
+
+    Duration getWriteTimeout() {
+        return writeTimeout;
+    }
+
+    ProtectionStats getStats() {
+        return stats;
+    }
+
+    // Starts the timer thread.
+    synchronized void start() {
+        if (timer != null) {
+            return;
+        }
+        aborts = Executors.newCachedThreadPool(task -> {
+            Thread thread = new Thread(task, "simplehttp-timeout-abort");
+            thread.setDaemon(true);
+            return thread;
+        });
+        timer = new TimerWheel("simplehttp-timeouts", TICK_NANOS, WHEEL_SIZE);
+        timer.start();
+    }
+
+    // Stops the timer thread. Outstanding watches never fire.
+    synchronized void shutdown() {
+        if (timer != null) {
+            timer.stop();
+            timer = null;
+            aborts.shutdown();
+            aborts = null;
+        }
+    }
+
+    // Returns the deadline for a request to the given action, accepted at
+    // the given time. The action's own timeout takes precedence over the
+    // server-wide one.
+    Deadline deadlineFor(SimpleAction action, long acceptedAtNanos) {
+        long actionTimeoutMillis = action.getTimeoutMillis();
+        if (actionTimeoutMillis > 0) {
+            return Deadline.afterNanos(acceptedAtNanos,
+                    TimeUnit.MILLISECONDS.toNanos(actionTimeoutMillis));
+        }
+        if (requestTimeout != null) {
+            return Deadline.afterNanos(acceptedAtNanos, requestTimeout.toNanos());
+        }
+        return Deadline.none();
+    }
+
+    // Returns the deadline for reading the request body, starting now.
+    Deadline bodyReadDeadline() {
+        if (bodyReadTimeout == null) {
+            return Deadline.none();
+        }
+        return Deadline.after(bodyReadTimeout);
+    }
+
+    // Watches the current thread until the deadline passes or the returned
+    // watch is finished, whichever comes first. An unbounded deadline is
+    // never watched. A 408 status is counted as a body read timeout, and
+    // any other status as a request timeout.
+    Watch watch(Deadline deadline, ResponseSender sender, HttpStatus status) {
+        return arm(deadline, new Watch(Thread.currentThread(), sender,
+                status, counterFor(status), true));
+    }
+
+    // Watches the current thread while it reads the request body. Unlike
+    // watch, the thread is not interrupted when the deadline passes, as it
+    // is blocked on the connection the status is sent to.
+    Watch watchBodyRead(Deadline deadline, ResponseSender sender,
+                        HttpStatus status) {
+        return arm(deadline, new Watch(Thread.currentThread(), sender,
+                status, counterFor(status), false));
+    }
+
+    private Runnable counterFor(HttpStatus status) {
+        return status == HttpStatus.REQUEST_TIMEOUT
+                ? stats::recordBodyReadTimeout
+                : stats::recordRequestTimeout;
+    }
+
+    // Watches a single response write by the current thread. If the write
+    // does not finish in time, the thread is interrupted, which closes the
+    // connection since no status can be sent once the response has started.
+    Watch watchWrite(ResponseSender sender) {
+        if (writeTimeout == null) {
+            return Watch.NONE;
+        }
+        return arm(Deadline.after(writeTimeout), new Watch(
+                Thread.currentThread(), sender, null,
+                stats::recordWriteTimeout, true));
+    }
+
+    private synchronized Watch arm(Deadline deadline, Watch watch) {
+        if (deadline.isBounded() && timer != null) {
+            watch.aborts = aborts;
+            watch.timeout = timer.schedule(watch,
+                    System.nanoTime() + Math.max(0, deadline.remainingNanos()));
+        }
+        return watch;
+    }
+
+    /**
+     * A single armed timeout for a thread working on a request.
+     */
+    static final class Watch implements Runnable {
+
+        // A watch that is never armed, for disabled timeouts.
+        private static final Watch NONE =
+                new Watch(null, null, null, null, false);
+
+        private final Thread thread;
+        private final ResponseSender sender;
+        private final HttpStatus status;
+        private final Runnable counter;
+        private final boolean interrupt;
+        private final int generation;
+
+        private TimerWheel.Timeout timeout;
+        private ExecutorService aborts;
+        private boolean finished;
+        private boolean expired;
+
+        private Watch(Thread thread, ResponseSender sender, HttpStatus status,
+                      Runnable counter, boolean interrupt) {
+            this.thread = thread;
+            this.sender = sender;
+            this.status = status;
+            this.counter = counter;
+            this.interrupt = interrupt;
+            this.generation = sender == null ? 0 : sender.getGeneration();
+        }
+
+        // Runs on the timer thread, so anything that can block is handed
+        // over to the abort executor.
+        @Override
+        public void run() {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                expired = true;
+                counter.run();
+                sender.expire();
+            }
+            try {
+                aborts.execute(this::abort);
+            } catch (RejectedExecutionException e) {
+                // The server is stopping and closes every connection anyway.
+            }
+        }
+
+        // Answers the client, then frees the watched thread if it is still
+        // working on the same request. A thread writing to the client holds
+        // the sender's lock until the write completes, so it is freed first;
+        // the response has started and the status could not be sent anyway.
+        private void abort() {
+            if (sender.isWriting()) {
+                interruptIfWatching();
+            }
+            if (status != null) {
+                sender.abort(status, generation);
+            }
+            interruptIfWatching();
+        }
+
+        private synchronized void interruptIfWatching() {
+            if (interrupt && !finished) {
+                thread.interrupt();
+            }
+        }
+
+        // Disarms the watch. Must be called from the watched thread, and
+        // clears any interrupt raised by the watch so the thread can be
+        // reused for the next request.
+        void finish() {
+            if (timeout == null) {
+                return;
+            }
+            timeout.cancel();
+            synchronized (this) {
+                finished = true;
+            }
+            if (expired) {
+                Thread.interrupted();
+            }
+        }
+
+        // Returns true if the watch fired before it was finished.
+        synchronized boolean isExpired() {
+            return expired;
+        }
+    }
+}
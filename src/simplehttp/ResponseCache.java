@@ -0,0 +1,425 @@
+package simplehttp;
+
+import java.nio.ByteBuffer;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A two-tier cache for the GET responses of actions marked with
+ * {@link Cached}. Each server keeps a near cache of recently used responses
+ * in memory, in front of an optional {@link RemoteCache} shared by every
+ * server behind the same balancer, so a response computed by one server can
+ * be served by all of them. The cache can be created using the
+ * {@link Builder} class and set on the server with
+ * {@link SimpleHttpServer.Builder#setResponseCache}.
+ *
+ * A request is answered from the near cache if it can be, and otherwise
+ * from the remote cache, whose entry is then copied to the near cache. Only
+ * when both miss is the action's handler called, and its response stored
+ * in both tiers. Remote entries keep their original expiry time when copied,
+ * so every server stops serving an entry at the same moment.
+ *
+ * Near entries are kept on the heap as ready-to-send responses or, to keep
+ * a large cache from adding to garbage collection work, encoded in direct
+ * buffers and decoded on each hit. The least recently used entries are
+ * evicted once the near cache reaches its entry or byte limit.
+ *
+ * Invalidating a path drops it from every server's near cache, through the
+ * remote cache's invalidation broadcast. A response being computed while
+ * its path is invalidated is sent but not stored. If the invalidation
+ * arrives while the response is being put in the remote cache, the put may
+ * land after the remote entry was removed, so the path is invalidated again
+ * to remove the stale copy.
+ */
+public final class ResponseCache {
+
+    private final RemoteCache remoteCache;
+    private final int nearCapacity;
+    private final long maxNearBytes;
+    private final boolean nearOffHeap;
+
+    // Kept in access order, so the eldest entry is the least recently used.
+    private final LinkedHashMap<String, NearEntry> near =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long nearBytes;
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private final LongAdder nearHits = new LongAdder();
+    private final LongAdder remoteHits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder stores = new LongAdder();
+    private final LongAdder remoteErrors = new LongAdder();
+
+    private ResponseCache(Builder builder) {
+        this.remoteCache = builder.remoteCache;
+        this.nearCapacity = builder.nearCapacity;
+        this.maxNearBytes = builder.maxNearBytes;
+        this.nearOffHeap = builder.nearOffHeap;
+        if (remoteCache != null) {
+            remoteCache.addInvalidationListener(this::dropNear);
+        }
+    }
+
+    /**
+     * Removes every cached response for the given request path, on this
+     * server and, through the remote cache, on all others.
+     */
+    public void invalidate(String path) {
+        dropNear(path);
+        if (remoteCache != null) {
+            try {
+                remoteCache.invalidate(path);
+            } catch (RuntimeException e) {
+                remoteErrors.increment();
+            }
+        }
+    }
+
+    /**
+     * Returns the number of requests answered from the near cache.
+     */
+    public long getNearHitCount() {
+        return nearHits.sum();
+    }
+
+    /**
+     * Returns the number of requests answered from the remote cache.
+     */
+    public long getRemoteHitCount() {
+        return remoteHits.sum();
+    }
+
+    /**
+     * Returns the number of requests that missed both tiers and were passed
+     * to the action.
+     */
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    /**
+     * Returns the number of responses stored.
+     */
+    public long getStoreCount() {
+        return stores.sum();
+    }
+
+    /**
+     * Returns the number of remote cache calls that failed, or returned an
+     * entry that could not be decoded, and were treated as misses.
+     */
+    public long getRemoteErrorCount() {
+        return remoteErrors.sum();
+    }
+
+    /**
+     * Returns the number of entries in the near cache.
+     */
+    public int getNearEntryCount() {
+        synchronized (near) {
+            return near.size();
+        }
+    }
+
+    /**
+     * Returns the encoded size in bytes of the entries in the near cache.
+     */
+    public long getNearBytes() {
+        synchronized (near) {
+            return nearBytes;
+        }
+    }
+
+    // Wraps the GET handler of the given action so its responses are
+    // cached, or returns null if the action is not marked with Cached.
+    DispatchTable.Handler wrap(SimpleAction action,
+                               DispatchTable.Handler handler) {
+        Cached config = action.getClass().getDeclaredAnnotation(Cached.class);
+        if (config == null) {
+            return null;
+        }
+        Duration ttl = Duration.ofMillis(config.ttlMillis());
+        String[] varyHeaders = config.varyHeaders().clone();
+        return (request, sender) ->
+                handle(handler, ttl, varyHeaders, request, sender);
+    }
+
+    private void handle(DispatchTable.Handler handler, Duration ttl,
+                        String[] varyHeaders, SimpleRequest request,
+                        ResponseSender sender) {
+        String path = request.getUri().getRawPath();
+        String variant = variantFor(request, varyHeaders);
+        String key = path + variant;
+        SimpleResponse cached = lookup(path, variant, key);
+        if (cached != null) {
+            sender.send(cached);
+            return;
+        }
+        misses.increment();
+        long invalidationsBefore = invalidations.get();
+        handler.handle(request, sender);
+        SimpleResponse response = sender.getSentResponse();
+        if (response != null && isStorable(response)) {
+            store(path, variant, key, response, ttl, invalidationsBefore);
+        }
+    }
+
+    private SimpleResponse lookup(String path, String variant, String key) {
+        long now = System.currentTimeMillis();
+        if (nearCapacity > 0) {
+            NearEntry entry;
+            synchronized (near) {
+                entry = near.get(key);
+                if (entry != null && entry.expiresAtMillis <= now) {
+                    removeNear(key);
+                    entry = null;
+                }
+            }
+            if (entry != null) {
+                nearHits.increment();
+                return entry.response();
+            }
+        }
+        if (remoteCache == null) {
+            return null;
+        }
+        long invalidationsBefore = invalidations.get();
+        try {
+            byte[] value = remoteCache.get(path, variant);
+            if (value == null) {
+                return null;
+            }
+            ByteBuffer encoded = ByteBuffer.wrap(value);
+            long expiresAtMillis = ResponseCodec.expiresAtMillis(encoded);
+            if (expiresAtMillis <= now) {
+                return null;
+            }
+            SimpleResponse response = ResponseCodec.decode(encoded);
+            putNear(key, value, response, expiresAtMillis,
+                    invalidationsBefore);
+            remoteHits.increment();
+            return response;
+        } catch (RuntimeException e) {
+            remoteErrors.increment();
+            return null;
+        }
+    }
+
+    private void store(String path, String variant, String key,
+                       SimpleResponse response, Duration ttl,
+                       long invalidationsBefore) {
+        long expiresAtMillis = System.currentTimeMillis() + ttl.toMillis();
+        byte[] value = ResponseCodec.encode(response, expiresAtMillis);
+        // The stored copy is decoded from the entry, so later changes to the
+        // handler's response or its headers cannot leak into the cache.
+        SimpleResponse copy = nearOffHeap ? null
+                : ResponseCodec.decode(ByteBuffer.wrap(value));
+        if (!putNear(key, value, copy, expiresAtMillis, invalidationsBefore)) {
+            return;
+        }
+        stores.increment();
+        if (remoteCache != null) {
+            try {
+                remoteCache.put(path, variant, value, ttl);
+                // The near cache's lock cannot be held across a remote call,
+                // so an invalidation may have removed the remote entry just
+                // before the put landed. Removing it again costs the path's
+                // other variants, but never leaves a stale entry behind.
+                if (invalidations.get() != invalidationsBefore) {
+                    remoteCache.invalidate(path);
+                }
+            } catch (RuntimeException e) {
+                remoteErrors.increment();
+            }
+        }
+    }
+
+    // Adds an entry to the near cache, evicting the least recently used
+    // entries to make room. Returns false if the path was invalidated since
+    // the entry was fetched or computed, or if a live entry is already
+    // present, as when several coalesced requests share one response.
+    private boolean putNear(String key, byte[] value, SimpleResponse response,
+                            long expiresAtMillis, long invalidationsBefore) {
+        if (nearCapacity == 0) {
+            return invalidations.get() == invalidationsBefore;
+        }
+        NearEntry entry = new NearEntry(nearOffHeap
+                ? ByteBuffer.allocateDirect(value.length).put(value).flip()
+                : null, response, value.length, expiresAtMillis);
+        synchronized (near) {
+            if (invalidations.get() != invalidationsBefore) {
+                return false;
+            }
+            NearEntry existing = near.get(key);
+            if (existing != null
+                    && existing.expiresAtMillis > System.currentTimeMillis()) {
+                return false;
+            }
+            removeNear(key);
+            near.put(key, entry);
+            nearBytes += entry.size;
+            Iterator<NearEntry> eldest = near.values().iterator();
+            while (near.size() > nearCapacity || nearBytes > maxNearBytes) {
+                nearBytes -= eldest.next().size;
+                eldest.remove();
+            }
+        }
+        return true;
+    }
+
+    // Must hold the near cache's lock.
+    private void removeNear(String key) {
+        NearEntry removed = near.remove(key);
+        if (removed != null) {
+            nearBytes -= removed.size;
+        }
+    }
+
+    // Drops every near entry for the path. Keys are the path followed by
+    // the variant, which always starts with '?', a character that cannot
+    // appear unescaped in a raw path.
+    private void dropNear(String path) {
+        String prefix = path + '?';
+        synchronized (near) {
+            invalidations.incrementAndGet();
+            Iterator<Map.Entry<String, NearEntry>> entries =
+                    near.entrySet().iterator();
+            while (entries.hasNext()) {
+                Map.Entry<String, NearEntry> entry = entries.next();
+                if (entry.getKey().startsWith(prefix)) {
+                    nearBytes -= entry.getValue().size;
+                    entries.remove();
+                }
+            }
+        }
+    }
+
+    private static String variantFor(SimpleRequest request,
+                                     String[] varyHeaders) {
+        StringBuilder variant = new StringBuilder("?");
+        String query = request.getUri().getRawQuery();
+        if (query != null) {
+            variant.append(query);
+        }
+        SimpleHeaders headers = request.getHeaders();
+        for (String header : varyHeaders) {
+            String value = headers.getFirstIgnoreCase(header);
+            // Line breaks cannot appear in queries or header values, so they
+            // keep the parts of the variant apart.
+            variant.append('\n').append(value == null ? "" : value);
+        }
+        return variant.toString();
+    }
+
+    private static boolean isStorable(SimpleResponse response) {
+        if (response.getStatusCode() != HttpStatus.OK.code()) {
+            return false;
+        }
+        SimpleHeaders headers = response.getHeaders();
+        if (headers.getFirstIgnoreCase(HttpHeader.SET_COOKIE) != null) {
+            return false;
+        }
+        String cacheControl =
+                headers.getFirstIgnoreCase(HttpHeader.CACHE_CONTROL);
+        if (cacheControl == null) {
+            return true;
+        }
+        String directives = cacheControl.toLowerCase(Locale.ROOT);
+        return !directives.contains("no-store")
+                && !directives.contains("private");
+    }
+
+    /**
+     * A near cache entry, holding either a decoded response on the heap or
+     * its encoded form in a direct buffer.
+     */
+    private static final class NearEntry {
+        private final ByteBuffer encoded;
+        private final SimpleResponse decoded;
+        private final int size;
+        private final long expiresAtMillis;
+
+        private NearEntry(ByteBuffer encoded, SimpleResponse decoded,
+                          int size, long expiresAtMillis) {
+            this.encoded = encoded;
+            this.decoded = decoded;
+            this.size = size;
+            this.expiresAtMillis = expiresAtMillis;
+        }
+
+        private SimpleResponse response() {
+            return decoded != null ? decoded : ResponseCodec.decode(encoded);
+        }
+    }
+
+    /**
+     * Builder for creating a new {@link ResponseCache}.
+     */
+    public static class Builder {
+
+        private RemoteCache remoteCache;
+        private int nearCapacity = 10_000;
+        private long maxNearBytes = 64L * 1024 * 1024;
+        private boolean nearOffHeap;
+
+        /**
+         * Sets the cache shared with other servers. If null, the default,
+         * responses are only cached by this server.
+         */
+        public Builder setRemoteCache(RemoteCache remoteCache) {
+            this.remoteCache = remoteCache;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of entries in the near cache. A 0-value
+         * disables the near cache, so every lookup goes to the remote cache.
+         * Defaults to 10000.
+         */
+        public Builder setNearCapacity(int nearCapacity) {
+            this.nearCapacity = nearCapacity;
+            return this;
+        }
+
+        /**
+         * Sets the maximum encoded size in bytes of the entries in the near
+         * cache. Defaults to 64 MB.
+         */
+        public Builder setMaxNearBytes(long maxNearBytes) {
+            this.maxNearBytes = maxNearBytes;
+            return this;
+        }
+
+        /**
+         * Keeps near entries encoded in direct buffers, outside the heap,
+         * instead of as decoded responses. Each hit then decodes its entry.
+         * Disabled by default.
+         */
+        public Builder setNearOffHeap(boolean nearOffHeap) {
+            this.nearOffHeap = nearOffHeap;
+            return this;
+        }
+
+        /**
+         * Builds a new {@link ResponseCache} from this builder.
+         */
+        public ResponseCache build() {
+            if (nearCapacity < 0) {
+                String msg = "The nearCapacity field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            if (maxNearBytes < 0) {
+                String msg = "The maxNearBytes field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            return new ResponseCache(this);
+        }
+    }
+}
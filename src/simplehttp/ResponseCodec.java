@@ -0,0 +1,157 @@
+package simplehttp;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Converts cached responses to and from a compact binary form, used to
+ * store them in a {@link RemoteCache} and off the heap. An entry holds:
+ * <pre>
+ * version          1 byte
+ * expires at       8 bytes, milliseconds since the epoch
+ * status code      varint
+ * header count     varint
+ *   name           varint length, UTF-8 bytes
+ *   value count    varint
+ *     value        varint length, UTF-8 bytes
+ * body             varint length, bytes
+ * </pre>
+ * Varints use 7 bits per byte, least significant group first, so most
+ * lengths and status codes take one or two bytes.
+ */
+final class ResponseCodec {
+
+    private static final byte VERSION = 1;
+
+    private ResponseCodec() { /* Utility class not meant to be instantiated */ }
+
+    // Encodes the response, to expire at the given time. The size is worked
+    // out first so the entry is written into an exactly sized array.
+    static byte[] encode(SimpleResponse response, long expiresAtMillis) {
+        Map<String, List<String>> headers = response.getHeaders().toMap();
+        List<byte[]> strings = new ArrayList<>();
+        int size = 1 + Long.BYTES + varintSize(response.getStatusCode())
+                + varintSize(headers.size());
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            size += addString(strings, header.getKey());
+            size += varintSize(header.getValue().size());
+            for (String value : header.getValue()) {
+                size += addString(strings, value);
+            }
+        }
+        byte[] body = response.getBodyRaw();
+        size += varintSize(body.length) + body.length;
+
+        ByteBuffer out = ByteBuffer.allocate(size);
+        out.put(VERSION);
+        out.putLong(expiresAtMillis);
+        putVarint(out, response.getStatusCode());
+        putVarint(out, headers.size());
+        int next = 0;
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            putBytes(out, strings.get(next++));
+            putVarint(out, header.getValue().size());
+            for (int i = 0; i < header.getValue().size(); i++) {
+                putBytes(out, strings.get(next++));
+            }
+        }
+        putBytes(out, body);
+        return out.array();
+    }
+
+    // Returns the expiry time of the encoded entry, without decoding it.
+    static long expiresAtMillis(ByteBuffer entry) {
+        checkVersion(entry);
+        return entry.getLong(entry.position() + 1);
+    }
+
+    // Decodes the entry, leaving the buffer's position unchanged.
+    static SimpleResponse decode(ByteBuffer entry) {
+        ByteBuffer in = entry.duplicate();
+        try {
+            checkVersion(in);
+            in.position(in.position() + 1 + Long.BYTES);
+            int statusCode = getVarint(in);
+            int headerCount = getVarint(in);
+            SimpleHeaders.Builder headers = new SimpleHeaders.Builder();
+            for (int i = 0; i < headerCount; i++) {
+                String name = getString(in);
+                int valueCount = getVarint(in);
+                for (int j = 0; j < valueCount; j++) {
+                    headers.add(name, getString(in));
+                }
+            }
+            byte[] body = new byte[getLength(in)];
+            in.get(body);
+            return new SimpleResponse(headers.build(), body, statusCode);
+        } catch (BufferUnderflowException e) {
+            throw new IllegalArgumentException("Truncated cache entry.", e);
+        }
+    }
+
+    private static void checkVersion(ByteBuffer entry) {
+        if (!entry.hasRemaining() || entry.get(entry.position()) != VERSION) {
+            throw new IllegalArgumentException("Unknown cache entry format.");
+        }
+    }
+
+    private static int addString(List<byte[]> strings, String value) {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        strings.add(bytes);
+        return varintSize(bytes.length) + bytes.length;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static void putVarint(ByteBuffer out, int value) {
+        while ((value & ~0x7F) != 0) {
+            out.put((byte) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.put((byte) value);
+    }
+
+    private static void putBytes(ByteBuffer out, byte[] bytes) {
+        putVarint(out, bytes.length);
+        out.put(bytes);
+    }
+
+    private static int getVarint(ByteBuffer in) {
+        int value = 0;
+        for (int shift = 0; shift < Integer.SIZE; shift += 7) {
+            byte b = in.get();
+            value |= (b & 0x7F) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+        throw new IllegalArgumentException("Malformed varint in cache entry.");
+    }
+
+    // Reads a length, checking it against the bytes left before anything
+    // is allocated for it, so a corrupt entry cannot claim gigabytes.
+    private static int getLength(ByteBuffer in) {
+        int length = getVarint(in);
+        if (length < 0 || length > in.remaining()) {
+            throw new IllegalArgumentException("Truncated cache entry.");
+        }
+        return length;
+    }
+
+    private static String getString(ByteBuffer in) {
+        byte[] bytes = new byte[getLength(in)];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -2,8 +2,11 @@ package simplehttp;
 
 import com.sun.net.httpserver.HttpExchange;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
 
 /**
  * A sender that dispatches responses to the HTTP client. The main benefit of
@@ -15,36 +18,224 @@ import java.io.UncheckedIOException;
  * back to the client. For chunked transfer encoding, the
  * {@link #sendNextChunk} can be used to transfer chunks of data, and the
  * connection can be closed by calling {@link #endChunkEncoding()}.
+ *
+ * For HEAD requests, the sender sends the status and headers of each
+ * response but leaves out the body, so the same handler can serve both GET
+ * and HEAD requests.
+ *
+ * When the server recycles request objects, see
+ * {@link SimpleHttpServer.Builder#setObjectRecycling(boolean)}, a sender may
+ * only be used by its handler's thread until the handler returns.
  */
 public class ResponseSender {
 
-    private final HttpExchange exchange;
+    private static final String JSON_CONTENT_TYPE =
+            "application/json; charset=utf-8";
+    private static final ThreadLocal<byte[]> TRANSFER_WINDOW =
+            ThreadLocal.withInitial(() -> new byte[16 * 1024]);
+    private static final int MAX_RETAINED_JSON_BUFFER = 256 * 1024;
+    private static final ThreadLocal<JsonBuffer> JSON_BUFFER =
+            ThreadLocal.withInitial(JsonBuffer::new);
+
+    // Set for senders reused by an ExchangeContext, which are reset for
+    // every exchange rather than created.
+    private final ExchangeContext context;
+    private int generation;
+
+    private HttpExchange exchange;
+    private RequestTimeouts timeouts;
+    private boolean headRequest;
 
     private ResponseStatus responseStatus = ResponseStatus.READY;
+    private int statusCode;
+    private long bytesSent;
+    private SimpleResponse sentResponse;
+    private volatile boolean expired;
+    private volatile boolean writing;
 
-    ResponseSender(HttpExchange exchange) {
+    ResponseSender(HttpExchange exchange, RequestTimeouts timeouts) {
+        this.context = null;
         this.exchange = exchange;
+        this.timeouts = timeouts;
+        this.headRequest = "HEAD".equals(exchange.getRequestMethod());
+    }
+
+    // Creates an empty sender to be reset by the given context.
+    ResponseSender(ExchangeContext context) {
+        this.context = context;
     }
 
     /**
      * Sends an ordinary HTTP response back to the client.
      * @param response the response to send back to the client.
      * @throws IllegalStateException if a response has already been sent.
+     * @throws DeadlineExceededException if the request deadline has passed.
      */
-    public void send(SimpleResponse response) {
+    public synchronized void send(SimpleResponse response) {
+        checkLive();
+        ensureNotExpired();
         if (responseStatus != ResponseStatus.READY) {
             String msg = "Can only send one non-chunked response per request.";
             throw new IllegalStateException(msg);
         }
         byte[] body = response.getBodyRaw();
+        RequestEvents.ResponseWrite event = RequestEvents.beginResponseWrite();
+        RequestTimeouts.Watch writeWatch = beginWrite();
         try {
             exchange.getResponseHeaders().putAll(response.getHeaders().toMap());
-            exchange.sendResponseHeaders(response.getStatusCode(), body.length);
-            exchange.getResponseBody().write(body);
-            exchange.getResponseBody().close();
+            // A -1 length sends no body and completes the exchange, while a
+            // 0 length would mean chunked encoding.
+            if (headRequest) {
+                exchange.getResponseHeaders().set(HttpHeader.CONTENT_LENGTH,
+                        String.valueOf(body.length));
+                exchange.sendResponseHeaders(response.getStatusCode(), -1);
+            } else if (body.length == 0) {
+                exchange.sendResponseHeaders(response.getStatusCode(), -1);
+            } else {
+                exchange.sendResponseHeaders(response.getStatusCode(),
+                        body.length);
+                exchange.getResponseBody().write(body);
+                exchange.getResponseBody().close();
+            }
+            responseStatus = ResponseStatus.SENT;
+            statusCode = response.getStatusCode();
+            bytesSent += headRequest ? 0 : body.length;
+            sentResponse = response;
+            recordWrite(event, headRequest ? 0 : body.length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            endWrite(writeWatch);
+        }
+    }
+
+    // Sends a response whose body is read from the given buffer, such as a
+    // memory-mapped file region, without first copying it into a byte array.
+    // The buffer's position is left unchanged so it can be shared.
+    synchronized void sendBuffer(HttpStatus status, SimpleHeaders headers,
+                                 ByteBuffer body) {
+        checkLive();
+        ensureNotExpired();
+        if (responseStatus != ResponseStatus.READY) {
+            String msg = "Can only send one non-chunked response per request.";
+            throw new IllegalStateException(msg);
+        }
+        int length = body.remaining();
+        RequestEvents.ResponseWrite event = RequestEvents.beginResponseWrite();
+        RequestTimeouts.Watch writeWatch = beginWrite();
+        try {
+            exchange.getResponseHeaders().putAll(headers.toMap());
+            if (headRequest) {
+                exchange.getResponseHeaders().set(HttpHeader.CONTENT_LENGTH,
+                        String.valueOf(length));
+                exchange.sendResponseHeaders(status.code(), -1);
+            } else if (length == 0) {
+                exchange.sendResponseHeaders(status.code(), -1);
+            } else {
+                exchange.sendResponseHeaders(status.code(), length);
+                OutputStream out = exchange.getResponseBody();
+                if (body.hasArray()) {
+                    out.write(body.array(),
+                            body.arrayOffset() + body.position(), length);
+                } else {
+                    // The native stream only accepts arrays, so direct
+                    // buffers pass through a small per-thread window.
+                    byte[] window = TRANSFER_WINDOW.get();
+                    ByteBuffer source = body.duplicate();
+                    while (source.hasRemaining()) {
+                        int n = Math.min(window.length, source.remaining());
+                        source.get(window, 0, n);
+                        out.write(window, 0, n);
+                    }
+                }
+                out.close();
+            }
             responseStatus = ResponseStatus.SENT;
+            statusCode = status.code();
+            bytesSent += headRequest ? 0 : length;
+            recordWrite(event, headRequest ? 0 : length);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            endWrite(writeWatch);
+        }
+    }
+
+    /**
+     * Sends the given value back to the client as a JSON body, using the
+     * codec from {@link JsonCodecs#forType} for the value's class. A null
+     * value is sent as the JSON literal null.
+     * @throws IllegalStateException if a response has already been sent.
+     * @throws IllegalArgumentException if the value's class has no codec.
+     * @throws DeadlineExceededException if the request deadline has passed.
+     */
+    @SuppressWarnings("unchecked")
+    public <T> void sendJson(HttpStatus status, T body) {
+        if (body == null) {
+            // Every codec encodes null as the literal null.
+            sendJson(status, null, JsonCodecs.forType(String.class));
+            return;
+        }
+        Class<T> type = (Class<T>) body.getClass();
+        sendJson(status, body, JsonCodecs.forType(type));
+    }
+
+    /**
+     * Sends the given value back to the client as a JSON body. The body is
+     * encoded in full before anything is sent, into a buffer reused by the
+     * calling thread, so a value that fails to encode leaves the sender
+     * unused rather than sending a truncated response.
+     * @throws IllegalStateException if a response has already been sent.
+     * @throws DeadlineExceededException if the request deadline has passed.
+     */
+    public synchronized <T> void sendJson(HttpStatus status, T body,
+                                          JsonCodec<T> codec) {
+        checkLive();
+        ensureNotExpired();
+        if (responseStatus != ResponseStatus.READY) {
+            String msg = "Can only send one non-chunked response per request.";
+            throw new IllegalStateException(msg);
+        }
+        JsonBuffer buffer = JSON_BUFFER.get();
+        try {
+            JsonWriter writer = buffer.startDocument();
+            codec.encode(body, writer);
+            writer.flush();
+            sendJsonBuffer(status, buffer);
+        } finally {
+            // A rare large body should not stay pinned to the thread.
+            if (buffer.capacity() > MAX_RETAINED_JSON_BUFFER) {
+                JSON_BUFFER.remove();
+            }
+        }
+    }
+
+    // Must hold this.
+    private void sendJsonBuffer(HttpStatus status, JsonBuffer buffer) {
+        int length = buffer.size();
+        RequestEvents.ResponseWrite event = RequestEvents.beginResponseWrite();
+        RequestTimeouts.Watch writeWatch = beginWrite();
+        try {
+            exchange.getResponseHeaders().set(HttpHeader.CONTENT_TYPE,
+                    JSON_CONTENT_TYPE);
+            if (headRequest) {
+                exchange.getResponseHeaders().set(HttpHeader.CONTENT_LENGTH,
+                        String.valueOf(length));
+                exchange.sendResponseHeaders(status.code(), -1);
+            } else {
+                exchange.sendResponseHeaders(status.code(), length);
+                OutputStream out = exchange.getResponseBody();
+                buffer.writeTo(out);
+                out.close();
+                bytesSent += length;
+            }
+            responseStatus = ResponseStatus.SENT;
+            statusCode = status.code();
+            recordWrite(event, headRequest ? 0 : length);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        } finally {
+            endWrite(writeWatch);
         }
     }
 
@@ -54,9 +245,11 @@ public class ResponseSender {
      * only be sent if this is the first chunk of data.
      * @throws IllegalStateException if a completed response has already been
      * sent by calling {@link #send} or {@link #endChunkEncoding()}.
+     * @throws DeadlineExceededException if the request deadline has passed.
      */
-    public void sendNextChunk(SimpleResponse response) {
-        System.out.println("next chunk");
+    public synchronized void sendNextChunk(SimpleResponse response) {
+        checkLive();
+        ensureNotExpired();
         if (responseStatus != ResponseStatus.READY &&
                 responseStatus != ResponseStatus.CHUNKING) {
             String msg = "Can only send a chunked response first or " +
@@ -64,18 +257,26 @@ public class ResponseSender {
             throw new IllegalStateException(msg);
         }
         byte[] body = response.getBodyRaw();
+        RequestEvents.ResponseWrite event = RequestEvents.beginResponseWrite();
+        RequestTimeouts.Watch writeWatch = beginWrite();
         try {
-            System.out.println(response.getBodyString());
             if (responseStatus != ResponseStatus.CHUNKING) {
                 exchange.getResponseHeaders().putAll(response.getHeaders().toMap());
-                exchange.sendResponseHeaders(response.getStatusCode(), 0);
+                exchange.sendResponseHeaders(response.getStatusCode(),
+                        headRequest ? -1 : 0);
+                statusCode = response.getStatusCode();
             }
-            exchange.getResponseBody().write(body);
-            exchange.getResponseBody().flush();
-            System.out.println("Chunk sent");
             responseStatus = ResponseStatus.CHUNKING;
+            if (!headRequest) {
+                exchange.getResponseBody().write(body);
+                exchange.getResponseBody().flush();
+                bytesSent += body.length;
+            }
+            recordWrite(event, headRequest ? 0 : body.length);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            endWrite(writeWatch);
         }
     }
 
@@ -84,24 +285,221 @@ public class ResponseSender {
      * and finishing the HTTP response.
      * @throws IllegalStateException if chunks of data were not previously
      * streamed to the client using {@link #sendNextChunk(SimpleResponse)}.
+     * @throws DeadlineExceededException if the request deadline has passed.
      */
-    public void endChunkEncoding() {
+    public synchronized void endChunkEncoding() {
+        checkLive();
+        ensureNotExpired();
         if (responseStatus != ResponseStatus.CHUNKING) {
             String msg = "Can only send a final chunked response after " +
                     "previous chunked responses.";
             throw new IllegalStateException(msg);
         }
+        RequestEvents.ResponseWrite event = RequestEvents.beginResponseWrite();
+        RequestTimeouts.Watch writeWatch = beginWrite();
         try {
-            exchange.getResponseBody().close();
+            // A HEAD response was already completed with its headers.
+            if (!headRequest) {
+                exchange.getResponseBody().close();
+            }
             responseStatus = ResponseStatus.SENT;
+            recordWrite(event, 0);
         } catch (IOException e) {
             throw new UncheckedIOException(e);
+        } finally {
+            endWrite(writeWatch);
         }
     }
 
+    // Answers the request with the given switching response, written
+    // straight to the connection, and takes the connection away from the
+    // native server for another protocol. No other response can be sent.
+    // Callers must check canUpgrade first.
+    synchronized ConnectionTakeover.TakenConnection upgrade(byte[] response) {
+        checkLive();
+        ensureNotExpired();
+        if (responseStatus != ResponseStatus.READY) {
+            String msg = "Can only upgrade a connection before responding.";
+            throw new IllegalStateException(msg);
+        }
+        try {
+            ConnectionTakeover.TakenConnection connection =
+                    ConnectionTakeover.takeOver(exchange, response);
+            responseStatus = ResponseStatus.SENT;
+            statusCode = HttpStatus.SWITCHING_PROTOCOLS.code();
+            return connection;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    // Returns true if the connection can be taken over with upgrade, which
+    // is not the case for HTTPS.
+    synchronized boolean canUpgrade() {
+        return ConnectionTakeover.canTakeOver(exchange);
+    }
+
+    // Marks the request as expired, so that any further responses from the
+    // handler are rejected.
+    void expire() {
+        expired = true;
+    }
+
+    // Resets a recycled sender for a new exchange.
+    synchronized void reset(HttpExchange exchange, RequestTimeouts timeouts,
+                            int generation) {
+        this.generation = generation;
+        this.exchange = exchange;
+        this.timeouts = timeouts;
+        this.headRequest = "HEAD".equals(exchange.getRequestMethod());
+        this.responseStatus = ResponseStatus.READY;
+        this.statusCode = 0;
+        this.bytesSent = 0;
+        this.sentResponse = null;
+        this.expired = false;
+    }
+
+    // Drops all references held for the last exchange of a recycled sender.
+    synchronized void clear() {
+        exchange = null;
+        timeouts = null;
+        sentResponse = null;
+    }
+
+    // Returns the generation the sender was last reset for. Always 0 for
+    // senders that are not recycled.
+    synchronized int getGeneration() {
+        return generation;
+    }
+
+    // Answers the client with the given status on the handler's behalf, for
+    // example when it has expired or failed. If the handler has already
+    // started a chunked response, the connection is closed instead since the
+    // status can no longer be changed.
+    synchronized void abort(HttpStatus status) {
+        abort(status, generation);
+    }
+
+    // Aborts only if the sender is still on the given generation, so a
+    // timer that fires late cannot abort a recycled sender's next exchange.
+    synchronized void abort(HttpStatus status, int expectedGeneration) {
+        if (expectedGeneration != generation || exchange == null) {
+            return;
+        }
+        try {
+            switch (responseStatus) {
+                case READY -> {
+                    exchange.sendResponseHeaders(status.code(), -1);
+                    exchange.close();
+                    statusCode = status.code();
+                }
+                case CHUNKING -> exchange.close();
+                case SENT -> { /* Handler already responded, nothing to do. */ }
+            }
+        } catch (IOException e) {
+            // The connection may already be closed, for example by an
+            // interrupted handler; there is nobody left to report this to.
+            exchange.close();
+        }
+        responseStatus = ResponseStatus.SENT;
+    }
+
+    // Starts a blocking write to the connection, watched by the write
+    // timeout. Must hold this.
+    private RequestTimeouts.Watch beginWrite() {
+        writing = true;
+        return timeouts.watchWrite(this);
+    }
+
+    // Ends a write started with beginWrite. Must hold this.
+    private void endWrite(RequestTimeouts.Watch writeWatch) {
+        writing = false;
+        writeWatch.finish();
+    }
+
+    // Returns true while the handler is writing to the connection, which it
+    // does holding this sender's lock. Read without the lock, so a timeout
+    // can tell that aborting would wait for the write to finish.
+    boolean isWriting() {
+        return writing;
+    }
+
+    // Ends the write event, if one was started, and commits it if a
+    // recording wants it. The route is the context path the native server
+    // matched the request to.
+    private void recordWrite(RequestEvents.ResponseWrite event, long bytes) {
+        if (event == null) {
+            return;
+        }
+        event.end();
+        event.bytes = bytes;
+        event.commit(exchange.getHttpContext().getPath(),
+                exchange.getRequestMethod(), statusCode);
+    }
+
+    // Returns true if the request deadline passed before the handler
+    // finished.
+    boolean isExpired() {
+        return expired;
+    }
+
+    private void checkLive() {
+        if (context != null) {
+            context.check(generation);
+        }
+    }
+
+    private void ensureNotExpired() {
+        if (expired) {
+            String msg = "Request deadline has passed, response was " +
+                    "already sent by the server.";
+            throw new DeadlineExceededException(msg);
+        }
+    }
+
+    // Returns the status code sent to the client, or 0 if nothing was sent.
+    int getStatusCode() {
+        return statusCode;
+    }
+
+    // Returns the response sent with send(), or null if the handler sent
+    // nothing or used another method.
+    synchronized SimpleResponse getSentResponse() {
+        return sentResponse;
+    }
+
+    // Returns the number of body bytes sent to the client so far.
+    long getBytesSent() {
+        return bytesSent;
+    }
+
     private enum ResponseStatus {
         READY,
         CHUNKING,
         SENT,
     }
+
+    // A byte array stream whose contents can be written out in place,
+    // kept with the writer that encodes into it so that neither is
+    // allocated per response.
+    private static final class JsonBuffer extends ByteArrayOutputStream {
+
+        private final JsonWriter writer = new JsonWriter(this);
+
+        private JsonBuffer() {
+            super(8 * 1024);
+        }
+
+        // Empties the buffer and returns its writer, ready for a new
+        // document.
+        private JsonWriter startDocument() {
+            reset();
+            writer.reset();
+            return writer;
+        }
+
+        private int capacity() {
+            return buf.length;
+        }
+    }
 }
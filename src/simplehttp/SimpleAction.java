@@ -1,14 +1,28 @@
 package simplehttp;
 
+import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 
+import java.io.IOException;
+
 /**
  * An action provides the operations that can be performed on a resource. The
  * resource for the action is defined using the {@link ForResource}
  * annotation, and various methods can be overridden to provide the logic for
  * each request method (GET, POST, etc.). For example, the {@link #handleGet}
  * method corresponds to GET requests on the given resource. A handle method
- * that is not overridden will return a 404 Not Found error code.
+ * that is not overridden will return a 405 Method Not Allowed error code,
+ * along with an Allow header listing the supported methods. Other request
+ * methods can be handled by marking a method with {@link HandlesMethod}.
+ *
+ * HEAD requests are handled by {@link #handleGet} with the response body
+ * left out, and OPTIONS requests, including CORS preflight requests, are
+ * answered by the server without calling the action.
+ *
+ * Concurrent identical GET requests can be collapsed into a single handler
+ * call by marking the action with {@link SingleFlight}, and GET responses
+ * can be cached, and shared between servers, by marking it with
+ * {@link Cached}.
  *
  * Each handle method has two parameters, a {@link SimpleRequest} that
  * contains the details of the HTTP request, and a {@link ResponseSender}
@@ -19,6 +33,8 @@ import com.sun.net.httpserver.HttpHandler;
  */
 public abstract class SimpleAction {
 
+    private volatile DispatchTable dispatchTable;
+
     /**
      * Handles GET requests against the action's resource path.
      * @param request the content of the HTTP request.
@@ -26,7 +42,7 @@ public abstract class SimpleAction {
      * responses back to the HTTP client.
      */
     public void handleGet(SimpleRequest request, ResponseSender responseSender) {
-        sendNotFoundError(responseSender);
+        sendMethodNotAllowedError(responseSender);
     }
 
     /**
@@ -36,7 +52,7 @@ public abstract class SimpleAction {
      * responses back to the HTTP client.
      */
     public void handlePost(SimpleRequest request, ResponseSender responseSender) {
-        sendNotFoundError(responseSender);
+        sendMethodNotAllowedError(responseSender);
     }
 
     /**
@@ -46,7 +62,7 @@ public abstract class SimpleAction {
      * responses back to the HTTP client.
      */
     public void handlePatch(SimpleRequest request, ResponseSender responseSender) {
-        sendNotFoundError(responseSender);
+        sendMethodNotAllowedError(responseSender);
     }
 
     /**
@@ -56,7 +72,7 @@ public abstract class SimpleAction {
      * responses back to the HTTP client.
      */
     public void handlePut(SimpleRequest request, ResponseSender responseSender) {
-        sendNotFoundError(responseSender);
+        sendMethodNotAllowedError(responseSender);
     }
 
     /**
@@ -66,39 +82,188 @@ public abstract class SimpleAction {
      * responses back to the HTTP client.
      */
     public void handleDelete(SimpleRequest request, ResponseSender responseSender) {
-        sendNotFoundError(responseSender);
+        sendMethodNotAllowedError(responseSender);
+    }
+
+    // Returns the coalescer that collapses concurrent identical GET
+    // requests, or null if the action is not marked with SingleFlight.
+    RequestCoalescer getRequestCoalescer() {
+        return getDispatchTable().getCoalescer();
+    }
+
+    // Returns a 405 Method Not Allowed error back to the HTTP client.
+    private void sendMethodNotAllowedError(ResponseSender responseSender) {
+        responseSender.send(getDispatchTable().getMethodNotAllowedResponse());
     }
 
-    // Returns a 404 Not Found error back to the HTTP client.
-    private void sendNotFoundError(ResponseSender responseSender) {
-        SimpleResponse missingHandlerResponse = new SimpleResponse.Builder()
-                .setStatusCode(HttpStatus.NOT_FOUND).build();
-        responseSender.send(missingHandlerResponse);
+    // Returns the dispatch table, building it on first use. The table holds
+    // the action's coalescer, so it is built only once, under the lock.
+    private DispatchTable getDispatchTable() {
+        DispatchTable table = dispatchTable;
+        if (table == null) {
+            synchronized (this) {
+                table = dispatchTable;
+                if (table == null) {
+                    table = DispatchTable.forAction(this);
+                    dispatchTable = table;
+                }
+            }
+        }
+        return table;
     }
 
     // Converts the action to a native HttpHandler that can be used by
-    // HttpServer.
-    HttpHandler toHandler() {
+    // HttpServer. Each handled request is recorded in the access log, if one
+    // is provided, and is bounded by the deadlines from the given timeouts.
+    // Request bodies are kept where the given body buffers decide.
+    // The phases of the request are reported as RequestEvents when a flight
+    // recording has them enabled. When recycling objects, the request and
+    // response sender come from the worker thread's ExchangeContext. If a
+    // response cache is given and the action is marked with Cached, GET and
+    // HEAD requests are answered from it where possible.
+    HttpHandler toHandler(AccessLog accessLog, RequestTimeouts timeouts,
+                          FormLimits formLimits, BodyBuffers bodyBuffers,
+                          boolean recycleObjects,
+                          ResponseCache responseCache) {
+        DispatchTable table = getDispatchTable();
+        String route = getResourcePath();
+        DispatchTable.Handler getHandler = table.lookup("GET");
+        DispatchTable.Handler cachedGetHandler =
+                responseCache != null && getHandler != null
+                        ? responseCache.wrap(this, getHandler)
+                        : null;
         return exchange -> {
+            long start = System.nanoTime();
+            Deadline deadline = timeouts.deadlineFor(this,
+                    ExchangeExecutor.acceptedAtNanos());
+            RequestEvents.QueueWait queueWaitEvent =
+                    ExchangeExecutor.queueWaitEvent();
+            RequestEvents.RequestRead requestReadEvent =
+                    ExchangeExecutor.requestReadEvent();
+            RequestEvents.Handler handlerEvent = null;
+            ExchangeContext context = recycleObjects
+                    ? ExchangeContext.current()
+                    : null;
+            ResponseSender responseSender = context != null
+                    ? context.begin(exchange, timeouts)
+                    : new ResponseSender(exchange, timeouts);
+            SimpleRequest request = null;
             // Must catch all exceptions to ensure they are logged to console.
             try {
-                SimpleRequest request = SimpleRequest.fromExchange(exchange);
-                ResponseSender responseSender = new ResponseSender(exchange);
-                switch (exchange.getRequestMethod()) {
-                    case "GET" -> handleGet(request, responseSender);
-                    case "POST" -> handlePost(request, responseSender);
-                    case "PATCH" -> handlePatch(request, responseSender);
-                    case "PUT" -> handlePut(request, responseSender);
-                    case "DELETE" -> handleDelete(request, responseSender);
+                if (deadline.isExpired()) {
+                    // The request waited too long for a thread, so the
+                    // client has likely given up on it already.
+                    timeouts.getStats().recordRequestTimeout();
+                    responseSender.abort(HttpStatus.SERVICE_UNAVAILABLE);
+                    return;
+                }
+                DispatchTable.Handler handler =
+                        table.lookup(exchange.getRequestMethod());
+                if (handler == null) {
+                    responseSender.send(table.getMethodNotAllowedResponse());
+                    return;
+                }
+                if (handler == getHandler && cachedGetHandler != null) {
+                    handler = cachedGetHandler;
+                }
+                request = readRequest(exchange, deadline, timeouts,
+                        formLimits, bodyBuffers, responseSender, context);
+                if (requestReadEvent != null) {
+                    requestReadEvent.end();
+                }
+                RequestTimeouts.Watch watch = timeouts.watch(deadline,
+                        responseSender, HttpStatus.GATEWAY_TIMEOUT);
+                handlerEvent = RequestEvents.beginHandler();
+                try {
+                    handler.handle(request, responseSender);
+                } finally {
+                    if (handlerEvent != null) {
+                        handlerEvent.end();
+                    }
+                    watch.finish();
                 }
+            } catch (HttpStatusException e) {
+                responseSender.abort(e.getStatus());
             } catch (Exception e) {
-                e.printStackTrace();
+                // Failures caused by an expired deadline are expected, the
+                // server has already responded on the handler's behalf.
+                if (!responseSender.isExpired()) {
+                    e.printStackTrace();
+                    responseSender.abort(HttpStatus.INTERNAL_SERVER_ERROR);
+                }
+            } finally {
+                if (request != null && context == null) {
+                    request.releaseResources();
+                }
+                String method = exchange.getRequestMethod();
+                int status = responseSender.getStatusCode();
+                if (queueWaitEvent != null) {
+                    queueWaitEvent.commit(route, method, status);
+                }
+                if (requestReadEvent != null) {
+                    requestReadEvent.commit(route, method, status);
+                }
+                if (handlerEvent != null) {
+                    handlerEvent.commit(route, method, status);
+                }
+                if (accessLog != null) {
+                    accessLog.record(method,
+                            exchange.getRequestURI().getRawPath(),
+                            exchange.getProtocol(),
+                            status,
+                            responseSender.getBytesSent(),
+                            System.nanoTime() - start);
+                }
+                if (context != null) {
+                    context.end();
+                }
             }
         };
     }
 
+    // Reads the request, bounded by the body read timeout as well as the
+    // request deadline. A slow body read is answered with 408 Request
+    // Timeout, unless the request deadline is the one that passed.
+    private static SimpleRequest readRequest(HttpExchange exchange,
+                                             Deadline deadline,
+                                             RequestTimeouts timeouts,
+                                             FormLimits formLimits,
+                                             BodyBuffers bodyBuffers,
+                                             ResponseSender responseSender,
+                                             ExchangeContext context)
+            throws IOException {
+        Deadline bodyReadDeadline = timeouts.bodyReadDeadline();
+        HttpStatus status = bodyReadDeadline.min(deadline) == deadline
+                ? HttpStatus.GATEWAY_TIMEOUT
+                : HttpStatus.REQUEST_TIMEOUT;
+        RequestTimeouts.Watch watch = timeouts.watchBodyRead(
+                bodyReadDeadline.min(deadline), responseSender, status);
+        try {
+            return context != null
+                    ? context.readRequest(exchange, deadline, formLimits,
+                            bodyBuffers)
+                    : SimpleRequest.fromExchange(exchange, deadline, formLimits,
+                            bodyBuffers);
+        } finally {
+            watch.finish();
+        }
+    }
+
     // Grabs the resource path from the annotation.
     String getResourcePath() {
         return this.getClass().getDeclaredAnnotation(ForResource.class).path();
     }
+
+    // Grabs the origins allowed to make cross-origin requests from the
+    // annotation.
+    String[] getAllowedOrigins() {
+        return this.getClass().getDeclaredAnnotation(ForResource.class)
+                .allowedOrigins();
+    }
+
+    // Grabs the action's timeout from the annotation, 0 if it has none.
+    long getTimeoutMillis() {
+        return this.getClass().getDeclaredAnnotation(ForResource.class)
+                .timeoutMillis();
+    }
 }
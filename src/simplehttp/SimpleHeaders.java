@@ -54,6 +54,24 @@ public class SimpleHeaders {
         return headerValue.get(0);
     }
 
+    // Wraps the given map without copying it, so changes to the map show
+    // through. Used to reuse a single map across requests.
+    static SimpleHeaders wrap(Map<String, List<String>> headers) {
+        return new SimpleHeaders(headers);
+    }
+
+    // Returns the first value of the given header, matching the name
+    // case-insensitively, or null if the header is not present.
+    String getFirstIgnoreCase(String header) {
+        for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+            if (entry.getKey().equalsIgnoreCase(header)
+                    && !entry.getValue().isEmpty()) {
+                return entry.getValue().get(0);
+            }
+        }
+        return null;
+    }
+
     /**
      * Returns true if a value is associated with the header.
      */
@@ -1,13 +1,23 @@
 package simplehttp;
 
+import com.sun.net.httpserver.HttpContext;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.IOException;
 import java.io.UncheckedIOException;
 import java.net.InetSocketAddress;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Supplier;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
 
 /**
  * A simplified HTTP server that wraps Java's native implementation. The
@@ -18,25 +28,86 @@ import java.util.concurrent.Executor;
  * no executor is provided. In order to handle multiple requests in tandem, a
  * mutli-threaded executor will need to be provided. A backlog size can also be
  * configured to handle how many messages can be waiting to be handled.
+ *
+ * To scale accepting connections across cores, the server can run several
+ * listeners on the same port using SO_REUSEPORT, each with its own accept
+ * loop and, optionally, its own executor. All listeners share the same
+ * actions. See {@link Builder#setListenerCount(int)}.
+ *
+ * To protect the server from slow clients, timeouts can be set for reading
+ * request bodies, writing responses and whole requests, and the requests in
+ * progress from a single client address can be capped. The requests cut
+ * short by each rule are counted in {@link #getProtectionStats()}. The
+ * native implementation's own header read and idle connection timeouts
+ * apply to the whole process and can be set once, before any server is
+ * started, with {@link #setNativeTimeouts(Duration, Duration)}.
+ *
+ * The server can serve HTTPS instead of plain HTTP by setting
+ * {@link TlsSettings} with {@link Builder#setTls(TlsSettings)}. Its
+ * handshakes are counted in {@link #getTlsStats()}.
+ *
+ * GET responses of actions marked with {@link Cached} are kept in the
+ * {@link ResponseCache} set with {@link Builder#setResponseCache}, which
+ * can be shared between servers through a {@link RemoteCache}.
+ *
+ * Large request bodies are kept off the heap, in direct memory or spilled
+ * to temporary files, as set with {@link Builder#setBodyBuffers}.
  */
 public class SimpleHttpServer {
 
+    private static final String MAX_REQ_TIME_PROPERTY =
+            "sun.net.httpserver.maxReqTime";
+    private static final String IDLE_INTERVAL_PROPERTY =
+            "sun.net.httpserver.idleInterval";
+
+    // Whether a server has been started in this process, after which the
+    // native implementation has read its timeouts and ignores new ones.
+    private static boolean nativeTimeoutsRead;
+
     private final String hostname;
     private final Integer port;
     private final Integer backlog;
     private final Executor executor;
+    private final AccessLog accessLog;
+    private final RequestTimeouts timeouts;
+    private final int maxRequestsPerAddress;
+    private final ProtectionStats protectionStats = new ProtectionStats();
+    private final AddressLimiter addressLimiter;
+    private final FormLimits formLimits;
+    private final BodyBuffers bodyBuffers;
+    private final boolean objectRecycling;
+    private final ResponseCache responseCache;
+    private final TlsSettings tls;
+    private final TlsStats tlsStats;
+    private final int listenerCount;
+    private final Supplier<Executor> executorSupplier;
 
-    private HttpServer server;
+    private final List<HttpServer> servers = new ArrayList<>();
+    private final List<Executor> createdExecutors = new ArrayList<>();
     private boolean running;
     private Set<SimpleAction> actions;
 
-    private SimpleHttpServer(String hostname, int port, int backlog,
-                             Executor executor, Set<SimpleAction> actions) {
-        this.hostname = hostname;
-        this.port = port;
-        this.backlog = backlog;
-        this.executor = executor;
-        this.actions = actions;
+    private SimpleHttpServer(Builder builder) {
+        this.hostname = builder.hostname;
+        this.port = builder.port;
+        this.backlog = builder.backlog;
+        this.executor = builder.executor;
+        this.actions = builder.actions;
+        this.accessLog = builder.accessLog;
+        this.timeouts = new RequestTimeouts(builder.requestTimeout,
+                builder.bodyReadTimeout, builder.writeTimeout, protectionStats);
+        this.maxRequestsPerAddress = builder.maxRequestsPerAddress;
+        this.addressLimiter = maxRequestsPerAddress > 0
+                ? new AddressLimiter(maxRequestsPerAddress, protectionStats)
+                : null;
+        this.formLimits = builder.formLimits;
+        this.bodyBuffers = builder.bodyBuffers;
+        this.objectRecycling = builder.objectRecycling;
+        this.responseCache = builder.responseCache;
+        this.tls = builder.tls;
+        this.tlsStats = tls != null ? new TlsStats() : null;
+        this.listenerCount = builder.listenerCount;
+        this.executorSupplier = builder.executorSupplier;
     }
 
     /**
@@ -44,20 +115,166 @@ public class SimpleHttpServer {
      */
     public void start() {
         InetSocketAddress address = new InetSocketAddress(hostname, port);
+        markNativeTimeoutsRead();
+        SSLContext sslContext = tls != null
+                ? new MeteredSslContext(tls.prepareContext(), tlsStats)
+                : null;
+        SSLParameters sslParameters = tls != null
+                ? tls.createParameters()
+                : null;
+        // Anything failing once a listener is bound must unbind it, or the
+        // port stays taken until the process exits.
         try {
-            server = HttpServer.create(address, backlog);
-            configureServer();
-            server.start();
+            boolean reusePort = listenerCount > 1;
+            for (int i = 0; i < listenerCount; i++) {
+                HttpServer server = ListenerFactory.create(address, backlog,
+                        reusePort, sslContext, sslParameters);
+                servers.add(server);
+                configureServer(server);
+            }
+            if (accessLog != null) {
+                accessLog.start();
+            }
+            timeouts.start();
+            servers.forEach(HttpServer::start);
         } catch (IOException e) {
+            abortStart();
             throw new UncheckedIOException(e);
+        } catch (RuntimeException e) {
+            abortStart();
+            throw e;
         }
         running = true;
     }
 
-    private void configureServer() {
-        server.setExecutor(executor);
+    /**
+     * Stops the server, waiting up to the given number of seconds for
+     * in-progress requests to finish. Any pending access log entries are
+     * written before this method returns. Open WebSocket connections are
+     * closed with status 1001.
+     * @throws IllegalStateException if the server has not been started.
+     */
+    public void stop(int delaySeconds) {
+        ensureRunning();
+        for (SimpleAction action : actions) {
+            if (action instanceof WebSocketAction) {
+                ((WebSocketAction) action).closeAll();
+            }
+        }
+        stopListeners(delaySeconds);
+        timeouts.shutdown();
+        if (accessLog != null) {
+            accessLog.close();
+        }
+        running = false;
+    }
+
+    /**
+     * Returns the counts of requests cut short by the server's timeouts and
+     * connection caps.
+     */
+    public ProtectionStats getProtectionStats() {
+        return protectionStats;
+    }
+
+    /**
+     * Returns the coalescers of the server's actions marked with
+     * {@link SingleFlight}, keyed by the actions' resource paths.
+     */
+    public Map<String, RequestCoalescer> getRequestCoalescers() {
+        Map<String, RequestCoalescer> coalescers = new HashMap<>();
+        for (SimpleAction action : actions) {
+            RequestCoalescer coalescer = action.getRequestCoalescer();
+            if (coalescer != null) {
+                coalescers.put(action.getResourcePath(), coalescer);
+            }
+        }
+        return coalescers;
+    }
+
+    /**
+     * Returns the counts of TLS handshakes completed by the server, or null
+     * if it does not serve HTTPS.
+     */
+    public TlsStats getTlsStats() {
+        return tlsStats;
+    }
+
+    /**
+     * Sets the timeouts that the native implementation enforces on every
+     * connection of every server in the process, rounded up to whole
+     * seconds: the time allowed to receive a request's headers, and how
+     * long a keep-alive connection may stay idle between requests. They are
+     * set as system properties that the native implementation reads once,
+     * when the first server in the process is created, so this must be
+     * called before any server is started. A null timeout leaves the native
+     * value in place. Connections closed by these timeouts are not reported
+     * by the native implementation and are not counted in
+     * {@link ProtectionStats}.
+     * @throws IllegalStateException if a server has already been started.
+     */
+    public static synchronized void setNativeTimeouts(
+            Duration headerReadTimeout, Duration idleTimeout) {
+        if (nativeTimeoutsRead) {
+            String msg = "Native timeouts must be set before any server "
+                    + "is started.";
+            throw new IllegalStateException(msg);
+        }
+        setSecondsProperty(MAX_REQ_TIME_PROPERTY, headerReadTimeout);
+        setSecondsProperty(IDLE_INTERVAL_PROPERTY, idleTimeout);
+    }
+
+    private static synchronized void markNativeTimeoutsRead() {
+        nativeTimeoutsRead = true;
+    }
+
+    private static void setSecondsProperty(String property, Duration timeout) {
+        if (timeout != null) {
+            long seconds = Math.max(1, (timeout.toMillis() + 999) / 1000);
+            System.setProperty(property, String.valueOf(seconds));
+        }
+    }
+
+    // Undoes a start that failed part way.
+    private void abortStart() {
+        stopListeners(0);
+        timeouts.shutdown();
+        if (accessLog != null) {
+            accessLog.close();
+        }
+    }
+
+    // Stops the listeners, then shuts down the executors created for them,
+    // letting the tasks already given to them finish.
+    private void stopListeners(int delaySeconds) {
+        servers.forEach(server -> server.stop(delaySeconds));
+        servers.clear();
+        for (Executor created : createdExecutors) {
+            if (created instanceof ExecutorService) {
+                ((ExecutorService) created).shutdown();
+            }
+        }
+        createdExecutors.clear();
+    }
+
+    // Sets up a single listener. Each listener gets its own executor from the
+    // supplier, if there is one, and otherwise they share the executor.
+    // Executors from the supplier belong to the server and are shut down
+    // with it.
+    private void configureServer(HttpServer server) {
+        Executor listenerExecutor = executor;
+        if (executorSupplier != null) {
+            listenerExecutor = executorSupplier.get();
+            createdExecutors.add(listenerExecutor);
+        }
+        server.setExecutor(new ExchangeExecutor(listenerExecutor));
         for(SimpleAction action: actions) {
-            server.createContext(action.getResourcePath(), action.toHandler());
+            HttpContext context = server.createContext(action.getResourcePath(),
+                    action.toHandler(accessLog, timeouts, formLimits,
+                            bodyBuffers, objectRecycling, responseCache));
+            if (addressLimiter != null) {
+                context.getFilters().add(addressLimiter);
+            }
         }
     }
 
@@ -73,7 +290,12 @@ public class SimpleHttpServer {
      */
     public static SimpleHttpServer createBasic(String hostname, int port,
                                                Set<SimpleAction> actions) {
-        return new SimpleHttpServer(hostname, port, 0, null, actions);
+        return new Builder()
+                .setHostname(hostname)
+                .setPort(port)
+                .setBacklog(0)
+                .setActions(actions)
+                .build();
     }
 
     /**
@@ -92,7 +314,19 @@ public class SimpleHttpServer {
                 .setPort(port)
                 .setBacklog(backlog)
                 .setExecutor(executor)
-                .setActions(actions);
+                .setActions(actions)
+                .setAccessLog(accessLog)
+                .setRequestTimeout(timeouts.getRequestTimeout())
+                .setBodyReadTimeout(timeouts.getBodyReadTimeout())
+                .setWriteTimeout(timeouts.getWriteTimeout())
+                .setMaxRequestsPerAddress(maxRequestsPerAddress)
+                .setFormLimits(formLimits)
+                .setBodyBuffers(bodyBuffers)
+                .setObjectRecycling(objectRecycling)
+                .setResponseCache(responseCache)
+                .setTls(tls)
+                .setListenerCount(listenerCount)
+                .setExecutorSupplier(executorSupplier);
     }
 
     /**
@@ -105,6 +339,18 @@ public class SimpleHttpServer {
         private Integer backlog;
         private Executor executor;
         private Set<SimpleAction> actions;
+        private AccessLog accessLog;
+        private Duration requestTimeout;
+        private Duration bodyReadTimeout;
+        private Duration writeTimeout;
+        private int maxRequestsPerAddress;
+        private FormLimits formLimits = FormLimits.createDefault();
+        private BodyBuffers bodyBuffers = BodyBuffers.createDefault();
+        private boolean objectRecycling;
+        private ResponseCache responseCache;
+        private TlsSettings tls;
+        private int listenerCount = 1;
+        private Supplier<Executor> executorSupplier;
 
         public Builder setHostname(String hostname) {
             this.hostname = hostname;
@@ -165,6 +411,148 @@ public class SimpleHttpServer {
             return this;
         }
 
+        /**
+         * Sets the access log that handled requests are recorded to. A null
+         * access log disables access logging.
+         */
+        public Builder setAccessLog(AccessLog accessLog) {
+            this.accessLog = accessLog;
+            return this;
+        }
+
+        /**
+         * Sets the default time allowed for a request, measured from when it
+         * was accepted. Once passed, the client is sent a 504 Gateway Timeout
+         * (or a 503 Service Unavailable if the request never reached its
+         * action) and the handler thread is interrupted. Actions can
+         * override this using {@link ForResource#timeoutMillis()}. A null
+         * timeout allows requests to run indefinitely.
+         */
+        public Builder setRequestTimeout(Duration requestTimeout) {
+            this.requestTimeout = requestTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the time allowed to read a request body. Once passed, the
+         * client is sent a 408 Request Timeout. A null timeout allows bodies
+         * to be read indefinitely.
+         */
+        public Builder setBodyReadTimeout(Duration bodyReadTimeout) {
+            this.bodyReadTimeout = bodyReadTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the time allowed for each write of a response, or a chunk of
+         * one, to the client. Once passed, the connection is closed, so a
+         * client that stops reading cannot hold on to a thread. A null
+         * timeout allows writes to block indefinitely.
+         */
+        public Builder setWriteTimeout(Duration writeTimeout) {
+            this.writeTimeout = writeTimeout;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of requests from a single client address
+         * that can be handled at once. Requests over the cap are answered
+         * with a 429 Too Many Requests and their connection is closed. The
+         * cap is checked once a request's headers have been read, so it
+         * keeps one client from tying up every executor thread, but does
+         * not limit open connections or protect against clients that send
+         * their headers slowly. A 0-value, the default, sets no cap.
+         */
+        public Builder setMaxRequestsPerAddress(int maxRequestsPerAddress) {
+            this.maxRequestsPerAddress = maxRequestsPerAddress;
+            return this;
+        }
+
+        /**
+         * Sets the limits applied when parsing multipart and URL-encoded
+         * form bodies.
+         */
+        public Builder setFormLimits(FormLimits formLimits) {
+            this.formLimits = formLimits;
+            return this;
+        }
+
+        /**
+         * Sets where request bodies are kept while their requests are
+         * handled, and the direct memory budget they share. Servers given
+         * the same body buffers share one budget. Defaults to
+         * {@link BodyBuffers#createDefault()}, with a budget of its own.
+         */
+        public Builder setBodyBuffers(BodyBuffers bodyBuffers) {
+            this.bodyBuffers = bodyBuffers;
+            return this;
+        }
+
+        /**
+         * Enables recycling of the per-request objects. Each executor thread
+         * then keeps a single {@link SimpleRequest}, with its
+         * {@link SimpleHeaders}, and a single {@link ResponseSender}, and
+         * resets them between requests instead of allocating new ones.
+         * Disabled by default.
+         *
+         * With recycling, handlers must not keep or share the request or
+         * sender: both may only be used by the handling thread until the
+         * handle method returns, so a response must be complete by then.
+         * Breaking this is detected and fails with an
+         * IllegalStateException.
+         */
+        public Builder setObjectRecycling(boolean objectRecycling) {
+            this.objectRecycling = objectRecycling;
+            return this;
+        }
+
+        /**
+         * Sets the cache that GET responses of actions marked with
+         * {@link Cached} are kept in. A null cache, the default, disables
+         * response caching.
+         */
+        public Builder setResponseCache(ResponseCache responseCache) {
+            this.responseCache = responseCache;
+            return this;
+        }
+
+        /**
+         * Sets the settings used to serve HTTPS. A null value, the default,
+         * serves plain HTTP.
+         */
+        public Builder setTls(TlsSettings tls) {
+            this.tls = tls;
+            return this;
+        }
+
+        /**
+         * Sets the number of listeners accepting connections on the port.
+         * With more than one, each listener binds its own socket using
+         * SO_REUSEPORT and runs its own accept loop, and the kernel spreads
+         * new connections between them. Defaults to 1.
+         *
+         * More than one listener requires platform support for SO_REUSEPORT
+         * and the JVM option
+         * {@code --add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED}.
+         */
+        public Builder setListenerCount(int listenerCount) {
+            this.listenerCount = listenerCount;
+            return this;
+        }
+
+        /**
+         * Sets a supplier that is called once per listener to create its
+         * executor, so that each listener has its own set of workers. The
+         * server owns the executors it creates this way and shuts down
+         * those that are {@link ExecutorService}s when it stops. If null,
+         * all listeners share the executor from
+         * {@link #setExecutor(Executor)}, which is left running.
+         */
+        public Builder setExecutorSupplier(Supplier<Executor> executorSupplier) {
+            this.executorSupplier = executorSupplier;
+            return this;
+        }
+
         /**
          * Creates a new {@link SimpleHttpServer} from this builder.
          */
@@ -172,10 +560,21 @@ public class SimpleHttpServer {
             ensureNonNull(hostname, "address");
             ensureNonNull(port, "port");
             ensureNonNull(backlog, "backlog");
+            ensureNonNull(formLimits, "formLimits");
+            ensureNonNull(bodyBuffers, "bodyBuffers");
             convertNullToEmptyActions();
 
-            return new SimpleHttpServer(hostname, port, backlog, executor,
-                    actions);
+            if (maxRequestsPerAddress < 0) {
+                String msg = "The maxRequestsPerAddress field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            if (listenerCount < 1) {
+                String msg = "The listenerCount field must be at least 1";
+                throw new IllegalStateException(msg);
+            }
+
+            return new SimpleHttpServer(this);
         }
 
         private static void ensureNonNull(Object object, String fieldName) {
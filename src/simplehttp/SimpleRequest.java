@@ -1,71 +1,251 @@
 package simplehttp;
 
+import com.sun.net.httpserver.Headers;
 import com.sun.net.httpserver.HttpExchange;
 
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
 import java.net.URLDecoder;
-import java.nio.charset.Charset;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Represents HTTP request data.
+ *
+ * The body of a multipart/form-data request is not read up front, so that
+ * it can be streamed part by part using {@link #getMultipartReader()}. It is
+ * read into memory only if one of the other body methods is called first.
+ *
+ * Other bodies are read before the handler is called and kept where the
+ * server's {@link BodyBuffers} decide: small ones on the heap, large ones in
+ * direct memory or a temporary file. {@link #getBodyBuffer()} and
+ * {@link #getBodyChannel()} read a body wherever it is kept, while the
+ * methods returning a byte array or string copy a large body to the heap.
+ * The body is released once the handler returns, and must not be read
+ * after that.
+ *
+ * When the server recycles request objects, see
+ * {@link SimpleHttpServer.Builder#setObjectRecycling(boolean)}, a request
+ * may only be used by its handler's thread until the handler returns.
  */
 public class SimpleRequest {
 
-    private final SimpleHeaders headers;
-    private final String body;
-    private final URI uri;
+    private static final String FORM_URL_ENCODED =
+            "application/x-www-form-urlencoded";
+    private static final String MULTIPART_FORM_DATA = "multipart/form-data";
+
+    // Set for requests reused by an ExchangeContext, which are reset for
+    // every exchange rather than created.
+    private final ExchangeContext context;
+    private int generation;
+
+    private SimpleHeaders headers;
+    private URI uri;
+    private Deadline deadline;
+    private FormLimits formLimits;
+    private BodyBuffers bodyBuffers;
+
+    // Exactly one of these is set until the body has been read or streamed.
+    private RequestBody body;
+    private InputStream bodyStream;
+    private MultipartReader multipartReader;
 
     private SimpleRequest(SimpleHeaders headers,
-                          String body,
-                          URI uri) {
+                          RequestBody body,
+                          InputStream bodyStream,
+                          URI uri,
+                          Deadline deadline,
+                          FormLimits formLimits,
+                          BodyBuffers bodyBuffers) {
+        this.context = null;
         this.headers = headers;
         this.body = body;
+        this.bodyStream = bodyStream;
         this.uri = uri;
+        this.deadline = deadline;
+        this.formLimits = formLimits;
+        this.bodyBuffers = bodyBuffers;
+    }
+
+    // Creates an empty request to be reset by the given context.
+    SimpleRequest(ExchangeContext context) {
+        this.context = context;
     }
 
     /**
      * Returns the headers in the request.
      */
     public SimpleHeaders getHeaders() {
+        checkLive();
         return headers;
     }
 
     /**
-     * Returns the request body.
+     * Returns the request body as a string, converted from the raw bytes.
      */
     public String getBody() {
-        return body;
+        checkLive();
+        return readBody().toString(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Returns the request body as raw bytes. A body kept off the heap is
+     * copied to the heap on the first call.
+     * @throws IllegalStateException if the body is already being streamed by
+     * a {@link MultipartReader}.
+     */
+    public byte[] getBodyRaw() {
+        checkLive();
+        return readBody().toByteArray();
+    }
+
+    /**
+     * Returns a read-only buffer over the request body. A body kept in a
+     * single chunk of direct memory is read in place, a body spilled to a
+     * file is mapped into memory, and a body spread over several chunks is
+     * copied to the heap once. Each call returns a new buffer positioned at
+     * the start of the body.
+     * @throws IllegalStateException if the body is already being streamed by
+     * a {@link MultipartReader}, or is larger than a buffer can hold.
+     */
+    public ByteBuffer getBodyBuffer() {
+        checkLive();
+        return readBody().asBuffer();
+    }
+
+    /**
+     * Returns a read-only channel over the request body, without copying it
+     * to the heap. Unlike {@link #getBodyBuffer()}, it can read bodies of
+     * any size. Each call returns a new channel positioned at the start of
+     * the body.
+     * @throws IllegalStateException if the body is already being streamed by
+     * a {@link MultipartReader}.
+     */
+    public SeekableByteChannel getBodyChannel() {
+        checkLive();
+        return readBody().newChannel();
+    }
+
+    /**
+     * Returns the length of the request body in bytes.
+     * @throws IllegalStateException if the body is already being streamed by
+     * a {@link MultipartReader}.
+     */
+    public long getBodyLength() {
+        checkLive();
+        return readBody().length();
+    }
+
+    /**
+     * Decodes the JSON request body into the given type, directly from the
+     * raw bytes.
+     * @throws IllegalArgumentException if the type is not supported by
+     * {@link JsonCodecs}.
+     * @throws HttpStatusException if the body is not valid JSON for the type.
+     */
+    public <T> T getBody(Class<T> type) {
+        checkLive();
+        return getBody(JsonCodecs.forType(type));
+    }
+
+    /**
+     * Decodes the JSON request body using the given codec, directly from the
+     * raw bytes.
+     * @throws HttpStatusException if the body is not valid JSON for the
+     * codec.
+     */
+    public <T> T getBody(JsonCodec<T> codec) {
+        checkLive();
+        JsonReader reader = new JsonReader(getBodyRaw());
+        reader.setMaxDepth(formLimits.getMaxJsonDepth());
+        try {
+            T value = codec.decode(reader);
+            reader.endDocument();
+            return value;
+        } catch (IllegalArgumentException e) {
+            // Codecs report bodies they cannot decode, such as an unknown
+            // enum constant, the same way the reader reports malformed JSON.
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST,
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Returns a reader that streams the parts of a multipart/form-data body.
+     * The same reader is returned on every call.
+     * @throws IllegalStateException if the request is not multipart.
+     * @throws HttpStatusException if the content type has no boundary.
+     */
+    public MultipartReader getMultipartReader() {
+        checkLive();
+        if (multipartReader != null) {
+            return multipartReader;
+        }
+        String contentType = headers.getFirstIgnoreCase(HttpHeader.CONTENT_TYPE);
+        if (!hasMediaType(contentType, MULTIPART_FORM_DATA)) {
+            String msg = "Request is not " + MULTIPART_FORM_DATA + " but "
+                    + contentType + ".";
+            throw new IllegalStateException(msg);
+        }
+        String boundary = MultipartReader.headerParameter(contentType,
+                "boundary");
+        if (boundary == null || boundary.isEmpty()) {
+            String msg = "Multipart request has no boundary.";
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, msg);
+        }
+        InputStream in = body != null ? body.newInputStream() : bodyStream;
+        bodyStream = null;
+        multipartReader = new MultipartReader(in, boundary, formLimits);
+        return multipartReader;
+    }
+
+    /**
+     * Returns the fields of an application/x-www-form-urlencoded body.
+     * @throws IllegalStateException if the request is not URL-encoded.
+     * @throws HttpStatusException if the body has more fields than allowed by
+     * the server's {@link FormLimits}, or is not properly encoded.
+     */
+    public Map<String, String> getFormParams() {
+        checkLive();
+        String contentType = headers.getFirstIgnoreCase(HttpHeader.CONTENT_TYPE);
+        if (!hasMediaType(contentType, FORM_URL_ENCODED)) {
+            String msg = "Request is not " + FORM_URL_ENCODED + " but "
+                    + contentType + ".";
+            throw new IllegalStateException(msg);
+        }
+        String form = new String(getBodyRaw(), StandardCharsets.US_ASCII);
+        return parseUrlEncoded(form, formLimits.getMaxFormFields());
     }
 
     /**
      * Returns the URI of the request.
      */
     public URI getUri() {
+        checkLive();
         return uri;
     }
 
+    /**
+     * Returns the deadline by which the request must be completed. Handlers
+     * can use the remaining time to bound any downstream calls.
+     */
+    public Deadline getDeadline() {
+        checkLive();
+        return deadline;
+    }
+
     /**
      * Returns the query parameters in the request.
+     * @throws HttpStatusException if the query is not properly encoded.
      */
     public Map<String, String> getQueryParams() {
-        Map<String, String> queryParams = new HashMap<>();
-        String query = uri.getQuery();
-        if (query == null || query.isEmpty()) {
-            return new HashMap<>();
-        }
-        String[] pairs = query.split("&");
-        for (String pair: pairs) {
-            String[] keyValue = pair.split("=");
-            Charset charset = StandardCharsets.UTF_8;
-            String key = URLDecoder.decode(keyValue[0], charset);
-            String value = URLDecoder.decode(keyValue[1], charset);
-            queryParams.put(key, value);
-        }
-        return queryParams;
+        checkLive();
+        return parseUrlEncoded(uri.getRawQuery(), Integer.MAX_VALUE);
     }
 
     /**
@@ -75,6 +255,7 @@ public class SimpleRequest {
      * @throws IllegalStateException if the query parameter is not defined.
      */
     public String getQueryParam(String key) {
+        checkLive();
         Map<String, String> queryParams = getQueryParams();
         if (!queryParams.containsKey(key)) {
             String msg = "Key " + key + " is not in query parameters "
@@ -88,24 +269,162 @@ public class SimpleRequest {
      * Converts this request into a {@link Builder}.
      */
     public Builder toBuilder() {
-        return new Builder(headers, body, uri);
+        checkLive();
+        return new Builder(headers, getBodyRaw(), uri, deadline, formLimits);
+    }
+
+    // Releases the body's direct memory and deletes any temporary files
+    // created while reading or streaming the body.
+    void releaseResources() {
+        if (body != null) {
+            body.release();
+        }
+        if (multipartReader != null) {
+            multipartReader.close();
+        }
+    }
+
+    static SimpleRequest fromExchange(HttpExchange exchange, Deadline deadline,
+                                      FormLimits formLimits,
+                                      BodyBuffers bodyBuffers)
+            throws IOException {
+        SimpleRequest request = new SimpleRequest(
+                new SimpleHeaders(exchange.getRequestHeaders()), null, null,
+                exchange.getRequestURI(), deadline, formLimits, bodyBuffers);
+        request.readBody(exchange);
+        return request;
+    }
+
+    // Resets a recycled request for a new exchange.
+    void reset(SimpleHeaders headers, HttpExchange exchange, Deadline deadline,
+               FormLimits formLimits, BodyBuffers bodyBuffers, int generation)
+            throws IOException {
+        this.generation = generation;
+        this.headers = headers;
+        this.uri = exchange.getRequestURI();
+        this.deadline = deadline;
+        this.formLimits = formLimits;
+        this.bodyBuffers = bodyBuffers;
+        readBody(exchange);
+    }
+
+    // Drops all references held for the last exchange of a recycled
+    // request.
+    void clear() {
+        headers = null;
+        uri = null;
+        deadline = null;
+        formLimits = null;
+        bodyBuffers = null;
+        body = null;
+        bodyStream = null;
+        multipartReader = null;
+    }
+
+    // Reads the body from the exchange. Multipart bodies are left on the
+    // connection to be streamed.
+    private void readBody(HttpExchange exchange) throws IOException {
+        String contentType = exchange.getRequestHeaders()
+                .getFirst(HttpHeader.CONTENT_TYPE);
+        if (hasMediaType(contentType, MULTIPART_FORM_DATA)) {
+            bodyStream = exchange.getRequestBody();
+        } else {
+            body = RequestBody.read(exchange.getRequestBody(),
+                    contentLength(exchange), bodyBuffers);
+        }
+    }
+
+    // Returns the body, first reading a multipart body that has not been
+    // streamed.
+    private RequestBody readBody() {
+        if (body == null) {
+            if (multipartReader != null) {
+                String msg = "Body is being streamed by a MultipartReader.";
+                throw new IllegalStateException(msg);
+            }
+            try {
+                body = bodyBuffers != null
+                        ? RequestBody.read(bodyStream, -1, bodyBuffers)
+                        : RequestBody.of(bodyStream.readAllBytes());
+                bodyStream = null;
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+        return body;
+    }
+
+    // Returns the declared length of the body, or -1 if it is not known
+    // before it has been read. A Content-Length sent along with a
+    // Transfer-Encoding must be ignored, as the body ends where the
+    // encoding says rather than where the client claims.
+    private static long contentLength(HttpExchange exchange) {
+        Headers headers = exchange.getRequestHeaders();
+        if (headers.containsKey(HttpHeader.TRANSFER_ENCODING)) {
+            return -1;
+        }
+        String value = headers.getFirst(HttpHeader.CONTENT_LENGTH);
+        if (value == null) {
+            return -1;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private void checkLive() {
+        if (context != null) {
+            context.check(generation);
+        }
     }
 
-    static SimpleRequest fromExchange(HttpExchange exchange) throws IOException {
-        String body = getRequestBody(exchange);
-        SimpleHeaders headers =
-                new SimpleHeaders(exchange.getRequestHeaders());
-        return new SimpleRequest.Builder()
-                .setBody(body)
-                .setHeaders(headers)
-                .setUri(exchange.getRequestURI())
-                .build();
+    private static boolean hasMediaType(String contentType, String mediaType) {
+        return contentType != null && contentType.regionMatches(true, 0,
+                mediaType, 0, mediaType.length());
     }
 
-    private static String getRequestBody(HttpExchange exchange) throws IOException {
-        return new String(
-                exchange.getRequestBody().readAllBytes(),
-                StandardCharsets.UTF_8);
+    // Parses key=value pairs separated by '&', as used by query strings and
+    // URL-encoded forms. Fields are counted as they are found, so a body
+    // over the limit is rejected without scanning the rest of it.
+    private static Map<String, String> parseUrlEncoded(String encoded,
+                                                       int maxFields) {
+        Map<String, String> params = new HashMap<>();
+        if (encoded == null || encoded.isEmpty()) {
+            return params;
+        }
+        int fields = 0;
+        int start = 0;
+        while (start <= encoded.length()) {
+            int end = encoded.indexOf('&', start);
+            if (end < 0) {
+                end = encoded.length();
+            }
+            if (end > start) {
+                if (++fields > maxFields) {
+                    String msg = "Form has more than " + maxFields + " fields.";
+                    throw new HttpStatusException(HttpStatus.PAYLOAD_TOO_LARGE,
+                            msg);
+                }
+                String pair = encoded.substring(start, end);
+                int equals = pair.indexOf('=');
+                String key = equals < 0 ? pair : pair.substring(0, equals);
+                String value = equals < 0 ? "" : pair.substring(equals + 1);
+                params.put(decode(key), decode(value));
+            }
+            start = end + 1;
+        }
+        return params;
+    }
+
+    private static String decode(String encoded) {
+        try {
+            return URLDecoder.decode(encoded, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            String msg = "Malformed percent-encoding in parameters.";
+            throw new HttpStatusException(HttpStatus.BAD_REQUEST, msg);
+        }
     }
 
     /**
@@ -114,15 +433,20 @@ public class SimpleRequest {
     public static class Builder {
 
         private SimpleHeaders headers;
-        private String body;
+        private byte[] body = new byte[0];
         private URI uri;
+        private Deadline deadline = Deadline.none();
+        private FormLimits formLimits = FormLimits.createDefault();
 
         public Builder() {}
 
-        private Builder(SimpleHeaders headers, String body, URI uri) {
+        private Builder(SimpleHeaders headers, byte[] body, URI uri,
+                        Deadline deadline, FormLimits formLimits) {
             this.headers = headers;
             this.body = body;
             this.uri = uri;
+            this.deadline = deadline;
+            this.formLimits = formLimits;
         }
 
         /**
@@ -134,13 +458,22 @@ public class SimpleRequest {
         }
 
         /**
-         * Sets the body of the request.
+         * Sets the body of the request to the given raw bytes.
          */
-        public Builder setBody(String body) {
+        public Builder setBody(byte[] body) {
             this.body = body;
             return this;
         }
 
+        /**
+         * Sets the body of the request to the UTF-8 bytes of the given
+         * string.
+         */
+        public Builder setBody(String body) {
+            this.body = body.getBytes(StandardCharsets.UTF_8);
+            return this;
+        }
+
         /**
          * Sets the URI of the request.
          */
@@ -149,11 +482,20 @@ public class SimpleRequest {
             return this;
         }
 
+        /**
+         * Sets the deadline of the request.
+         */
+        public Builder setDeadline(Deadline deadline) {
+            this.deadline = deadline;
+            return this;
+        }
+
         /**
          * Builds a new {@link SimpleRequest} from this builder.
          */
         public SimpleRequest build() {
-            return new SimpleRequest(headers, body, uri);
+            return new SimpleRequest(headers, RequestBody.of(body), null, uri,
+                    deadline, formLimits, null);
         }
     }
 }
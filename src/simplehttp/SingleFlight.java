@@ -0,0 +1,31 @@
+package simplehttp;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Enables single-flight handling of GET and HEAD requests for an action.
+ * Concurrent requests with the same key wait for a single in-progress call
+ * to the action's GET handler and are all sent its response, so a burst of
+ * identical requests reaches the action's backend only once.
+ *
+ * The key is made of the request path, the raw query string, and the values
+ * of the headers listed in {@code varyHeaders}. Any header that changes the
+ * response, such as Authorization or Accept-Language, must be listed.
+ *
+ * A waiting request gives up after {@code maxWaitMillis}, or at its own
+ * deadline if that is sooner, and calls the handler itself. Only responses
+ * sent with {@link ResponseSender#send} are shared; if the in-progress call
+ * streams its response, fails, or sends nothing, one of its waiters calls
+ * the handler in its place and the others wait for that call. See
+ * {@link RequestCoalescer} for the counters.
+ */
+@Retention(RetentionPolicy.RUNTIME)
+@Target(ElementType.TYPE)
+public @interface SingleFlight {
+    long maxWaitMillis() default 1000;
+
+    String[] varyHeaders() default {};
+}
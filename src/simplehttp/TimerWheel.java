@@ -0,0 +1,224 @@
+package simplehttp;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A hashed timer wheel, used to run large numbers of short-lived timeouts
+ * with a single thread. Time is divided into ticks, and each timeout is
+ * placed in the bucket for the tick it expires on, modulo the size of the
+ * wheel. Scheduling and cancelling are O(1), and each tick only looks at a
+ * single bucket, so the cost does not grow with the number of pending
+ * timeouts as it does with a priority queue.
+ *
+ * Timeouts fire up to one tick late, and never early. Tasks run on the
+ * wheel's thread, so they must be short and must not block for long.
+ */
+final class TimerWheel {
+
+    private final String threadName;
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+
+    // New and cancelled timeouts are handed to the wheel thread, which is
+    // the only thread that touches the buckets.
+    private final Queue<Timeout> scheduled = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+
+    private Thread worker;
+    private volatile boolean running;
+    private long startNanos;
+
+    // The wheel size must be a power of two.
+    TimerWheel(String threadName, long tickNanos, int wheelSize) {
+        if (Integer.bitCount(wheelSize) != 1) {
+            String msg = "The wheel size must be a power of two";
+            throw new IllegalArgumentException(msg);
+        }
+        this.threadName = threadName;
+        this.tickNanos = tickNanos;
+        this.wheel = new Bucket[wheelSize];
+        for (int i = 0; i < wheelSize; i++) {
+            wheel[i] = new Bucket();
+        }
+        this.mask = wheelSize - 1;
+    }
+
+    // Starts the wheel thread.
+    synchronized void start() {
+        if (worker != null) {
+            return;
+        }
+        startNanos = System.nanoTime();
+        running = true;
+        worker = new Thread(this::run, threadName);
+        worker.setDaemon(true);
+        worker.start();
+    }
+
+    // Stops the wheel thread. Pending timeouts never fire.
+    synchronized void stop() {
+        if (worker == null) {
+            return;
+        }
+        running = false;
+        LockSupport.unpark(worker);
+        worker = null;
+    }
+
+    // Schedules the task to run once System.nanoTime() reaches the given
+    // deadline.
+    Timeout schedule(Runnable task, long deadlineNanos) {
+        Timeout timeout = new Timeout(this, task, deadlineNanos);
+        scheduled.add(timeout);
+        return timeout;
+    }
+
+    private void run() {
+        long tick = 0;
+        while (running) {
+            long tickDeadline = startNanos + (tick + 1) * tickNanos;
+            long sleepNanos;
+            while ((sleepNanos = tickDeadline - System.nanoTime()) > 0) {
+                LockSupport.parkNanos(this, sleepNanos);
+                if (!running) {
+                    return;
+                }
+            }
+            removeCancelled();
+            transferScheduled(tick);
+            wheel[(int) (tick & mask)].expire(tickDeadline);
+            tick++;
+        }
+    }
+
+    private void removeCancelled() {
+        Timeout timeout;
+        while ((timeout = cancelled.poll()) != null) {
+            if (timeout.bucket != null) {
+                timeout.bucket.remove(timeout);
+            }
+        }
+    }
+
+    // Moves newly scheduled timeouts into the buckets for the ticks they
+    // expire on. Timeouts already due go in the current tick's bucket.
+    private void transferScheduled(long currentTick) {
+        Timeout timeout;
+        while ((timeout = scheduled.poll()) != null) {
+            if (timeout.state != Timeout.PENDING) {
+                continue;
+            }
+            long expiryTick = Math.max(currentTick,
+                    (timeout.deadlineNanos - startNanos) / tickNanos);
+            timeout.remainingRounds = (expiryTick - currentTick) / wheel.length;
+            wheel[(int) (expiryTick & mask)].add(timeout);
+        }
+    }
+
+    /**
+     * A scheduled task that can be cancelled until it has run.
+     */
+    static final class Timeout {
+
+        private static final int PENDING = 0;
+        private static final int CANCELLED = 1;
+        private static final int EXPIRED = 2;
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final TimerWheel wheel;
+        private final Runnable task;
+        private final long deadlineNanos;
+        private volatile int state = PENDING;
+
+        // Only accessed by the wheel thread.
+        private long remainingRounds;
+        private Bucket bucket;
+        private Timeout prev;
+        private Timeout next;
+
+        private Timeout(TimerWheel wheel, Runnable task, long deadlineNanos) {
+            this.wheel = wheel;
+            this.task = task;
+            this.deadlineNanos = deadlineNanos;
+        }
+
+        // Cancels the timeout, returning false if it has already run.
+        boolean cancel() {
+            if (!STATE.compareAndSet(this, PENDING, CANCELLED)) {
+                return false;
+            }
+            wheel.cancelled.add(this);
+            return true;
+        }
+
+        private void expire() {
+            if (!STATE.compareAndSet(this, PENDING, EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                // A failing task must not stop the wheel.
+                e.printStackTrace();
+            }
+        }
+    }
+
+    // A doubly linked list of the timeouts that expire on a tick.
+    private static final class Bucket {
+
+        private Timeout head;
+        private Timeout tail;
+
+        private void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        private void remove(Timeout timeout) {
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (next != null) {
+                next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                head = next;
+            }
+            if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+
+        // Runs the timeouts that are due by the end of the tick, and counts
+        // down the rounds of those due on a later turn of the wheel.
+        private void expire(long tickDeadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds > 0) {
+                    timeout.remainingRounds--;
+                } else if (timeout.deadlineNanos - tickDeadline <= 0) {
+                    remove(timeout);
+                    timeout.expire();
+                }
+                timeout = next;
+            }
+        }
+    }
+}
@@ -0,0 +1,317 @@
+package simplehttp;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSessionContext;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.time.Duration;
+import java.util.Arrays;
+
+/**
+ * The settings used to serve HTTPS, including the certificate and key that
+ * the server presents. The settings can be created using the {@link Builder}
+ * class and set on the server with {@link SimpleHttpServer.Builder#setTls}.
+ *
+ * Resuming a session skips the key exchange and certificate checks of a
+ * full handshake, so returning clients reconnect for a fraction of the cost.
+ * Sessions can be resumed from the server's session cache or, with TLS 1.3,
+ * from an encrypted session ticket held by the client, which costs the
+ * server no memory. How often this happens is counted in the server's
+ * {@link TlsStats}.
+ *
+ * The session cache settings are applied to the context when a server
+ * using these settings starts, not when they are built. Whether tickets
+ * are issued is fixed when the JDK creates a context, so it only applies to
+ * contexts loaded from a key store, which are created on first use.
+ *
+ * The native server reuses its own packet and application buffers around
+ * each connection's SSLEngine, so no buffering is configured here.
+ */
+public class TlsSettings {
+
+    private static final String SESSION_TICKETS_PROPERTY =
+            "jdk.tls.server.enableSessionTicketExtension";
+    private static final String HTTP_1_1 = "http/1.1";
+
+    private final KeyManager[] keyManagers;
+    private final String[] protocols;
+    private final String[] applicationProtocols;
+    private final int sessionCacheSize;
+    private final Duration sessionTimeout;
+    private final boolean sessionTickets;
+
+    private SSLContext sslContext;
+
+    private TlsSettings(Builder builder, KeyManager[] keyManagers) {
+        this.sslContext = builder.sslContext;
+        this.keyManagers = keyManagers;
+        this.protocols = builder.protocols.clone();
+        this.applicationProtocols = builder.applicationProtocols.clone();
+        this.sessionCacheSize = builder.sessionCacheSize;
+        this.sessionTimeout = builder.sessionTimeout;
+        this.sessionTickets = builder.sessionTickets;
+    }
+
+    /**
+     * Returns the context that connections are secured with, creating it
+     * from the key store on first use if no context was set.
+     * @throws IllegalStateException if the context cannot be created.
+     */
+    public synchronized SSLContext getSslContext() {
+        if (sslContext == null) {
+            sslContext = createContext(keyManagers, sessionTickets);
+        }
+        return sslContext;
+    }
+
+    /**
+     * Returns the TLS protocol versions that clients may use.
+     */
+    public String[] getProtocols() {
+        return protocols.clone();
+    }
+
+    /**
+     * Returns the application protocols offered during ALPN, in order of
+     * preference.
+     */
+    public String[] getApplicationProtocols() {
+        return applicationProtocols.clone();
+    }
+
+    /**
+     * Returns the maximum number of sessions kept for resumption.
+     */
+    public int getSessionCacheSize() {
+        return sessionCacheSize;
+    }
+
+    /**
+     * Returns how long a session can be resumed after it was created.
+     */
+    public Duration getSessionTimeout() {
+        return sessionTimeout;
+    }
+
+    /**
+     * Returns true if sessions can be resumed from tickets held by clients.
+     */
+    public boolean isSessionTickets() {
+        return sessionTickets;
+    }
+
+    // Applies the session cache settings to the context, when a server
+    // using these settings starts, and returns it.
+    SSLContext prepareContext() {
+        SSLContext context = getSslContext();
+        SSLSessionContext sessions = context.getServerSessionContext();
+        sessions.setSessionCacheSize(sessionCacheSize);
+        sessions.setSessionTimeout(
+                (int) Math.min(Integer.MAX_VALUE, sessionTimeout.toSeconds()));
+        return context;
+    }
+
+    // Returns the parameters applied to each new connection.
+    SSLParameters createParameters() {
+        SSLParameters parameters = getSslContext().getDefaultSSLParameters();
+        parameters.setProtocols(protocols);
+        parameters.setApplicationProtocols(applicationProtocols);
+        return parameters;
+    }
+
+    // The JDK reads the ticket setting from a system property as each
+    // context is created, so it is set only while creating this one and
+    // then put back. Creations are serialized so they see their own value.
+    private static synchronized SSLContext createContext(
+            KeyManager[] keyManagers, boolean sessionTickets) {
+        String previous = System.getProperty(SESSION_TICKETS_PROPERTY);
+        System.setProperty(SESSION_TICKETS_PROPERTY,
+                String.valueOf(sessionTickets));
+        try {
+            SSLContext context = SSLContext.getInstance("TLS");
+            context.init(keyManagers, null, null);
+            return context;
+        } catch (GeneralSecurityException e) {
+            String msg = "Cannot create the TLS context.";
+            throw new IllegalStateException(msg, e);
+        } finally {
+            if (previous == null) {
+                System.clearProperty(SESSION_TICKETS_PROPERTY);
+            } else {
+                System.setProperty(SESSION_TICKETS_PROPERTY, previous);
+            }
+        }
+    }
+
+    /**
+     * Builder for creating a new {@link TlsSettings}.
+     */
+    public static class Builder {
+
+        private Path keyStore;
+        private char[] keyStorePassword;
+        private String keyStoreType = "PKCS12";
+        private char[] keyPassword;
+        private SSLContext sslContext;
+        private String[] protocols = {"TLSv1.3", "TLSv1.2"};
+        private String[] applicationProtocols = {HTTP_1_1};
+        private int sessionCacheSize = 20480;
+        private Duration sessionTimeout = Duration.ofHours(1);
+        private boolean sessionTickets = true;
+
+        /**
+         * Sets the key store holding the server's certificate chain and
+         * private key.
+         */
+        public Builder setKeyStore(Path keyStore) {
+            this.keyStore = keyStore;
+            return this;
+        }
+
+        /**
+         * Sets the password of the key store.
+         */
+        public Builder setKeyStorePassword(char[] keyStorePassword) {
+            this.keyStorePassword = keyStorePassword;
+            return this;
+        }
+
+        /**
+         * Sets the type of the key store. Defaults to PKCS12.
+         */
+        public Builder setKeyStoreType(String keyStoreType) {
+            this.keyStoreType = keyStoreType;
+            return this;
+        }
+
+        /**
+         * Sets the password of the private key. If null, the key store
+         * password is used.
+         */
+        public Builder setKeyPassword(char[] keyPassword) {
+            this.keyPassword = keyPassword;
+            return this;
+        }
+
+        /**
+         * Sets a context to secure connections with, instead of one loaded
+         * from a key store. The session cache settings are still applied to
+         * it when a server using these settings starts, but whether it
+         * issues session tickets was fixed when it was created.
+         */
+        public Builder setSslContext(SSLContext sslContext) {
+            this.sslContext = sslContext;
+            return this;
+        }
+
+        /**
+         * Sets the TLS protocol versions that clients may use. Defaults to
+         * TLSv1.3 and TLSv1.2.
+         */
+        public Builder setProtocols(String... protocols) {
+            this.protocols = protocols;
+            return this;
+        }
+
+        /**
+         * Sets the application protocols offered during ALPN, in order of
+         * preference. The native server only speaks HTTP/1.1, so this
+         * defaults to, and must include, http/1.1.
+         */
+        public Builder setApplicationProtocols(String... applicationProtocols) {
+            this.applicationProtocols = applicationProtocols;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of sessions kept for resumption. A 0-value
+         * sets no limit. Defaults to 20480.
+         */
+        public Builder setSessionCacheSize(int sessionCacheSize) {
+            this.sessionCacheSize = sessionCacheSize;
+            return this;
+        }
+
+        /**
+         * Sets how long a session can be resumed after it was created,
+         * rounded down to whole seconds. Defaults to 1 hour.
+         */
+        public Builder setSessionTimeout(Duration sessionTimeout) {
+            this.sessionTimeout = sessionTimeout;
+            return this;
+        }
+
+        /**
+         * Enables resuming sessions from tickets held by clients, so that
+         * resumption does not depend on the server's session cache. This
+         * applies to contexts loaded from a key store, and not to one set
+         * with {@link #setSslContext}. Enabled by default.
+         */
+        public Builder setSessionTickets(boolean sessionTickets) {
+            this.sessionTickets = sessionTickets;
+            return this;
+        }
+
+        /**
+         * Builds a new {@link TlsSettings} from this builder, loading the
+         * key store if no context was set. Neither system properties nor the
+         * context are changed until the settings are used.
+         * @throws UncheckedIOException if the key store cannot be read.
+         */
+        public TlsSettings build() {
+            ensureNonNull(protocols, "protocols");
+            ensureNonNull(applicationProtocols, "applicationProtocols");
+            ensureNonNull(sessionTimeout, "sessionTimeout");
+
+            if (!Arrays.asList(applicationProtocols).contains(HTTP_1_1)) {
+                String msg = "The applicationProtocols field must include "
+                        + HTTP_1_1;
+                throw new IllegalStateException(msg);
+            }
+
+            if (sessionCacheSize < 0) {
+                String msg = "The sessionCacheSize field must be non-negative";
+                throw new IllegalStateException(msg);
+            }
+
+            return new TlsSettings(this,
+                    sslContext != null ? null : loadKeyManagers());
+        }
+
+        private KeyManager[] loadKeyManagers() {
+            ensureNonNull(keyStore, "keyStore");
+            ensureNonNull(keyStorePassword, "keyStorePassword");
+            ensureNonNull(keyStoreType, "keyStoreType");
+            try (InputStream in = Files.newInputStream(keyStore)) {
+                KeyStore store = KeyStore.getInstance(keyStoreType);
+                store.load(in, keyStorePassword);
+                KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(
+                        KeyManagerFactory.getDefaultAlgorithm());
+                keyManagers.init(store, keyPassword != null
+                        ? keyPassword
+                        : keyStorePassword);
+                return keyManagers.getKeyManagers();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } catch (GeneralSecurityException e) {
+                String msg = "Cannot load the key store " + keyStore + ".";
+                throw new IllegalStateException(msg, e);
+            }
+        }
+
+        private static void ensureNonNull(Object object, String fieldName) {
+            if (object == null) {
+                String msg = "The " + fieldName + " field must be non-null";
+                throw new IllegalStateException(msg);
+            }
+        }
+    }
+}
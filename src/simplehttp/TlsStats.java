@@ -0,0 +1,82 @@
+package simplehttp;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the TLS handshakes completed by a {@link SimpleHttpServer}, split
+ * into full handshakes and resumed sessions. The counts can be read at any
+ * time using {@link SimpleHttpServer#getTlsStats()}; sampling them
+ * periodically gives the handshake rate.
+ *
+ * A handshake counts as resumed if its session was created before the
+ * handshake began, whether it came from the session cache or a ticket.
+ */
+public final class TlsStats {
+
+    private final LongAdder fullHandshakes = new LongAdder();
+    private final LongAdder resumedHandshakes = new LongAdder();
+    private final LongAdder failedHandshakes = new LongAdder();
+    private final LongAdder handshakeNanos = new LongAdder();
+
+    TlsStats() {}
+
+    /**
+     * Returns the number of handshakes completed, full or resumed.
+     */
+    public long getHandshakes() {
+        return fullHandshakes.sum() + resumedHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of handshakes that created a new session.
+     */
+    public long getFullHandshakes() {
+        return fullHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of handshakes that resumed an earlier session.
+     */
+    public long getResumedHandshakes() {
+        return resumedHandshakes.sum();
+    }
+
+    /**
+     * Returns the number of handshakes that failed, such as those from
+     * clients that do not trust the certificate.
+     */
+    public long getFailedHandshakes() {
+        return failedHandshakes.sum();
+    }
+
+    /**
+     * Returns the fraction of completed handshakes that resumed an earlier
+     * session, or 0 if none have completed.
+     */
+    public double getResumptionRatio() {
+        long resumed = resumedHandshakes.sum();
+        long total = resumed + fullHandshakes.sum();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+
+    /**
+     * Returns the mean time from the start of a handshake to its
+     * completion, including waiting for the client, or zero if none have
+     * completed.
+     */
+    public Duration getMeanHandshakeTime() {
+        long total = getHandshakes();
+        return total == 0 ? Duration.ZERO
+                : Duration.ofNanos(handshakeNanos.sum() / total);
+    }
+
+    void recordHandshake(boolean resumed, long nanos) {
+        (resumed ? resumedHandshakes : fullHandshakes).increment();
+        handshakeNanos.add(nanos);
+    }
+
+    void recordFailedHandshake() {
+        failedHandshakes.increment();
+    }
+}
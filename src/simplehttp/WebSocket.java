@@ -0,0 +1,592 @@
+package simplehttp;
+
+import java.io.IOException;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A WebSocket connection accepted by a {@link WebSocketAction}. Messages can
+ * be sent from any thread. Sending never blocks: what the connection cannot
+ * take at once is queued and written as the client reads it, up to the
+ * limit from {@link WebSocketSettings#getMaxQueuedBytes()}.
+ *
+ * The send methods return false instead of throwing when the connection is
+ * closing or closed, so that broadcasting to many connections is not
+ * interrupted by one that has just gone away.
+ */
+public final class WebSocket {
+
+    public static final int NORMAL_CLOSURE = 1000;
+    public static final int GOING_AWAY = 1001;
+    public static final int PROTOCOL_ERROR = 1002;
+    public static final int UNSUPPORTED_DATA = 1003;
+    public static final int NO_STATUS = 1005;
+    public static final int ABNORMAL_CLOSURE = 1006;
+    public static final int INVALID_DATA = 1007;
+    public static final int POLICY_VIOLATION = 1008;
+    public static final int MESSAGE_TOO_BIG = 1009;
+    public static final int INTERNAL_ERROR = 1011;
+
+    private static final int MAX_REASON_BYTES =
+            WebSocketCodec.MAX_CONTROL_PAYLOAD - 2;
+
+    private final WebSocketAction action;
+    private final WebSocketReactor reactor;
+    private final WebSocketSettings settings;
+    private final ConnectionTakeover.TakenConnection connection;
+    private final SocketChannel channel;
+    private final String path;
+    private final SocketAddress remoteAddress;
+    private final Set<WebSocketGroup> groups = ConcurrentHashMap.newKeySet();
+    private volatile Object attachment;
+
+    // Outbound state, guarded by this.
+    private final ArrayDeque<ByteBuffer> outbound = new ArrayDeque<>();
+    private long queuedBytes;
+    private SelectionKey key;
+    private boolean closeSent;
+    private long closeSentAtNanos;
+    private boolean closeAfterFlush;
+    private boolean closed;
+    private int closeCode = ABNORMAL_CLOSURE;
+    private String closeReason = "";
+
+    // Inbound state, only used by the reactor thread.
+    private ByteBuffer partial;
+    private int messageOpcode = -1;
+    private byte[] message;
+    private int messageLength;
+    private boolean closeReceived;
+    private boolean failed;
+    private volatile long lastReadNanos = System.nanoTime();
+    private boolean pingOutstanding;
+
+    WebSocket(WebSocketAction action, WebSocketReactor reactor,
+              WebSocketSettings settings,
+              ConnectionTakeover.TakenConnection connection, String path) {
+        this.action = action;
+        this.reactor = reactor;
+        this.settings = settings;
+        this.connection = connection;
+        this.channel = connection.getChannel();
+        this.path = path;
+        this.remoteAddress = remoteAddressOf(channel);
+    }
+
+    /**
+     * Sends a text message.
+     * @return false if the connection is closing or closed.
+     */
+    public boolean sendText(String text) {
+        return sendMessage(WebSocketCodec.TEXT,
+                ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * Sends a binary message holding the given buffer's remaining bytes. The
+     * buffer is copied, so it can be reused once this returns.
+     * @return false if the connection is closing or closed.
+     */
+    public boolean sendBinary(ByteBuffer data) {
+        return sendMessage(WebSocketCodec.BINARY, data);
+    }
+
+    /**
+     * Sends a binary message holding the given bytes.
+     * @return false if the connection is closing or closed.
+     */
+    public boolean sendBinary(byte[] data) {
+        return sendBinary(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Sends a ping, which the client answers with a pong.
+     * @return false if the connection is closing or closed.
+     */
+    public boolean ping() {
+        return send(WebSocketCodec.encodeFrame(true, WebSocketCodec.PING,
+                ByteBuffer.allocate(0), null));
+    }
+
+    /**
+     * Starts closing the connection with a normal closure status.
+     */
+    public void close() {
+        close(NORMAL_CLOSURE, "");
+    }
+
+    /**
+     * Starts closing the connection with the given status code and reason.
+     * The connection is closed once the client answers, or after the close
+     * timeout. Does nothing if the connection is already closing.
+     */
+    public void close(int code, String reason) {
+        sendClose(code, reason, false);
+    }
+
+    /**
+     * Returns true until the connection starts closing.
+     */
+    public synchronized boolean isOpen() {
+        return !closed && !closeSent;
+    }
+
+    /**
+     * Returns the request path the connection was opened with.
+     */
+    public String getPath() {
+        return path;
+    }
+
+    /**
+     * Returns the address of the client, or null if it is not known.
+     */
+    public SocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Returns the number of bytes waiting to be written to the client.
+     */
+    public synchronized long getQueuedBytes() {
+        return queuedBytes;
+    }
+
+    /**
+     * Attaches an object to the connection, such as the user it belongs
+     * to, replacing any previous one.
+     */
+    public void setAttachment(Object attachment) {
+        this.attachment = attachment;
+    }
+
+    /**
+     * Returns the object attached to the connection, or null if none is.
+     */
+    public Object getAttachment() {
+        return attachment;
+    }
+
+    // Sends frames that were already encoded, such as a duplicate of a
+    // buffer broadcast to a group.
+    boolean sendEncoded(ByteBuffer frames) {
+        return send(frames);
+    }
+
+    private boolean sendMessage(int opcode, ByteBuffer payload) {
+        return send(WebSocketCodec.encodeMessage(opcode, payload,
+                settings.getMaxFramePayload()));
+    }
+
+    private synchronized boolean send(ByteBuffer frames) {
+        if (closed || closeSent) {
+            return false;
+        }
+        return write(frames);
+    }
+
+    // Writes as much as the connection takes now and queues the rest. Must
+    // hold this.
+    private boolean write(ByteBuffer frames) {
+        if (outbound.isEmpty()) {
+            try {
+                channel.write(frames);
+            } catch (IOException e) {
+                terminate(ABNORMAL_CLOSURE, "");
+                return false;
+            }
+            if (!frames.hasRemaining()) {
+                return true;
+            }
+        }
+        if (queuedBytes + frames.remaining() > settings.getMaxQueuedBytes()) {
+            // The client is not reading; it cannot be sent a close frame
+            // either, so the connection is dropped.
+            terminate(POLICY_VIOLATION, "Too many bytes queued.");
+            return false;
+        }
+        outbound.add(frames);
+        queuedBytes += frames.remaining();
+        if (key != null) {
+            setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            reactor.wakeup();
+        }
+        return true;
+    }
+
+    // Sends a close frame, unless one was sent already. If closeNow is set,
+    // or the client already sent its close frame, the connection is closed
+    // once the frame is written instead of waiting for the client.
+    private synchronized void sendClose(int code, String reason,
+                                        boolean closeNow) {
+        if (closed || closeSent) {
+            return;
+        }
+        closeSent = true;
+        closeSentAtNanos = System.nanoTime();
+        closeCode = code;
+        closeReason = reason;
+        write(closeFrame(code, reason));
+        if (closeNow || closeReceived) {
+            closeAfterFlush = true;
+            if (outbound.isEmpty()) {
+                terminate(code, reason);
+            }
+        }
+    }
+
+    private static ByteBuffer closeFrame(int code, String reason) {
+        byte[] reasonBytes = reason.getBytes(StandardCharsets.UTF_8);
+        int reasonLength = Math.min(reasonBytes.length, MAX_REASON_BYTES);
+        ByteBuffer payload = ByteBuffer.allocate(2 + reasonLength)
+                .putShort((short) code)
+                .put(reasonBytes, 0, reasonLength)
+                .flip();
+        return WebSocketCodec.encodeFrame(true, WebSocketCodec.CLOSE, payload,
+                null);
+    }
+
+    // Closes the connection at once, first trying to send a close frame if
+    // nothing else is waiting to be written. Used when the action stops, as
+    // there is no time to wait for the client's reply.
+    void goAway(int code, String reason) {
+        synchronized (this) {
+            if (!closed && !closeSent && outbound.isEmpty()) {
+                try {
+                    channel.write(closeFrame(code, reason));
+                } catch (IOException e) {
+                    // The connection is dropped below either way.
+                }
+            }
+        }
+        terminate(code, reason);
+    }
+
+    // Closes the connection without a closing handshake. The action is
+    // told, and the inbound state released, on the reactor thread. May be
+    // called from any thread.
+    void terminate(int code, String reason) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            outbound.clear();
+            queuedBytes = 0;
+        }
+        connection.close();
+        for (WebSocketGroup group : groups) {
+            group.remove(this);
+        }
+        reactor.closed(this, code, reason);
+    }
+
+    // Called by the reactor once the channel is registered with it.
+    synchronized void registered(SelectionKey key) {
+        this.key = key;
+        if (!outbound.isEmpty()) {
+            setInterest(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+        }
+    }
+
+    // Must hold this. A key cancelled by a concurrent close is ignored.
+    private void setInterest(int ops) {
+        try {
+            key.interestOps(ops);
+        } catch (CancelledKeyException e) {
+            // The connection is closing, there is nothing left to write.
+        }
+    }
+
+    // Writes queued frames when the connection can take more. Called by the
+    // reactor thread.
+    synchronized void flush() {
+        try {
+            while (!outbound.isEmpty()) {
+                ByteBuffer frames = outbound.peek();
+                queuedBytes -= channel.write(frames);
+                if (frames.hasRemaining()) {
+                    return;
+                }
+                outbound.poll();
+            }
+        } catch (IOException e) {
+            terminate(ABNORMAL_CLOSURE, "");
+            return;
+        }
+        setInterest(SelectionKey.OP_READ);
+        if (closeAfterFlush) {
+            terminate(closeCode, closeReason);
+        }
+    }
+
+    // Reads what the client sent, using the reactor's shared buffer, and
+    // handles each complete frame. Called by the reactor thread.
+    void read(ByteBuffer shared) {
+        shared.clear();
+        int read;
+        try {
+            read = channel.read(shared);
+        } catch (IOException e) {
+            read = -1;
+        }
+        if (read < 0) {
+            terminate(closeReceived ? closeCode : ABNORMAL_CLOSURE,
+                    closeReceived ? closeReason : "");
+            return;
+        }
+        lastReadNanos = System.nanoTime();
+        pingOutstanding = false;
+        process(shared.flip());
+    }
+
+    // Handles the bytes received along with the upgrade request, if any.
+    void processLeftover() {
+        ByteBuffer leftover = connection.getLeftover();
+        if (leftover.hasRemaining()) {
+            process(leftover);
+        }
+    }
+
+    // Decodes the received bytes, along with any incomplete frame left from
+    // earlier reads. Only connections in the middle of a frame hold a buffer
+    // of their own, borrowed from the reactor's pool, so idle connections
+    // cost no buffer memory. Once the client has broken the protocol,
+    // whatever it sends is discarded while the connection closes.
+    private void process(ByteBuffer received) {
+        if (failed) {
+            return;
+        }
+        ByteBuffer in = received;
+        if (partial != null) {
+            partial = ensureCapacity(partial, received.remaining());
+            partial.put(received).flip();
+            in = partial;
+        }
+        try {
+            WebSocketCodec.decode(in, this::onFrame,
+                    settings.getMaxMessageSize());
+        } catch (WebSocketCodec.ProtocolException e) {
+            fail(e.getCloseCode(), e.getMessage());
+            return;
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            fail(INTERNAL_ERROR, "");
+            return;
+        }
+        if (isClosed()) {
+            // A callback terminated the connection while its frames were
+            // decoded; nothing more will be read.
+            releasePartial();
+        } else if (!in.hasRemaining()) {
+            releasePartial();
+        } else if (in == partial) {
+            partial.compact();
+        } else {
+            partial = ensureCapacity(reactor.getBufferPool().acquire(),
+                    in.remaining());
+            partial.put(in);
+        }
+    }
+
+    // Stops decoding and delivering what the client sends, dropping the
+    // incomplete frame and message, and closes the connection once the
+    // close frame is written.
+    private void fail(int code, String reason) {
+        failed = true;
+        releasePartial();
+        messageOpcode = -1;
+        message = null;
+        messageLength = 0;
+        sendClose(code, reason, true);
+    }
+
+    // Returns a buffer, in write mode, with room for the given number of
+    // bytes more, holding the given buffer's contents.
+    private ByteBuffer ensureCapacity(ByteBuffer buffer, int more) {
+        if (buffer.remaining() >= more) {
+            return buffer;
+        }
+        int needed = buffer.position() + more;
+        ByteBuffer larger = ByteBuffer.allocate(
+                Math.max(needed, buffer.capacity() * 2));
+        larger.put(buffer.flip());
+        reactor.getBufferPool().release(buffer);
+        return larger;
+    }
+
+    // Gives the buffer holding an incomplete frame back to the pool. Only
+    // called by the reactor thread, which is the only one decoding into it.
+    void releasePartial() {
+        ByteBuffer buffer = partial;
+        partial = null;
+        if (buffer != null) {
+            reactor.getBufferPool().release(buffer);
+        }
+    }
+
+    private void onFrame(boolean fin, int opcode, byte[] payload)
+            throws WebSocketCodec.ProtocolException {
+        switch (opcode) {
+            case WebSocketCodec.PING -> send(WebSocketCodec.encodeFrame(true,
+                    WebSocketCodec.PONG, ByteBuffer.wrap(payload), null));
+            case WebSocketCodec.PONG -> { /* Any frame counts as activity. */ }
+            case WebSocketCodec.CLOSE -> onClose(payload);
+            case WebSocketCodec.CONTINUATION -> {
+                if (messageOpcode < 0) {
+                    throw new WebSocketCodec.ProtocolException(PROTOCOL_ERROR,
+                            "Continuation without a message.");
+                }
+                append(payload);
+                if (fin) {
+                    int finishedOpcode = messageOpcode;
+                    byte[] finished = Arrays.copyOf(message, messageLength);
+                    messageOpcode = -1;
+                    message = null;
+                    messageLength = 0;
+                    deliver(finishedOpcode, finished);
+                }
+            }
+            default -> {
+                if (messageOpcode >= 0) {
+                    throw new WebSocketCodec.ProtocolException(PROTOCOL_ERROR,
+                            "New message before the last one finished.");
+                }
+                if (fin) {
+                    deliver(opcode, payload);
+                } else {
+                    messageOpcode = opcode;
+                    append(payload);
+                }
+            }
+        }
+    }
+
+    private void append(byte[] payload)
+            throws WebSocketCodec.ProtocolException {
+        int length = messageLength + payload.length;
+        if (length > settings.getMaxMessageSize()) {
+            throw new WebSocketCodec.ProtocolException(MESSAGE_TOO_BIG,
+                    "Message is too big.");
+        }
+        if (message == null || message.length < length) {
+            message = Arrays.copyOf(message == null ? new byte[0] : message,
+                    Math.max(length, messageLength * 2));
+        }
+        System.arraycopy(payload, 0, message, messageLength, payload.length);
+        messageLength = length;
+    }
+
+    private void deliver(int opcode, byte[] payload)
+            throws WebSocketCodec.ProtocolException {
+        if (closeReceived || closed || failed) {
+            return;
+        }
+        if (opcode == WebSocketCodec.TEXT) {
+            action.dispatchText(this, decodeText(payload));
+        } else {
+            action.dispatchBinary(this, ByteBuffer.wrap(payload));
+        }
+    }
+
+    private void onClose(byte[] payload)
+            throws WebSocketCodec.ProtocolException {
+        if (payload.length == 1) {
+            throw new WebSocketCodec.ProtocolException(PROTOCOL_ERROR,
+                    "Close frame with a truncated status code.");
+        }
+        int code = payload.length == 0 ? NO_STATUS
+                : ((payload[0] & 0xFF) << 8) | (payload[1] & 0xFF);
+        String reason = payload.length <= 2 ? ""
+                : decodeText(Arrays.copyOfRange(payload, 2, payload.length));
+        boolean answered;
+        synchronized (this) {
+            closeReceived = true;
+            answered = closeSent;
+        }
+        if (answered) {
+            // The client answered the close frame sent earlier.
+            terminate(closeCode, closeReason);
+        } else {
+            // Echo the client's status, as the closing handshake requires.
+            sendClose(code == NO_STATUS ? NORMAL_CLOSURE : code, reason, true);
+        }
+    }
+
+    // Pings a connection that has been silent for the ping interval, and
+    // closes one silent for the idle timeout or that has not answered a
+    // close frame in time. Called periodically by the reactor thread.
+    void checkTimeouts(long now) {
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            if (closeSent) {
+                long waited = now - closeSentAtNanos;
+                if (waited > settings.getCloseTimeout().toNanos()) {
+                    terminate(closeCode, closeReason);
+                }
+                return;
+            }
+        }
+        long silent = now - lastReadNanos;
+        if (settings.getIdleTimeout() != null
+                && silent > settings.getIdleTimeout().toNanos()) {
+            sendClose(GOING_AWAY, "Idle timeout.", true);
+        } else if (settings.getPingInterval() != null && !pingOutstanding
+                && silent > settings.getPingInterval().toNanos()) {
+            pingOutstanding = ping();
+        }
+    }
+
+    // Called when the connection joins or leaves a group, so it can leave
+    // all of them when closed.
+    void joined(WebSocketGroup group) {
+        groups.add(group);
+    }
+
+    void left(WebSocketGroup group) {
+        groups.remove(group);
+    }
+
+    SocketChannel getChannel() {
+        return channel;
+    }
+
+    private synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private static String decodeText(byte[] payload)
+            throws WebSocketCodec.ProtocolException {
+        try {
+            CharBuffer text = StandardCharsets.UTF_8.newDecoder()
+                    .onMalformedInput(CodingErrorAction.REPORT)
+                    .onUnmappableCharacter(CodingErrorAction.REPORT)
+                    .decode(ByteBuffer.wrap(payload));
+            return text.toString();
+        } catch (CharacterCodingException e) {
+            throw new WebSocketCodec.ProtocolException(INVALID_DATA,
+                    "Text is not valid UTF-8.");
+        }
+    }
+
+    private static SocketAddress remoteAddressOf(SocketChannel channel) {
+        try {
+            return channel.getRemoteAddress();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package simplehttp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Set;
+
+/**
+ * An action that upgrades requests to its resource path to WebSocket
+ * connections, as defined by RFC 6455. The action is bound to its path with
+ * {@link ForResource} like any other, and overrides the callbacks for the
+ * events of its connections, each given the {@link WebSocket} it concerns.
+ * Connections can be collected into a {@link WebSocketGroup} to broadcast
+ * messages to them.
+ *
+ * The upgrade request is handled on an executor thread, which calls
+ * {@link #onOpen} and is then returned. After that, a single thread per
+ * action watches all of its connections, so holding many mostly idle
+ * connections costs no thread each. The message and close callbacks run on
+ * that thread, in order for each connection, and must not block; longer
+ * work should be handed to an executor. Fragmented messages are joined
+ * before they are delivered, pings are answered, and silent connections are
+ * pinged and eventually closed, as set in the {@link WebSocketSettings}.
+ *
+ * The native server cannot hand over a connection after its request, so
+ * the action takes it over, which requires the JVM option
+ * {@code --add-opens jdk.httpserver/sun.net.httpserver=ALL-UNNAMED}. Only
+ * plain HTTP connections can be upgraded; requests to an HTTPS server are
+ * answered with a 501 Not Implemented.
+ */
+public abstract class WebSocketAction extends SimpleAction {
+
+    private static final String ACCEPT_GUID =
+            "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final String VERSION = "13";
+    private static final String SERVER_STOPPING = "Server is stopping.";
+
+    private final WebSocketSettings settings;
+    private WebSocketReactor reactor;
+
+    /**
+     * Creates an action using the default settings.
+     */
+    protected WebSocketAction() {
+        this(WebSocketSettings.createDefault());
+    }
+
+    /**
+     * Creates an action using the given settings.
+     */
+    protected WebSocketAction(WebSocketSettings settings) {
+        this.settings = settings;
+    }
+
+    /**
+     * Checks whether the given upgrade request may open a connection, for
+     * example by checking its Origin header or credentials. Refused
+     * requests are answered with a 403 Forbidden. Accepts every request
+     * unless overridden.
+     */
+    protected boolean acceptUpgrade(SimpleRequest request) {
+        return true;
+    }
+
+    /**
+     * Called when a connection has been opened, on the thread that handled
+     * the upgrade request. The request must not be kept once this returns.
+     */
+    protected void onOpen(WebSocket socket, SimpleRequest request) {
+    }
+
+    /**
+     * Called with each text message received. Unless overridden, the
+     * connection is closed with status 1003, as text is not supported.
+     */
+    protected void onText(WebSocket socket, String text) {
+        socket.close(WebSocket.UNSUPPORTED_DATA, "Text is not supported.");
+    }
+
+    /**
+     * Called with each binary message received. Unless overridden, the
+     * connection is closed with status 1003, as binary data is not
+     * supported.
+     */
+    protected void onBinary(WebSocket socket, ByteBuffer data) {
+        socket.close(WebSocket.UNSUPPORTED_DATA, "Binary is not supported.");
+    }
+
+    /**
+     * Called once a connection has closed, with the status code and reason
+     * from the closing handshake, or status 1006 if it ended without one.
+     */
+    protected void onClose(WebSocket socket, int code, String reason) {
+    }
+
+    /**
+     * Returns the connections of this action that are open or closing.
+     */
+    public synchronized Set<WebSocket> getSockets() {
+        return reactor == null ? Set.of() : reactor.getSockets();
+    }
+
+    /**
+     * Closes every connection of this action with status 1001 and stops
+     * the thread watching them. Connections upgraded afterwards start a new
+     * thread.
+     */
+    public synchronized void closeAll() {
+        if (reactor != null) {
+            reactor.shutdown(WebSocket.GOING_AWAY, SERVER_STOPPING);
+            reactor = null;
+        }
+    }
+
+    /**
+     * Handles the upgrade request. A request that is not a valid WebSocket
+     * upgrade is answered with a 426 Upgrade Required.
+     */
+    @Override
+    public final void handleGet(SimpleRequest request,
+                                ResponseSender responseSender) {
+        SimpleHeaders headers = request.getHeaders();
+        String key = headers.getFirstIgnoreCase(HttpHeader.SEC_WEBSOCKET_KEY);
+        if (!"websocket".equalsIgnoreCase(
+                headers.getFirstIgnoreCase(HttpHeader.UPGRADE))
+                || !hasToken(headers.getFirstIgnoreCase(HttpHeader.CONNECTION),
+                        "upgrade")
+                || !VERSION.equals(headers.getFirstIgnoreCase(
+                        HttpHeader.SEC_WEBSOCKET_VERSION))
+                || !isValidKey(key)) {
+            responseSender.send(new SimpleResponse.Builder()
+                    .setStatusCode(HttpStatus.UPGRADE_REQUIRED)
+                    .setHeaders(new SimpleHeaders.Builder()
+                            .set(HttpHeader.UPGRADE, "websocket")
+                            .set(HttpHeader.SEC_WEBSOCKET_VERSION, VERSION)
+                            .build())
+                    .build());
+            return;
+        }
+        if (!responseSender.canUpgrade()) {
+            responseSender.send(new SimpleResponse.Builder()
+                    .setStatusCode(HttpStatus.NOT_IMPLEMENTED)
+                    .build());
+            return;
+        }
+        if (!acceptUpgrade(request)) {
+            responseSender.send(new SimpleResponse.Builder()
+                    .setStatusCode(HttpStatus.FORBIDDEN)
+                    .build());
+            return;
+        }
+        String response = "HTTP/1.1 101 Switching Protocols\r\n"
+                + HttpHeader.UPGRADE + ": websocket\r\n"
+                + HttpHeader.CONNECTION + ": Upgrade\r\n"
+                + HttpHeader.SEC_WEBSOCKET_ACCEPT + ": " + acceptFor(key)
+                + "\r\n\r\n";
+        ConnectionTakeover.TakenConnection connection = responseSender.upgrade(
+                response.getBytes(StandardCharsets.US_ASCII));
+        WebSocketReactor currentReactor = reactor();
+        WebSocket socket = new WebSocket(this, currentReactor, settings,
+                connection, request.getUri().getRawPath());
+        try {
+            onOpen(socket, request);
+        } catch (RuntimeException e) {
+            socket.terminate(WebSocket.INTERNAL_ERROR, "");
+            throw e;
+        }
+        if (!currentReactor.register(socket)) {
+            // closeAll stopped the reactor after the socket was created, so
+            // the server is stopping and the socket will never be watched.
+            socket.goAway(WebSocket.GOING_AWAY, SERVER_STOPPING);
+            dispatchClose(socket, WebSocket.GOING_AWAY, SERVER_STOPPING);
+        }
+    }
+
+    // Passes a text message to the action, closing the connection if the
+    // action fails.
+    void dispatchText(WebSocket socket, String text) {
+        try {
+            onText(socket, text);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            socket.close(WebSocket.INTERNAL_ERROR, "");
+        }
+    }
+
+    // Passes a binary message to the action, closing the connection if the
+    // action fails.
+    void dispatchBinary(WebSocket socket, ByteBuffer data) {
+        try {
+            onBinary(socket, data);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+            socket.close(WebSocket.INTERNAL_ERROR, "");
+        }
+    }
+
+    // Tells the action a connection has closed.
+    void dispatchClose(WebSocket socket, int code, String reason) {
+        try {
+            onClose(socket, code, reason);
+        } catch (RuntimeException e) {
+            e.printStackTrace();
+        }
+    }
+
+    // Returns the reactor watching this action's connections, starting it
+    // on first use.
+    private synchronized WebSocketReactor reactor() {
+        if (reactor == null) {
+            reactor = new WebSocketReactor(this,
+                    "simplehttp-websocket" + getResourcePath());
+        }
+        return reactor;
+    }
+
+    private static boolean hasToken(String header, String token) {
+        if (header == null) {
+            return false;
+        }
+        for (String part : header.split(",")) {
+            if (part.trim().equalsIgnoreCase(token)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // The key must be 16 random bytes, base64 encoded.
+    private static boolean isValidKey(String key) {
+        if (key == null) {
+            return false;
+        }
+        try {
+            return Base64.getDecoder().decode(key.trim()).length == 16;
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    private static String acceptFor(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            byte[] digest = sha1.digest((key.trim() + ACCEPT_GUID)
+                    .getBytes(StandardCharsets.US_ASCII));
+            return Base64.getEncoder().encodeToString(digest);
+        } catch (NoSuchAlgorithmException e) {
+            // Every Java platform is required to support SHA-1.
+            throw new IllegalStateException(e);
+        }
+    }
+}
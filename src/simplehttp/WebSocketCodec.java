@@ -0,0 +1,196 @@
+package simplehttp;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Encodes and decodes WebSocket frames, as defined by RFC 6455. Frames sent
+ * by clients must be masked and are unmasked eight bytes at a time. Frames
+ * sent by the server are unmasked, unless a mask is given, as a client would
+ * use. No extensions are supported, so the reserved bits must be clear.
+ *
+ * Encoded frames and decoded payloads are heap arrays sized to the message.
+ * Sent frames may sit in a connection's queue or be shared by every member
+ * of a group, and decoded payloads are handed to the action to keep, so
+ * neither has a point at which it could be given back to a pool. Only the
+ * reactor's read buffer and partial-frame buffers, whose lifetimes it
+ * controls, are pooled.
+ */
+final class WebSocketCodec {
+
+    static final int CONTINUATION = 0x0;
+    static final int TEXT = 0x1;
+    static final int BINARY = 0x2;
+    static final int CLOSE = 0x8;
+    static final int PING = 0x9;
+    static final int PONG = 0xA;
+
+    static final int MAX_CONTROL_PAYLOAD = 125;
+    static final int MAX_HEADER_SIZE = 14;
+
+    private WebSocketCodec() { /* Utility class not meant to be instantiated */ }
+
+    // Decodes as many complete frames as the buffer holds, passing each to
+    // the handler, and leaves the buffer positioned at the first incomplete
+    // frame. A frame payload larger than maxPayload is rejected without
+    // waiting for it to arrive.
+    static void decode(ByteBuffer in, FrameHandler handler, long maxPayload)
+            throws ProtocolException {
+        while (in.remaining() >= 2) {
+            int start = in.position();
+            int b0 = in.get(start) & 0xFF;
+            int b1 = in.get(start + 1) & 0xFF;
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            if ((b0 & 0x70) != 0) {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR,
+                        "Reserved bits set without an extension.");
+            }
+            if (!masked) {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR,
+                        "Client frames must be masked.");
+            }
+            boolean control = (opcode & 0x8) != 0;
+            if (opcode > BINARY && !control || opcode > PONG) {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR,
+                        "Unknown opcode " + opcode + ".");
+            }
+            int headerSize = 2;
+            long length = b1 & 0x7F;
+            if (length == 126) {
+                headerSize += 2;
+                if (in.remaining() < headerSize) {
+                    return;
+                }
+                length = in.getShort(start + 2) & 0xFFFF;
+            } else if (length == 127) {
+                headerSize += 8;
+                if (in.remaining() < headerSize) {
+                    return;
+                }
+                length = in.getLong(start + 2);
+            }
+            if (control && (!fin || length > MAX_CONTROL_PAYLOAD)) {
+                throw new ProtocolException(WebSocket.PROTOCOL_ERROR,
+                        "Control frames must be short and unfragmented.");
+            }
+            if (length < 0 || length > maxPayload) {
+                throw new ProtocolException(WebSocket.MESSAGE_TOO_BIG,
+                        "Frame payload of " + length + " bytes is too big.");
+            }
+            headerSize += 4;
+            if (in.remaining() < headerSize + length) {
+                return;
+            }
+            int mask = in.getInt(start + headerSize - 4);
+            byte[] payload = new byte[(int) length];
+            unmask(in, start + headerSize, payload, mask);
+            in.position(start + headerSize + (int) length);
+            handler.onFrame(fin, opcode, payload);
+        }
+    }
+
+    // Copies the payload starting at the given index out of the buffer,
+    // removing the mask. Whole longs are done at a time, with the mask
+    // repeated to match, and the remaining bytes one at a time.
+    private static void unmask(ByteBuffer in, int from, byte[] payload,
+                               int mask) {
+        ByteBuffer src = in.duplicate().order(ByteOrder.BIG_ENDIAN);
+        ByteBuffer dst = ByteBuffer.wrap(payload);
+        long longMask = ((long) mask << 32) | (mask & 0xFFFFFFFFL);
+        int i = 0;
+        for (; i + Long.BYTES <= payload.length; i += Long.BYTES) {
+            dst.putLong(i, src.getLong(from + i) ^ longMask);
+        }
+        for (; i < payload.length; i++) {
+            int shift = 24 - 8 * (i & 3);
+            payload[i] = (byte) (src.get(from + i) ^ (mask >>> shift));
+        }
+    }
+
+    // Encodes a message as one or more frames written back to back into a
+    // single buffer, splitting the payload into frames of at most
+    // maxFramePayload bytes. The buffer can be shared by many connections by
+    // sending a duplicate of it to each.
+    static ByteBuffer encodeMessage(int opcode, ByteBuffer payload,
+                                    int maxFramePayload) {
+        int length = payload.remaining();
+        int frames = Math.max(1, (length + maxFramePayload - 1)
+                / maxFramePayload);
+        ByteBuffer out = ByteBuffer.allocate(
+                length + frames * MAX_HEADER_SIZE);
+        ByteBuffer rest = payload.duplicate();
+        int frameOpcode = opcode;
+        do {
+            int size = Math.min(rest.remaining(), maxFramePayload);
+            ByteBuffer chunk = rest.slice().limit(size);
+            rest.position(rest.position() + size);
+            putFrame(out, !rest.hasRemaining(), frameOpcode, chunk, null);
+            frameOpcode = CONTINUATION;
+        } while (rest.hasRemaining());
+        return out.flip();
+    }
+
+    // Encodes a single frame. A non-null mask is applied to the payload, as
+    // required of frames sent by clients.
+    static ByteBuffer encodeFrame(boolean fin, int opcode, ByteBuffer payload,
+                                  Integer mask) {
+        ByteBuffer out = ByteBuffer.allocate(
+                payload.remaining() + MAX_HEADER_SIZE);
+        putFrame(out, fin, opcode, payload.duplicate(), mask);
+        return out.flip();
+    }
+
+    private static void putFrame(ByteBuffer out, boolean fin, int opcode,
+                                 ByteBuffer payload, Integer mask) {
+        int length = payload.remaining();
+        out.put((byte) ((fin ? 0x80 : 0) | opcode));
+        int maskBit = mask != null ? 0x80 : 0;
+        if (length < 126) {
+            out.put((byte) (maskBit | length));
+        } else if (length <= 0xFFFF) {
+            out.put((byte) (maskBit | 126));
+            out.putShort((short) length);
+        } else {
+            out.put((byte) (maskBit | 127));
+            out.putLong(length);
+        }
+        if (mask == null) {
+            out.put(payload);
+            return;
+        }
+        out.putInt(mask);
+        for (int i = 0; payload.hasRemaining(); i++) {
+            out.put((byte) (payload.get() ^ (mask >>> (24 - 8 * (i & 3)))));
+        }
+    }
+
+    /**
+     * Receives decoded frames, with their payloads unmasked.
+     */
+    interface FrameHandler {
+        void onFrame(boolean fin, int opcode, byte[] payload)
+                throws ProtocolException;
+    }
+
+    /**
+     * A violation of the protocol by the peer, to be answered by closing
+     * the connection with the given status code.
+     */
+    static final class ProtocolException extends Exception {
+
+        private static final long serialVersionUID = 1L;
+
+        private final int closeCode;
+
+        ProtocolException(int closeCode, String message) {
+            super(message);
+            this.closeCode = closeCode;
+        }
+
+        int getCloseCode() {
+            return closeCode;
+        }
+    }
+}
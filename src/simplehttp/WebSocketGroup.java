@@ -0,0 +1,113 @@
+package simplehttp;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A set of WebSocket connections that messages can be broadcast to, such as
+ * the subscribers of a chat room or a price feed. A broadcast message is
+ * encoded once and the same frames are written to every member, so the
+ * cost of encoding does not grow with the size of the group.
+ *
+ * Connections leave every group they are in when they close. Groups are
+ * safe to use from any thread.
+ */
+public final class WebSocketGroup {
+
+    private final int maxFramePayload;
+    private final Set<WebSocket> members = ConcurrentHashMap.newKeySet();
+
+    /**
+     * Creates an empty group that sends messages in frames of the default
+     * maximum payload size.
+     */
+    public WebSocketGroup() {
+        this(WebSocketSettings.createDefault().getMaxFramePayload());
+    }
+
+    /**
+     * Creates an empty group that splits messages into frames of at most the
+     * given payload size.
+     */
+    public WebSocketGroup(int maxFramePayload) {
+        if (maxFramePayload <= 0) {
+            String msg = "The maxFramePayload must be positive";
+            throw new IllegalArgumentException(msg);
+        }
+        this.maxFramePayload = maxFramePayload;
+    }
+
+    /**
+     * Adds a connection to the group.
+     * @return false if the connection is closing or closed, and so was not
+     * added.
+     */
+    public boolean add(WebSocket socket) {
+        socket.joined(this);
+        members.add(socket);
+        // Checked after joining, so a connection closing meanwhile is
+        // either removed here or by its own close.
+        if (!socket.isOpen()) {
+            remove(socket);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Removes a connection from the group.
+     * @return false if the connection was not a member.
+     */
+    public boolean remove(WebSocket socket) {
+        socket.left(this);
+        return members.remove(socket);
+    }
+
+    /**
+     * Returns the number of connections in the group.
+     */
+    public int size() {
+        return members.size();
+    }
+
+    /**
+     * Returns a view of the connections in the group.
+     */
+    public Set<WebSocket> getMembers() {
+        return Collections.unmodifiableSet(members);
+    }
+
+    /**
+     * Sends a text message to every connection in the group.
+     * @return the number of connections the message was sent to.
+     */
+    public int broadcastText(String text) {
+        return broadcast(WebSocketCodec.encodeMessage(WebSocketCodec.TEXT,
+                ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8)),
+                maxFramePayload));
+    }
+
+    /**
+     * Sends a binary message holding the given buffer's remaining bytes to
+     * every connection in the group.
+     * @return the number of connections the message was sent to.
+     */
+    public int broadcastBinary(ByteBuffer data) {
+        return broadcast(WebSocketCodec.encodeMessage(WebSocketCodec.BINARY,
+                data, maxFramePayload));
+    }
+
+    private int broadcast(ByteBuffer frames) {
+        ByteBuffer shared = frames.asReadOnlyBuffer();
+        int sent = 0;
+        for (WebSocket socket : members) {
+            if (socket.sendEncoded(shared.duplicate())) {
+                sent++;
+            }
+        }
+        return sent;
+    }
+}
@@ -0,0 +1,183 @@
+package simplehttp;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Watches the connections of a {@link WebSocketAction} with a single
+ * selector thread, so that any number of mostly idle connections cost no
+ * thread each. The thread reads and decodes incoming frames, calls the
+ * action for each message, writes what could not be sent at once, and
+ * periodically pings or closes silent connections.
+ *
+ * All reads share one direct buffer. A connection only borrows a buffer of
+ * its own, from a pool, while a frame it is receiving is incomplete.
+ */
+final class WebSocketReactor implements Runnable {
+
+    private static final int READ_BUFFER_SIZE = 64 * 1024;
+    private static final int PARTIAL_BUFFER_SIZE = 16 * 1024;
+    private static final int MAX_IDLE_PARTIAL_BUFFERS = 256;
+    private static final long CHECK_INTERVAL_NANOS =
+            TimeUnit.MILLISECONDS.toNanos(500);
+
+    private final WebSocketAction action;
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+    private final Set<WebSocket> sockets = ConcurrentHashMap.newKeySet();
+    private final ByteBuffer readBuffer =
+            ByteBuffer.allocateDirect(READ_BUFFER_SIZE);
+    private final BufferPool bufferPool =
+            new BufferPool(PARTIAL_BUFFER_SIZE, MAX_IDLE_PARTIAL_BUFFERS);
+
+    private volatile boolean running = true;
+    // Guarded by this, so a connection is either registered before
+    // shutdown closes the watched connections, or refused.
+    private boolean stopping;
+
+    // Creates the reactor and starts its thread, which does not keep the
+    // JVM alive.
+    WebSocketReactor(WebSocketAction action, String threadName) {
+        this.action = action;
+        try {
+            this.selector = Selector.open();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.thread = new Thread(this, threadName);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    // Starts watching the given connection. Returns false if the reactor
+    // has been shut down, leaving the connection to the caller.
+    boolean register(WebSocket socket) {
+        synchronized (this) {
+            if (stopping) {
+                return false;
+            }
+            sockets.add(socket);
+        }
+        execute(() -> {
+            try {
+                socket.registered(socket.getChannel()
+                        .register(selector, SelectionKey.OP_READ, socket));
+                socket.processLeftover();
+            } catch (ClosedChannelException e) {
+                socket.terminate(WebSocket.ABNORMAL_CLOSURE, "");
+            }
+        });
+        return true;
+    }
+
+    // Called when a connection has closed, from any thread. The action is
+    // told on the reactor thread, like for every other event, and the
+    // connection's pooled buffer is given back there, so it cannot be
+    // lent to another connection while still being decoded into.
+    void closed(WebSocket socket, int code, String reason) {
+        execute(() -> {
+            socket.releasePartial();
+            if (sockets.remove(socket)) {
+                action.dispatchClose(socket, code, reason);
+            }
+        });
+    }
+
+    // Returns the connections being watched.
+    Set<WebSocket> getSockets() {
+        return Collections.unmodifiableSet(sockets);
+    }
+
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    // Wakes the thread so it sees changed interest in writing.
+    void wakeup() {
+        selector.wakeup();
+    }
+
+    // Stops the thread after closing every connection with the given
+    // status.
+    void shutdown(int code, String reason) {
+        synchronized (this) {
+            stopping = true;
+        }
+        for (WebSocket socket : sockets) {
+            socket.goAway(code, reason);
+        }
+        execute(() -> running = false);
+    }
+
+    private void execute(Runnable task) {
+        tasks.add(task);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextCheck = System.nanoTime() + CHECK_INTERVAL_NANOS;
+        try {
+            while (running) {
+                long waitMillis = Math.max(1, TimeUnit.NANOSECONDS.toMillis(
+                        nextCheck - System.nanoTime()));
+                selector.select(waitMillis);
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    task.run();
+                }
+                Iterator<SelectionKey> keys =
+                        selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                long now = System.nanoTime();
+                if (now - nextCheck >= 0) {
+                    for (WebSocket socket : sockets) {
+                        socket.checkTimeouts(now);
+                    }
+                    nextCheck = now + CHECK_INTERVAL_NANOS;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                selector.close();
+            } catch (IOException e) {
+                // The thread is ending either way.
+            }
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        WebSocket socket = (WebSocket) key.attachment();
+        try {
+            if (key.isValid() && key.isWritable()) {
+                socket.flush();
+            }
+            if (key.isValid() && key.isReadable()) {
+                socket.read(readBuffer);
+            }
+        } catch (RuntimeException e) {
+            // A failing connection must not stop the others being served.
+            e.printStackTrace();
+            socket.terminate(WebSocket.INTERNAL_ERROR, "");
+        }
+    }
+}
@@ -0,0 +1,174 @@
+package simplehttp;
+
+import java.time.Duration;
+
+/**
+ * Limits and timeouts applied to the connections of a
+ * {@link WebSocketAction}. The settings can be created using the
+ * {@link Builder} class and passed to the action's constructor.
+ */
+public class WebSocketSettings {
+
+    private final int maxMessageSize;
+    private final int maxFramePayload;
+    private final long maxQueuedBytes;
+    private final Duration pingInterval;
+    private final Duration idleTimeout;
+    private final Duration closeTimeout;
+
+    private WebSocketSettings(Builder builder) {
+        this.maxMessageSize = builder.maxMessageSize;
+        this.maxFramePayload = builder.maxFramePayload;
+        this.maxQueuedBytes = builder.maxQueuedBytes;
+        this.pingInterval = builder.pingInterval;
+        this.idleTimeout = builder.idleTimeout;
+        this.closeTimeout = builder.closeTimeout;
+    }
+
+    /**
+     * Returns the settings used when none are given.
+     */
+    public static WebSocketSettings createDefault() {
+        return new Builder().build();
+    }
+
+    /**
+     * Returns the maximum size in bytes of a received message, after its
+     * fragments are joined.
+     */
+    public int getMaxMessageSize() {
+        return maxMessageSize;
+    }
+
+    /**
+     * Returns the maximum payload size in bytes of a sent frame. Larger
+     * messages are split into fragments.
+     */
+    public int getMaxFramePayload() {
+        return maxFramePayload;
+    }
+
+    /**
+     * Returns the maximum number of bytes queued for a connection that is
+     * not keeping up with what is sent to it.
+     */
+    public long getMaxQueuedBytes() {
+        return maxQueuedBytes;
+    }
+
+    /**
+     * Returns how long a connection may be silent before it is pinged, or
+     * null if connections are never pinged.
+     */
+    public Duration getPingInterval() {
+        return pingInterval;
+    }
+
+    /**
+     * Returns how long a connection may be silent before it is closed, or
+     * null if silent connections are kept open.
+     */
+    public Duration getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    /**
+     * Returns how long to wait for the client to answer a close frame
+     * before closing the connection anyway.
+     */
+    public Duration getCloseTimeout() {
+        return closeTimeout;
+    }
+
+    /**
+     * Builder for creating a new {@link WebSocketSettings}.
+     */
+    public static class Builder {
+
+        private int maxMessageSize = 1024 * 1024;
+        private int maxFramePayload = 64 * 1024;
+        private long maxQueuedBytes = 4L * 1024 * 1024;
+        private Duration pingInterval = Duration.ofSeconds(30);
+        private Duration idleTimeout = Duration.ofSeconds(90);
+        private Duration closeTimeout = Duration.ofSeconds(5);
+
+        /**
+         * Sets the maximum size in bytes of a received message, after its
+         * fragments are joined. Larger messages close the connection with
+         * status 1009. Defaults to 1 MB.
+         */
+        public Builder setMaxMessageSize(int maxMessageSize) {
+            this.maxMessageSize = maxMessageSize;
+            return this;
+        }
+
+        /**
+         * Sets the maximum payload size in bytes of a sent frame. Larger
+         * messages are split into fragments. Defaults to 64 KB.
+         */
+        public Builder setMaxFramePayload(int maxFramePayload) {
+            this.maxFramePayload = maxFramePayload;
+            return this;
+        }
+
+        /**
+         * Sets the maximum number of bytes queued for a connection that is
+         * not keeping up with what is sent to it. A send that would exceed
+         * it closes the connection with status 1008, so one slow client
+         * cannot hold on to unbounded memory. Defaults to 4 MB.
+         */
+        public Builder setMaxQueuedBytes(long maxQueuedBytes) {
+            this.maxQueuedBytes = maxQueuedBytes;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may be silent before it is pinged, to
+         * keep intermediaries from dropping it and to check the client is
+         * still there. A null interval disables pings. Defaults to 30
+         * seconds.
+         */
+        public Builder setPingInterval(Duration pingInterval) {
+            this.pingInterval = pingInterval;
+            return this;
+        }
+
+        /**
+         * Sets how long a connection may be silent, including not answering
+         * pings, before it is closed with status 1001. A null timeout keeps
+         * silent connections open. Defaults to 90 seconds.
+         */
+        public Builder setIdleTimeout(Duration idleTimeout) {
+            this.idleTimeout = idleTimeout;
+            return this;
+        }
+
+        /**
+         * Sets how long to wait for the client to answer a close frame
+         * before closing the connection anyway. Defaults to 5 seconds.
+         */
+        public Builder setCloseTimeout(Duration closeTimeout) {
+            this.closeTimeout = closeTimeout;
+            return this;
+        }
+
+        /**
+         * Builds a new {@link WebSocketSettings} from this builder.
+         */
+        public WebSocketSettings build() {
+            if (closeTimeout == null) {
+                String msg = "The closeTimeout field must be non-null";
+                throw new IllegalStateException(msg);
+            }
+
+            if (maxMessageSize <= 0 || maxFramePayload <= 0
+                    || maxQueuedBytes <= 0) {
+                String msg = "The maxMessageSize, maxFramePayload and "
+                        + "maxQueuedBytes fields must be positive";
+                throw new IllegalStateException(msg);
+            }
+
+            return new WebSocketSettings(this);
+        }
+    }
+}